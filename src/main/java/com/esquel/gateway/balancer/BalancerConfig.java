@@ -0,0 +1,101 @@
+package com.esquel.gateway.balancer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of {@link ReplicaLoadBalancer}. They travel to the balancer inside the channel's
+ * service config, as the {@code loadBalancingConfig} of the {@value ReplicaLoadBalancerProvider#POLICY_NAME}
+ * policy.
+ */
+@Builder
+@Getter
+public class BalancerConfig {
+
+  @Builder.Default
+  private final BalancingPolicy policy = BalancingPolicy.P2C_EWMA;
+
+  /**
+   * Share of failed calls within an interval above which a replica is ejected.
+   */
+  @Builder.Default
+  private final double failureRateThreshold = 0.5;
+
+  /**
+   * Calls a replica must have taken within an interval before its failure rate is judged.
+   */
+  @Builder.Default
+  private final int minimumRequests = 20;
+
+  @Builder.Default
+  private final long intervalNanos = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * How long a replica is ejected the first time, each further ejection lasts one more period.
+   */
+  @Builder.Default
+  private final long baseEjectionNanos = TimeUnit.SECONDS.toNanos(30);
+
+  /**
+   * At most this share of the replicas is ejected at once, and never all of them.
+   */
+  @Builder.Default
+  private final int maxEjectionPercent = 50;
+
+  /**
+   * Time constant of the latency average: a sample this old has lost about two thirds of its weight.
+   */
+  @Builder.Default
+  private final long decayNanos = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * The service config selecting the balancer with these settings.
+   */
+  public Map<String, ?> toServiceConfig() {
+    Map<String, Object> settings = ImmutableMap.<String, Object>builder()
+            .put("policy", policy.name())
+            .put("failureRateThreshold", failureRateThreshold)
+            .put("minimumRequests", (double) minimumRequests)
+            .put("intervalMillis", (double) TimeUnit.NANOSECONDS.toMillis(intervalNanos))
+            .put("baseEjectionMillis", (double) TimeUnit.NANOSECONDS.toMillis(baseEjectionNanos))
+            .put("maxEjectionPercent", (double) maxEjectionPercent)
+            .put("decayMillis", (double) TimeUnit.NANOSECONDS.toMillis(decayNanos))
+            .build();
+    return ImmutableMap.of("loadBalancingConfig",
+            ImmutableList.of(ImmutableMap.of(ReplicaLoadBalancerProvider.POLICY_NAME, settings)));
+  }
+
+  /**
+   * Reads the settings back from the service config, JSON numbers arrive as doubles.
+   */
+  static BalancerConfig fromServiceConfig(Map<String, ?> settings) {
+    BalancerConfigBuilder builder = BalancerConfig.builder();
+    if (settings.get("policy") instanceof String) {
+      builder.policy(BalancingPolicy.parse((String) settings.get("policy")));
+    }
+    if (settings.get("failureRateThreshold") instanceof Double) {
+      builder.failureRateThreshold((Double) settings.get("failureRateThreshold"));
+    }
+    if (settings.get("minimumRequests") instanceof Double) {
+      builder.minimumRequests(((Double) settings.get("minimumRequests")).intValue());
+    }
+    if (settings.get("intervalMillis") instanceof Double) {
+      builder.intervalNanos(TimeUnit.MILLISECONDS.toNanos(((Double) settings.get("intervalMillis")).longValue()));
+    }
+    if (settings.get("baseEjectionMillis") instanceof Double) {
+      builder.baseEjectionNanos(TimeUnit.MILLISECONDS.toNanos(((Double) settings.get("baseEjectionMillis")).longValue()));
+    }
+    if (settings.get("maxEjectionPercent") instanceof Double) {
+      builder.maxEjectionPercent(((Double) settings.get("maxEjectionPercent")).intValue());
+    }
+    if (settings.get("decayMillis") instanceof Double) {
+      builder.decayNanos(TimeUnit.MILLISECONDS.toNanos(((Double) settings.get("decayMillis")).longValue()));
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,68 @@
+package com.esquel.gateway.balancer;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How {@link ReplicaPicker} chooses among the replicas that can take a call.
+ */
+public enum BalancingPolicy {
+
+  /**
+   * Each replica in turn.
+   */
+  ROUND_ROBIN {
+    @Override
+    Replica choose(List<Replica> candidates, AtomicInteger sequence) {
+      return candidates.get(Math.floorMod(sequence.getAndIncrement(), candidates.size()));
+    }
+  },
+
+  /**
+   * The replica with the fewest calls in flight, ties broken at random.
+   */
+  LEAST_REQUEST {
+    @Override
+    Replica choose(List<Replica> candidates, AtomicInteger sequence) {
+      int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+      Replica best = null;
+      for (int i = 0; i < candidates.size(); i++) {
+        Replica replica = candidates.get((offset + i) % candidates.size());
+        if (best == null || replica.getOutstanding() < best.getOutstanding()) {
+          best = replica;
+        }
+      }
+      return best;
+    }
+  },
+
+  /**
+   * The cheaper of two replicas picked at random, where the cost is the replica's peak EWMA latency
+   * times its calls in flight. A slow replica quickly gets fewer calls, without the herding of
+   * always picking the fastest one.
+   */
+  P2C_EWMA {
+    @Override
+    Replica choose(List<Replica> candidates, AtomicInteger sequence) {
+      if (candidates.size() == 1) {
+        return candidates.get(0);
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(candidates.size());
+      int second = random.nextInt(candidates.size() - 1);
+      if (second >= first) {
+        second++;
+      }
+      Replica a = candidates.get(first);
+      Replica b = candidates.get(second);
+      return a.cost() <= b.cost() ? a : b;
+    }
+  };
+
+  abstract Replica choose(List<Replica> candidates, AtomicInteger sequence);
+
+  public static BalancingPolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+}
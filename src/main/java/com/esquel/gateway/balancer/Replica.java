@@ -0,0 +1,180 @@
+package com.esquel.gateway.balancer;
+
+import com.google.common.collect.ImmutableSet;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.LoadBalancer.Subchannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One backend address behind a balanced channel, with what the balancer knows about it: calls in
+ * flight, a peak EWMA of call latency and the failures of the current interval.
+ */
+final class Replica {
+
+  /**
+   * Codes that say something about the replica rather than about the request.
+   */
+  private static final ImmutableSet<Status.Code> FAILURES = ImmutableSet.of(
+          Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED, Status.Code.INTERNAL,
+          Status.Code.UNKNOWN, Status.Code.RESOURCE_EXHAUSTED);
+
+  /**
+   * Latency charged for a failed call, so that a replica failing fast does not look fast.
+   */
+  private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Subchannel subchannel;
+
+  private final ReplicaLoadBalancer balancer;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private final ClientStreamTracer.Factory tracerFactory = new ClientStreamTracer.Factory() {
+    @Override
+    public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+      return new CallTracer(info.getCallOptions().getOption(ReplicaLoadBalancerProvider.CALLER_DEADLINE));
+    }
+  };
+
+  private volatile ConnectivityStateInfo state = ConnectivityStateInfo.forNonError(ConnectivityState.IDLE);
+
+  private volatile long ejectedUntil;
+
+  // Guarded by this.
+  private double latencyNanos;
+
+  private long observedAt;
+
+  private long intervalStart = System.nanoTime();
+
+  private int intervalCalls;
+
+  private int intervalFailures;
+
+  private int ejections;
+
+  Replica(Subchannel subchannel, ReplicaLoadBalancer balancer) {
+    this.subchannel = subchannel;
+    this.balancer = balancer;
+  }
+
+  Subchannel getSubchannel() {
+    return subchannel;
+  }
+
+  ClientStreamTracer.Factory getTracerFactory() {
+    return tracerFactory;
+  }
+
+  ConnectivityStateInfo getState() {
+    return state;
+  }
+
+  void setState(ConnectivityStateInfo state) {
+    this.state = state;
+  }
+
+  int getOutstanding() {
+    return outstanding.get();
+  }
+
+  boolean isEjected(long now) {
+    return ejectedUntil - now > 0;
+  }
+
+  /**
+   * Expected cost of sending one more call: the latency average scaled by the calls already waiting.
+   * Replicas without samples cost nothing, so new replicas are tried.
+   */
+  synchronized double cost() {
+    BalancerConfig config = balancer.getConfig();
+    double latency = latencyNanos;
+    if (observedAt != 0) {
+      // Decay towards zero while idle, so a replica that was slow once is tried again eventually.
+      latency *= Math.exp(-(System.nanoTime() - observedAt) / (double) config.getDecayNanos());
+    }
+    return latency * (outstanding.get() + 1);
+  }
+
+  /**
+   * Ejects the replica for a period that grows with every ejection.
+   */
+  synchronized void eject(long now) {
+    BalancerConfig config = balancer.getConfig();
+    ejections++;
+    ejectedUntil = now + config.getBaseEjectionNanos() * ejections;
+    intervalStart = now;
+    intervalCalls = 0;
+    intervalFailures = 0;
+  }
+
+  private void record(long latency, Status status) {
+    boolean failed = FAILURES.contains(status.getCode());
+    boolean overThreshold;
+    long now = System.nanoTime();
+    BalancerConfig config = balancer.getConfig();
+    synchronized (this) {
+      long sample = failed ? Math.max(latency, FAILURE_PENALTY_NANOS) : latency;
+      if (observedAt == 0 || sample > latencyNanos) {
+        // Peak sensitive: a slow call counts in full right away, fast calls only pull it down gradually.
+        latencyNanos = sample;
+      } else {
+        double weight = Math.exp(-(now - observedAt) / (double) config.getDecayNanos());
+        latencyNanos = latencyNanos * weight + sample * (1 - weight);
+      }
+      observedAt = now;
+
+      if (now - intervalStart > config.getIntervalNanos()) {
+        intervalStart = now;
+        intervalCalls = 0;
+        intervalFailures = 0;
+        if (ejections > 0 && !isEjected(now)) {
+          // A whole healthy interval since coming back, forget the earlier ejections.
+          ejections = Math.max(0, ejections - 1);
+        }
+      }
+      intervalCalls++;
+      if (failed) {
+        intervalFailures++;
+      }
+      overThreshold = failed && !isEjected(now) && intervalCalls >= config.getMinimumRequests()
+              && intervalFailures >= config.getFailureRateThreshold() * intervalCalls;
+    }
+    if (overThreshold) {
+      balancer.maybeEject(this, now);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return subchannel.getAddresses().toString();
+  }
+
+  private class CallTracer extends ClientStreamTracer {
+
+    private final long startedAt = System.nanoTime();
+
+    private final boolean callerDeadline;
+
+    private CallTracer(boolean callerDeadline) {
+      this.callerDeadline = callerDeadline;
+      outstanding.incrementAndGet();
+    }
+
+    @Override
+    public void streamClosed(Status status) {
+      outstanding.decrementAndGet();
+      if (callerDeadline && status.getCode() == Status.Code.DEADLINE_EXCEEDED) {
+        // The client gave the call too little time, which is no fault of the replica.
+        return;
+      }
+      record(System.nanoTime() - startedAt, status);
+    }
+  }
+}
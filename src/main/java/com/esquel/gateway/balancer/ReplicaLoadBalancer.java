@@ -0,0 +1,177 @@
+package com.esquel.gateway.balancer;
+
+import com.google.common.collect.ImmutableList;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads the calls of one channel over the replicas its name resolver returned. Every replica gets
+ * its own subchannel, which is kept connected, and {@link ReplicaPicker} chooses among the ready ones.
+ * Replicas whose calls keep failing are ejected for a while, see {@link BalancerConfig}.
+ * <p>
+ * grpc calls the balancer itself from the channel's synchronization context, only {@link #maybeEject}
+ * is reached from transport threads as calls complete.
+ */
+final class ReplicaLoadBalancer extends LoadBalancer {
+
+  private static final Logger logger = LoggerFactory.getLogger(ReplicaLoadBalancer.class);
+
+  private final Helper helper;
+
+  private final Map<EquivalentAddressGroup, Replica> replicas = new HashMap<>();
+
+  private final AtomicInteger sequence = new AtomicInteger();
+
+  private volatile ImmutableList<Replica> all = ImmutableList.of();
+
+  private volatile ImmutableList<Replica> ready = ImmutableList.of();
+
+  private volatile BalancerConfig config = BalancerConfig.builder().build();
+
+  ReplicaLoadBalancer(Helper helper) {
+    this.helper = helper;
+  }
+
+  BalancerConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * The replicas the current picker chooses from.
+   */
+  ImmutableList<Replica> getReady() {
+    return ready;
+  }
+
+  @Override
+  public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
+    if (resolvedAddresses.getLoadBalancingPolicyConfig() instanceof BalancerConfig) {
+      config = (BalancerConfig) resolvedAddresses.getLoadBalancingPolicyConfig();
+    }
+    // Attributes differ between resolutions, only the addresses identify a replica.
+    Set<EquivalentAddressGroup> addresses = resolvedAddresses.getAddresses().stream()
+            .map(group -> new EquivalentAddressGroup(group.getAddresses()))
+            .collect(Collectors.toSet());
+    for (Iterator<Map.Entry<EquivalentAddressGroup, Replica>> it = replicas.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<EquivalentAddressGroup, Replica> entry = it.next();
+      if (!addresses.contains(entry.getKey())) {
+        entry.getValue().getSubchannel().shutdown();
+        it.remove();
+      }
+    }
+    for (EquivalentAddressGroup group : addresses) {
+      if (!replicas.containsKey(group)) {
+        Subchannel subchannel = helper.createSubchannel(CreateSubchannelArgs.newBuilder()
+                .setAddresses(group)
+                .build());
+        Replica replica = new Replica(subchannel, this);
+        replicas.put(group, replica);
+        subchannel.start(state -> onStateChange(replica, state));
+        subchannel.requestConnection();
+      }
+    }
+    all = ImmutableList.copyOf(replicas.values());
+    updateBalancingState();
+  }
+
+  @Override
+  public void handleNameResolutionError(Status error) {
+    if (all.stream().noneMatch(replica -> replica.getState().getState() == ConnectivityState.READY)) {
+      helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    replicas.values().forEach(replica -> replica.getSubchannel().shutdown());
+    replicas.clear();
+    all = ImmutableList.of();
+    ready = ImmutableList.of();
+  }
+
+  /**
+   * Ejects the replica unless that would take out more than {@code maxEjectionPercent} of the
+   * replicas, or the last one.
+   */
+  void maybeEject(Replica replica, long now) {
+    BalancerConfig config = this.config;
+    synchronized (this) {
+      ImmutableList<Replica> current = all;
+      if (!current.contains(replica) || replica.isEjected(now)) {
+        return;
+      }
+      long ejected = current.stream().filter(r -> r.isEjected(now)).count();
+      if (ejected + 1 >= current.size() || (ejected + 1) * 100 > (long) current.size() * config.getMaxEjectionPercent()) {
+        return;
+      }
+      replica.eject(now);
+    }
+    logger.warn("Ejected replica [{}] of [{}] for failing calls", replica, helper.getAuthority());
+  }
+
+  private void onStateChange(Replica replica, ConnectivityStateInfo state) {
+    if (replicas.get(new EquivalentAddressGroup(replica.getSubchannel().getAddresses().getAddresses())) != replica) {
+      return;
+    }
+    if (state.getState() == ConnectivityState.SHUTDOWN) {
+      return;
+    }
+    if (state.getState() == ConnectivityState.IDLE) {
+      // Keep every replica connected, an idle one would never be picked again.
+      replica.getSubchannel().requestConnection();
+    }
+    replica.setState(state);
+    updateBalancingState();
+  }
+
+  private void updateBalancingState() {
+    ImmutableList<Replica> ready = ImmutableList.copyOf(all.stream()
+            .filter(replica -> replica.getState().getState() == ConnectivityState.READY)
+            .collect(Collectors.toList()));
+    if (!ready.isEmpty()) {
+      helper.updateBalancingState(ConnectivityState.READY, new ReplicaPicker(ready, config.getPolicy(), sequence));
+      this.ready = ready;
+      return;
+    }
+    this.ready = ready;
+    Status failure = null;
+    for (Replica replica : all) {
+      if (replica.getState().getState() != ConnectivityState.TRANSIENT_FAILURE) {
+        helper.updateBalancingState(ConnectivityState.CONNECTING, new ErrorPicker(null));
+        return;
+      }
+      failure = replica.getState().getStatus();
+    }
+    helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(failure != null
+            ? failure : Status.UNAVAILABLE.withDescription("No replicas for " + helper.getAuthority())));
+  }
+
+  /**
+   * Fails calls with the given status, or keeps them waiting for a better picker when there is none.
+   */
+  private static final class ErrorPicker extends SubchannelPicker {
+
+    private final Status status;
+
+    private ErrorPicker(Status status) {
+      this.status = status;
+    }
+
+    @Override
+    public PickResult pickSubchannel(PickSubchannelArgs args) {
+      return status == null ? PickResult.withNoResult() : PickResult.withError(status);
+    }
+  }
+}
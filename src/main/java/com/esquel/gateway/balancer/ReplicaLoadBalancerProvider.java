@@ -0,0 +1,67 @@
+package com.esquel.gateway.balancer;
+
+import io.grpc.CallOptions;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.LoadBalancerRegistry;
+import io.grpc.NameResolver.ConfigOrError;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes {@link ReplicaLoadBalancer} available to channels as the {@value #POLICY_NAME} policy.
+ */
+public final class ReplicaLoadBalancerProvider extends LoadBalancerProvider {
+
+  public static final String POLICY_NAME = "gateway_replicas";
+
+  /**
+   * Set on calls whose deadline the client chose. Such calls running out of time say nothing about
+   * the replica, so they are left out of its latency and failure rate.
+   */
+  public static final CallOptions.Key<Boolean> CALLER_DEADLINE = CallOptions.Key.createWithDefault("gateway-caller-deadline", false);
+
+  private static final AtomicBoolean registered = new AtomicBoolean();
+
+  /**
+   * Adds the policy to the default registry, once. Must happen before a channel asks for it.
+   */
+  public static void register() {
+    if (registered.compareAndSet(false, true)) {
+      LoadBalancerRegistry.getDefaultRegistry().register(new ReplicaLoadBalancerProvider());
+    }
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  public int getPriority() {
+    return 5;
+  }
+
+  @Override
+  public String getPolicyName() {
+    return POLICY_NAME;
+  }
+
+  @Override
+  public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+    return new ReplicaLoadBalancer(helper);
+  }
+
+  @Override
+  public ConfigOrError parseLoadBalancingPolicyConfig(Map<String, ?> rawLoadBalancingPolicyConfig) {
+    try {
+      return ConfigOrError.fromConfig(BalancerConfig.fromServiceConfig(rawLoadBalancingPolicyConfig));
+    } catch (RuntimeException e) {
+      return ConfigOrError.fromError(Status.UNAVAILABLE
+              .withDescription("Invalid " + POLICY_NAME + " config")
+              .withCause(e));
+    }
+  }
+}
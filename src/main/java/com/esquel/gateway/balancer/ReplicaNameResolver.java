@@ -0,0 +1,72 @@
+package com.esquel.gateway.balancer;
+
+import com.esquel.gateway.model.Endpoint;
+import com.google.common.collect.ImmutableList;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Resolves an endpoint to the fixed list of replicas configured for it. Host names are looked up on
+ * every resolution, so a replica that moves is followed when the channel refreshes.
+ */
+final class ReplicaNameResolver extends NameResolver {
+
+  private final String authority;
+
+  private final ImmutableList<Endpoint> replicas;
+
+  private final Executor executor;
+
+  private Listener2 listener;
+
+  ReplicaNameResolver(String authority, ImmutableList<Endpoint> replicas, Executor executor) {
+    this.authority = authority;
+    this.replicas = replicas;
+    this.executor = executor;
+  }
+
+  @Override
+  public String getServiceAuthority() {
+    return authority;
+  }
+
+  @Override
+  public void start(Listener2 listener) {
+    this.listener = listener;
+    resolve();
+  }
+
+  @Override
+  public void refresh() {
+    resolve();
+  }
+
+  @Override
+  public void shutdown() {
+  }
+
+  private void resolve() {
+    Listener2 listener = this.listener;
+    // Lookups may block, keep them off the channel's synchronization context when grpc offers an executor.
+    executor.execute(() -> {
+      List<EquivalentAddressGroup> addresses = new ArrayList<>(replicas.size());
+      for (Endpoint replica : replicas) {
+        InetSocketAddress address = new InetSocketAddress(replica.getHost(), replica.getPort());
+        if (!address.isUnresolved()) {
+          addresses.add(new EquivalentAddressGroup(address));
+        }
+      }
+      if (addresses.isEmpty()) {
+        listener.onError(Status.UNAVAILABLE.withDescription("No replica of " + authority + " resolved: " + replicas));
+      } else {
+        listener.onResult(ResolutionResult.newBuilder().setAddresses(addresses).build());
+      }
+    });
+  }
+}
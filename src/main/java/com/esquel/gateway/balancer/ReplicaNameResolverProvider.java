@@ -0,0 +1,75 @@
+package com.esquel.gateway.balancer;
+
+import com.esquel.gateway.model.Endpoint;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import io.grpc.NameResolverRegistry;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves balanced channels, targeted as {@code replicas:///host:port}. The endpoint becomes the
+ * channel's authority, the replicas registered for it are the addresses calls are spread over. One
+ * provider is registered with the default registry and serves every balanced channel.
+ */
+public final class ReplicaNameResolverProvider extends NameResolverProvider {
+
+  public static final String SCHEME = "replicas";
+
+  private static final AtomicBoolean registered = new AtomicBoolean();
+
+  // Authority to its replicas, a channel keeps the ones registered when it was created.
+  private static final Map<String, ImmutableList<Endpoint>> replicasByAuthority = new ConcurrentHashMap<>();
+
+  /**
+   * Registers the replicas of the endpoint, and the provider itself once, and returns the target a
+   * channel balancing over them is created for.
+   */
+  public static String register(Endpoint endpoint, List<Endpoint> replicas) {
+    if (registered.compareAndSet(false, true)) {
+      NameResolverRegistry.getDefaultRegistry().register(new ReplicaNameResolverProvider());
+    }
+    replicasByAuthority.put(endpoint.toString(), ImmutableList.copyOf(replicas));
+    return target(endpoint);
+  }
+
+  public static String target(Endpoint endpoint) {
+    return SCHEME + ":///" + endpoint;
+  }
+
+  @Override
+  public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+    if (!SCHEME.equals(targetUri.getScheme())) {
+      return null;
+    }
+    String authority = targetUri.getPath().substring(1);
+    ImmutableList<Endpoint> replicas = replicasByAuthority.get(authority);
+    if (replicas == null) {
+      return null;
+    }
+    Executor executor = args.getOffloadExecutor() != null ? args.getOffloadExecutor() : MoreExecutors.directExecutor();
+    return new ReplicaNameResolver(authority, replicas, executor);
+  }
+
+  @Override
+  public String getDefaultScheme() {
+    return SCHEME;
+  }
+
+  @Override
+  protected boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  protected int priority() {
+    return 5;
+  }
+}
@@ -0,0 +1,55 @@
+package com.esquel.gateway.balancer;
+
+import com.google.common.collect.ImmutableList;
+import io.grpc.LoadBalancer.PickResult;
+import io.grpc.LoadBalancer.PickSubchannelArgs;
+import io.grpc.LoadBalancer.SubchannelPicker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks among the READY replicas by the configured {@link BalancingPolicy}, leaving out ejected
+ * ones. If every ready replica happens to be ejected they are used anyway, a struggling replica
+ * beats failing the call outright.
+ */
+final class ReplicaPicker extends SubchannelPicker {
+
+  private final ImmutableList<Replica> ready;
+
+  private final BalancingPolicy policy;
+
+  private final AtomicInteger sequence;
+
+  ReplicaPicker(ImmutableList<Replica> ready, BalancingPolicy policy, AtomicInteger sequence) {
+    this.ready = ready;
+    this.policy = policy;
+    this.sequence = sequence;
+  }
+
+  @Override
+  public PickResult pickSubchannel(PickSubchannelArgs args) {
+    Replica replica = policy.choose(candidates(), sequence);
+    return PickResult.withSubchannel(replica.getSubchannel(), replica.getTracerFactory());
+  }
+
+  private List<Replica> candidates() {
+    long now = System.nanoTime();
+    List<Replica> healthy = null;
+    for (int i = 0; i < ready.size(); i++) {
+      Replica replica = ready.get(i);
+      if (replica.isEjected(now)) {
+        if (healthy == null) {
+          healthy = new ArrayList<>(ready.subList(0, i));
+        }
+      } else if (healthy != null) {
+        healthy.add(replica);
+      }
+    }
+    if (healthy == null) {
+      return ready;
+    }
+    return healthy.isEmpty() ? ready : healthy;
+  }
+}
@@ -0,0 +1,69 @@
+package com.esquel.gateway.controller;
+
+import com.esquel.gateway.model.CallPolicyStats;
+import com.esquel.gateway.model.ChannelPoolStats;
+import com.esquel.gateway.model.CoalescingStats;
+import com.esquel.gateway.model.ResponseCacheStats;
+import com.esquel.gateway.model.Result;
+import com.esquel.gateway.model.RoutingStats;
+import com.esquel.gateway.service.CallPolicies;
+import com.esquel.gateway.service.GrpcChannelPool;
+import com.esquel.gateway.service.GrpcRoutingService;
+import com.esquel.gateway.service.RequestCoalescer;
+import com.esquel.gateway.service.ResponseCache;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+public class AdminController {
+
+  private final GrpcChannelPool grpcChannelPool;
+
+  private final RequestCoalescer requestCoalescer;
+
+  private final ResponseCache responseCache;
+
+  private final GrpcRoutingService grpcRoutingService;
+
+  private final CallPolicies callPolicies;
+
+  public AdminController(GrpcChannelPool grpcChannelPool, RequestCoalescer requestCoalescer,
+                         ResponseCache responseCache, GrpcRoutingService grpcRoutingService,
+                         CallPolicies callPolicies) {
+    this.grpcChannelPool = grpcChannelPool;
+    this.requestCoalescer = requestCoalescer;
+    this.responseCache = responseCache;
+    this.grpcRoutingService = grpcRoutingService;
+    this.callPolicies = callPolicies;
+  }
+
+  @RequestMapping(value = "/pool/stats", method = RequestMethod.GET)
+  public ChannelPoolStats poolStats() {
+    return grpcChannelPool.stats();
+  }
+
+  @RequestMapping(value = "/routing/stats", method = RequestMethod.GET)
+  public RoutingStats routingStats() {
+    return grpcRoutingService.stats();
+  }
+
+  @RequestMapping(value = "/calls/stats", method = RequestMethod.GET)
+  public CallPolicyStats callStats() {
+    return callPolicies.stats();
+  }
+
+  @RequestMapping(value = "/coalescing/stats", method = RequestMethod.GET)
+  public CoalescingStats coalescingStats() {
+    return requestCoalescer.stats();
+  }
+
+  @RequestMapping(value = "/cache/stats", method = RequestMethod.GET)
+  public ResponseCacheStats cacheStats() {
+    return responseCache.stats();
+  }
+
+  @RequestMapping(value = "/cache/invalidate", method = RequestMethod.POST)
+  public Result<Long> invalidateCache(@RequestParam(required = false) String method,
+                                      @RequestParam(required = false) String prefix) {
+    return Result.<Long>builder().code(200).result(responseCache.invalidate(method, prefix)).build();
+  }
+}
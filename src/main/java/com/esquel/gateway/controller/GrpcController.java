@@ -1,22 +1,178 @@
 package com.esquel.gateway.controller;
 
+import com.esquel.gateway.model.BatchCall;
+import com.esquel.gateway.model.CallPolicy;
+import com.esquel.gateway.model.Endpoint;
 import com.esquel.gateway.model.Result;
+import com.esquel.gateway.service.GrpcBatchService;
+import com.esquel.gateway.service.GrpcBulkService;
 import com.esquel.gateway.service.GrpcProxyService;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 public class GrpcController {
 
+  private static final String PROTOBUF_VALUE = "application/x-protobuf";
+
+  /**
+   * Header naming the {@code host:port} a request should be sent to instead of the routed backend.
+   */
+  public static final String TARGET_HEADER = "X-Grpc-Endpoint";
+
+  /**
+   * Query parameter doing the same as {@link #TARGET_HEADER}, for clients that can't set headers.
+   */
+  public static final String TARGET_PARAMETER = "endpoint";
+
+  /**
+   * Header laying a call policy, such as {@code deadline:500,attempts:1}, over the method's own. Its
+   * deadline may only shorten the configured one.
+   */
+  public static final String POLICY_HEADER = "X-Grpc-Call-Policy";
+
   private final GrpcProxyService grpcProxyService;
 
-  public GrpcController(GrpcProxyService grpcProxyService) {
+  private final GrpcBatchService grpcBatchService;
+
+  private final GrpcBulkService grpcBulkService;
+
+  private final long streamTimeout;
+
+  public GrpcController(GrpcProxyService grpcProxyService, GrpcBatchService grpcBatchService,
+                        GrpcBulkService grpcBulkService,
+                        @Value("${grpc.stream.timeout}") long streamTimeout) {
     this.grpcProxyService = grpcProxyService;
+    this.grpcBatchService = grpcBatchService;
+    this.grpcBulkService = grpcBulkService;
+    this.streamTimeout = streamTimeout;
+  }
+
+  @RequestMapping(value = "/batch", method = RequestMethod.POST)
+  public DeferredResult<Result<Object>> callBatch(@RequestBody List<BatchCall> calls,
+                                                 @RequestParam(required = false) Long timeout,
+                                                 @RequestParam(required = false) Integer concurrency,
+                                                 HttpServletRequest request) {
+    return deferred(grpcBatchService.callBatch(calls, timeout, concurrency, target(request), policy(request)));
   }
 
   @RequestMapping(value = "/{rawFullMethodName}", method = RequestMethod.POST)
-  public Result<Object> callService(@PathVariable String rawFullMethodName,
+  public DeferredResult<Result<Object>> callService(@PathVariable String rawFullMethodName,
                                      @RequestBody String payload,
-                                     @RequestParam(defaultValue = "{}") String headers) {
-    return grpcProxyService.callService(rawFullMethodName,payload,headers);
+                                     @RequestParam(defaultValue = "{}") String headers,
+                                     HttpServletRequest request) {
+    return deferred(grpcProxyService.callService(rawFullMethodName,payload,headers,target(request), policy(request)));
+  }
+
+  @RequestMapping(value = "/{rawFullMethodName}", method = RequestMethod.POST,
+          produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseBodyEmitter streamService(@PathVariable String rawFullMethodName,
+                                           @RequestBody String payload,
+                                           @RequestParam(defaultValue = "{}") String headers,
+                                           HttpServletRequest request) {
+    ResponseBodyEmitter emitter = new ResponseBodyEmitter(streamTimeout);
+    grpcProxyService.streamService(rawFullMethodName, payload, headers, target(request), policy(request), emitter);
+    return emitter;
+  }
+
+  @RequestMapping(value = "/{rawFullMethodName}", method = RequestMethod.POST,
+          produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamServiceEvents(@PathVariable String rawFullMethodName,
+                                        @RequestBody String payload,
+                                        @RequestParam(defaultValue = "{}") String headers,
+                                        HttpServletRequest request) {
+    SseEmitter emitter = new SseEmitter(streamTimeout);
+    grpcProxyService.streamService(rawFullMethodName, payload, headers, target(request), policy(request), emitter);
+    return emitter;
+  }
+
+  @RequestMapping(value = "/{rawFullMethodName}", method = RequestMethod.POST,
+          consumes = MediaType.APPLICATION_NDJSON_VALUE)
+  public DeferredResult<Result<Object>> callStreamingService(@PathVariable String rawFullMethodName,
+                                                            InputStream body,
+                                                            @RequestParam(defaultValue = "{}") String headers,
+                                                            HttpServletRequest request) {
+    return deferred(grpcProxyService.callStreamingService(rawFullMethodName, body, headers, target(request), policy(request)));
+  }
+
+  @RequestMapping(value = "/{rawFullMethodName}", method = RequestMethod.POST,
+          consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseBodyEmitter streamStreamingService(@PathVariable String rawFullMethodName,
+                                                    InputStream body,
+                                                    @RequestParam(defaultValue = "{}") String headers,
+                                                    HttpServletRequest request) {
+    ResponseBodyEmitter emitter = new ResponseBodyEmitter(streamTimeout);
+    grpcProxyService.streamStreamingService(rawFullMethodName, body, headers, target(request), policy(request), emitter);
+    return emitter;
+  }
+
+  @RequestMapping(value = "/{rawFullMethodName}", method = RequestMethod.POST,
+          consumes = PROTOBUF_VALUE, produces = PROTOBUF_VALUE)
+  public DeferredResult<ResponseEntity<byte[]>> callRawService(@PathVariable String rawFullMethodName,
+                                                              @RequestBody(required = false) byte[] body,
+                                                              @RequestParam(defaultValue = "{}") String headers,
+                                                              HttpServletRequest request) {
+    return deferred(grpcProxyService.callRawService(rawFullMethodName, body == null ? new byte[0] : body, headers,
+            target(request), policy(request)));
+  }
+
+  @RequestMapping(value = "/bulk/{rawFullMethodName}", method = RequestMethod.POST,
+          consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseBodyEmitter callBulk(@PathVariable String rawFullMethodName,
+                                      InputStream body,
+                                      @RequestParam(defaultValue = "{}") String headers,
+                                      @RequestParam(required = false) Integer window,
+                                      HttpServletRequest request) {
+    ResponseBodyEmitter emitter = new ResponseBodyEmitter(streamTimeout);
+    grpcBulkService.callBulk(rawFullMethodName, body, headers, window, target(request), policy(request), emitter);
+    return emitter;
+  }
+
+  /**
+   * Hands the call to Spring like a returned future would be, but cancels it when
+   * {@code spring.mvc.async.request-timeout} runs out, so the rpcs behind it don't outlive the 504.
+   */
+  static <T> DeferredResult<T> deferred(CompletableFuture<T> future) {
+    DeferredResult<T> result = new DeferredResult<>();
+    result.onTimeout(() -> future.cancel(false));
+    future.whenComplete((value, e) -> {
+      if (e == null) {
+        result.setResult(value);
+      } else {
+        result.setErrorResult(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * The endpoint the request targets, or null to route it by service name.
+   */
+  static Endpoint target(HttpServletRequest request) {
+    String target = request.getHeader(TARGET_HEADER);
+    if (StringUtils.isBlank(target)) {
+      target = request.getParameter(TARGET_PARAMETER);
+    }
+    return StringUtils.isBlank(target) ? null : Endpoint.parse(target);
+  }
+
+  /**
+   * The call policy the request asks for, or null to call by the configured one.
+   */
+  static CallPolicy policy(HttpServletRequest request) {
+    String policy = request.getHeader(POLICY_HEADER);
+    return StringUtils.isBlank(policy) ? null : CallPolicy.parse(policy);
   }
 }
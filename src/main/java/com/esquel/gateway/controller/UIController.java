@@ -2,7 +2,7 @@ package com.esquel.gateway.controller;
 
 import com.esquel.gateway.model.ApiDocument;
 import com.esquel.gateway.model.Endpoint;
-import com.esquel.gateway.service.GrpcReflectionService;
+import com.esquel.gateway.service.GrpcRoutingService;
 import com.esquel.gateway.service.UIService;
 import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
@@ -10,6 +10,7 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Controller
@@ -17,14 +18,14 @@ public class UIController {
 
   private final UIService uiService;
 
-  private final GrpcReflectionService grpcReflectionService;
+  private final GrpcRoutingService grpcRoutingService;
 
   private final SimpMessagingTemplate simpMessagingTemplate;
 
-  public UIController(UIService uiService, GrpcReflectionService grpcReflectionService,
+  public UIController(UIService uiService, GrpcRoutingService grpcRoutingService,
                       SimpMessagingTemplate simpMessagingTemplate) {
     this.uiService = uiService;
-    this.grpcReflectionService = grpcReflectionService;
+    this.grpcRoutingService = grpcRoutingService;
     this.simpMessagingTemplate = simpMessagingTemplate;
   }
 
@@ -36,22 +37,32 @@ public class UIController {
   @RequestMapping(value = "/reset", method = RequestMethod.GET)
   @ResponseBody
   public void reset() {
-    grpcReflectionService.loadGrpcServices();
+    grpcRoutingService.reload();
     simpMessagingTemplate.convertAndSend("/topic/reload",true);
   }
 
   @RequestMapping(value = "/register", method = RequestMethod.PUT)
   @ResponseBody
   public void register(@RequestBody Endpoint endpoint) {
-    grpcReflectionService.loadGrpcServicesByIpAndPort(endpoint);
+    grpcRoutingService.register(endpoint);
     simpMessagingTemplate.convertAndSend("/topic/reload",true);
   }
 
+  @RequestMapping(value = "/register", method = RequestMethod.DELETE)
+  @ResponseBody
+  public void unregister(@RequestBody Endpoint endpoint) {
+    if (grpcRoutingService.unregister(endpoint)) {
+      simpMessagingTemplate.convertAndSend("/topic/reload",true);
+    }
+  }
+
   @RequestMapping(value = "/swagger-ui/api-docs", method = RequestMethod.GET)
   @ResponseBody
-  public ApiDocument getApiDoc(HttpServletRequest request)
+  public ApiDocument getApiDoc(HttpServletRequest request,
+                              @RequestParam(value = "tags", required = false) List<String> tags)
   {
-    return uiService.getApiDoc(new Endpoint(request.getServerName(),request.getServerPort(),request.getScheme()));
+    return uiService.getApiDoc(new Endpoint(request.getServerName(),request.getServerPort(),request.getScheme()), tags,
+            GrpcController.target(request));
   }
 
 }
@@ -0,0 +1,194 @@
+package com.esquel.gateway.handler;
+
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.reflection.v1alpha.ServerReflectionRequest;
+import io.grpc.reflection.v1alpha.ServerReflectionResponse;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads a whole catalog over a single reflection stream. Services are listed first, then one
+ * {@code file_containing_symbol} request per service is sent without waiting for the previous
+ * answer, and every dependency that is not known yet is asked for once by file name, however many
+ * services import it. Responses are matched to their request through {@code original_request}.
+ * Known dependencies are not asked for again; servers which send a file together with its
+ * dependencies still refresh them, others never do, so only files known to be current may be passed
+ * in, such as those of the catalog the services are resolved into.
+ * <p>
+ * When the services are given up front, listing is skipped and only those services are loaded.
+ * Their requests go out from the caller's thread while responses arrive on a grpc thread, so
+ * {@link #start} and {@link #onNext} hold the handler's lock: no response is counted before every
+ * request has been sent, and the request stream is never written from two threads at once.
+ */
+public class CatalogLoadHandler implements StreamObserver<ServerReflectionResponse> {
+
+  private static final Logger logger = LoggerFactory.getLogger(CatalogLoadHandler.class);
+
+  private final SettableFuture<ImmutableMap<String, DescriptorProtos.FileDescriptorSet>> resultFuture;
+  private final Map<String, DescriptorProtos.FileDescriptorProto> resolvedDescriptors;
+  private final Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors;
+  private final Set<String> requestedDescriptors;
+  // Service name to the name of the file declaring it.
+  private final Map<String, String> serviceFiles;
+  @Nullable
+  private final Collection<String> services;
+  private StreamObserver<ServerReflectionRequest> requestStream;
+
+  // Used to notice when we've received all the files we've asked for and we can end the rpc.
+  private int outstandingRequests;
+  private int sentRequests;
+
+  public CatalogLoadHandler(Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors) {
+    this(knownDescriptors, null);
+  }
+
+  public CatalogLoadHandler(Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors,
+                            @Nullable Collection<String> services) {
+    this.knownDescriptors = knownDescriptors;
+    this.services = services;
+    this.resultFuture = SettableFuture.create();
+    this.resolvedDescriptors = new HashMap<>();
+    this.requestedDescriptors = new HashSet<>();
+    this.serviceFiles = new LinkedHashMap<>();
+    this.outstandingRequests = 0;
+  }
+
+  public synchronized ListenableFuture<ImmutableMap<String, DescriptorProtos.FileDescriptorSet>> start(
+          StreamObserver<ServerReflectionRequest> requestStream) {
+    this.requestStream = requestStream;
+    if (services == null) {
+      send(ServerReflectionRequest.newBuilder()
+              .setListServices("")
+              .build());
+    } else if (services.isEmpty()) {
+      finish();
+    } else {
+      services.forEach(this::requestService);
+    }
+    return resultFuture;
+  }
+
+  @Override
+  public synchronized void onNext(ServerReflectionResponse response) {
+    ServerReflectionResponse.MessageResponseCase responseCase = response.getMessageResponseCase();
+    ServerReflectionRequest request = response.getOriginalRequest();
+    switch (responseCase) {
+      case LIST_SERVICES_RESPONSE:
+        response.getListServicesResponse().getServiceList().forEach(service -> requestService(service.getName()));
+        break;
+      case FILE_DESCRIPTOR_RESPONSE:
+        handleFiles(request, response.getFileDescriptorResponse().getFileDescriptorProtoList());
+        break;
+      case ERROR_RESPONSE:
+        logger.warn("Reflection request [{}] failed: {}", request, response.getErrorResponse().getErrorMessage());
+        if (request.getMessageRequestCase() == ServerReflectionRequest.MessageRequestCase.FILE_CONTAINING_SYMBOL) {
+          serviceFiles.remove(request.getFileContainingSymbol());
+        }
+        break;
+      default:
+        logger.warn("Got unknown reflection response type: " + responseCase);
+        break;
+    }
+    if (--outstandingRequests == 0) {
+      finish();
+    }
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    resultFuture.setException(new RuntimeException("Reflection rpc failed while loading the catalog", t));
+  }
+
+  @Override
+  public void onCompleted() {
+    if (!resultFuture.isDone()) {
+      logger.error("Unexpected completion of the server reflection rpc");
+      resultFuture.setException(new RuntimeException("Unexpected end of rpc"));
+    }
+  }
+
+  private void handleFiles(ServerReflectionRequest request, Iterable<ByteString> descriptorBytes) {
+    String firstFile = null;
+    List<DescriptorProtos.FileDescriptorProto> added = new ArrayList<>();
+    for (ByteString bytes : descriptorBytes) {
+      DescriptorProtos.FileDescriptorProto descriptor;
+      try {
+        descriptor = DescriptorProtos.FileDescriptorProto.parseFrom(bytes);
+      } catch (InvalidProtocolBufferException e) {
+        logger.warn("Failed to parse bytes as file descriptor proto");
+        continue;
+      }
+      if (firstFile == null) {
+        firstFile = descriptor.getName();
+      }
+      if (resolvedDescriptors.putIfAbsent(descriptor.getName(), descriptor) == null) {
+        added.add(descriptor);
+      }
+    }
+    // The file declaring the symbol always comes first, its dependencies may follow.
+    if (firstFile != null
+            && request.getMessageRequestCase() == ServerReflectionRequest.MessageRequestCase.FILE_CONTAINING_SYMBOL) {
+      serviceFiles.put(request.getFileContainingSymbol(), firstFile);
+    }
+    added.forEach(descriptor -> descriptor.getDependencyList().forEach(this::requestDependency));
+  }
+
+  private void requestService(String service) {
+    serviceFiles.put(service, null);
+    send(ServerReflectionRequest.newBuilder()
+            .setFileContainingSymbol(service)
+            .build());
+  }
+
+  private void requestDependency(String dependency) {
+    if (!resolvedDescriptors.containsKey(dependency) && !knownDescriptors.containsKey(dependency)
+            && requestedDescriptors.add(dependency)) {
+      send(ServerReflectionRequest.newBuilder()
+              .setFileByFilename(dependency)
+              .build());
+    }
+  }
+
+  private void send(ServerReflectionRequest request) {
+    ++outstandingRequests;
+    ++sentRequests;
+    requestStream.onNext(request);
+  }
+
+  private void finish() {
+    ImmutableMap.Builder<String, DescriptorProtos.FileDescriptorSet> catalog = ImmutableMap.builder();
+    serviceFiles.forEach((service, file) -> {
+      if (file == null) {
+        logger.warn("No file descriptor found for service [{}]", service);
+        return;
+      }
+      catalog.put(service, GrpcReflectionUtils.collectDependencies(file, this::lookup));
+    });
+    logger.debug("Loaded {} services and {} files with {} reflection requests",
+            serviceFiles.size(), resolvedDescriptors.size(), sentRequests);
+    resultFuture.set(catalog.build());
+    requestStream.onCompleted();
+  }
+
+  private DescriptorProtos.FileDescriptorProto lookup(String name) {
+    DescriptorProtos.FileDescriptorProto descriptor = resolvedDescriptors.get(name);
+    return descriptor != null ? descriptor : knownDescriptors.get(name);
+  }
+}
@@ -1,14 +1,17 @@
 package com.esquel.gateway.handler;
 
 import com.google.common.collect.ImmutableList;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A {@link StreamObserver} which groups multiple observers and executes them all.
+ * A {@link StreamObserver} which groups multiple observers and executes them all. Observers which are
+ * {@link ClientResponseObserver}s also get to see the request stream before the call starts.
  */
-public class CompositeStreamObserver<T> implements StreamObserver<T> {
+public class CompositeStreamObserver<T> implements ClientResponseObserver<T, T> {
     private static final Logger logger = LoggerFactory.getLogger(CompositeStreamObserver.class);
     private final ImmutableList<StreamObserver<T>> observers;
 
@@ -21,6 +24,16 @@ public class CompositeStreamObserver<T> implements StreamObserver<T> {
         this.observers = observers;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public void beforeStart(ClientCallStreamObserver<T> requestStream) {
+        for (StreamObserver<T> observer : observers) {
+            if (observer instanceof ClientResponseObserver) {
+                ((ClientResponseObserver<T, T>) observer).beforeStart(requestStream);
+            }
+        }
+    }
+
     @Override
     public void onCompleted() {
         for (StreamObserver<T> observer : observers) {
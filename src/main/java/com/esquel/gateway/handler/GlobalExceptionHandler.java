@@ -4,6 +4,7 @@ import com.esquel.gateway.model.Result;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
 
 @ControllerAdvice
 @ResponseBody
@@ -13,4 +14,9 @@ public class GlobalExceptionHandler {
   public Result<Object> exceptionHandler(Exception e) {
     return Result.builder().code(400).message(e.getMessage()).build();
   }
+
+  @ExceptionHandler(value = AsyncRequestTimeoutException.class)
+  public Result<Object> asyncTimeoutHandler(AsyncRequestTimeoutException e) {
+    return Result.builder().code(504).message("Timed out waiting for the grpc service").build();
+  }
 }
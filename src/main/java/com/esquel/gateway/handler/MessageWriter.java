@@ -1,40 +1,27 @@
 package com.esquel.gateway.handler;
 
 import com.esquel.gateway.model.CallResults;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
-import com.google.protobuf.util.JsonFormat;
-import com.google.protobuf.util.JsonFormat.Printer;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static com.google.protobuf.util.JsonFormat.TypeRegistry;
-
 public class MessageWriter<T extends Message> implements StreamObserver<T> {
     private static final Logger logger = LoggerFactory.getLogger(MessageWriter.class);
 
-    private final Printer printer;
     private final CallResults results;
 
-    private MessageWriter(Printer printer, CallResults results) {
-        this.printer = printer;
+    private MessageWriter(CallResults results) {
         this.results = results;
     }
 
-    public static <T extends Message> MessageWriter<T> newInstance(TypeRegistry registry, CallResults results){
-        return new MessageWriter<>(
-                JsonFormat.printer().usingTypeRegistry(registry).includingDefaultValueFields(),
-                results);
+    public static <T extends Message> MessageWriter<T> newInstance(CallResults results){
+        return new MessageWriter<>(results);
     }
 
     @Override
     public void onNext(T value) {
-        try {
-            results.add(printer.print(value));
-        } catch (InvalidProtocolBufferException e) {
-            logger.error("Skipping invalid response message", e);
-        }
+        results.add(value);
     }
 
     @Override
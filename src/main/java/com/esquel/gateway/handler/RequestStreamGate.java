@@ -0,0 +1,63 @@
+package com.esquel.gateway.handler;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A {@link StreamObserver} which lets a producer thread wait until the request stream of a call is
+ * ready to take another message, so requests are never queued up in memory faster than the
+ * transport can send them.
+ */
+public class RequestStreamGate<T> implements ClientResponseObserver<T, T> {
+    private final Object lock = new Object();
+    private ClientCallStreamObserver<T> requestStream;
+    private boolean done;
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<T> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.setOnReadyHandler(this::signal);
+    }
+
+    @Override
+    public void onNext(T value) {
+        // Do nothing.
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        terminate();
+    }
+
+    @Override
+    public void onCompleted() {
+        terminate();
+    }
+
+    /**
+     * Blocks until the request stream is ready. Returns false if the rpc terminated in the meantime,
+     * in which case no further message should be sent.
+     */
+    public boolean awaitReady() throws InterruptedException {
+        synchronized (lock) {
+            while (!done && !requestStream.isReady()) {
+                lock.wait();
+            }
+            return !done;
+        }
+    }
+
+    private void terminate() {
+        synchronized (lock) {
+            done = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void signal() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.esquel.gateway.handler;
+
+import com.alibaba.fastjson.JSON;
+import com.esquel.gateway.model.Result;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat.Printer;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Writes every response message to the HTTP response as soon as it arrives, either as one line of
+ * newline-delimited JSON or as one server-sent event, depending on the emitter.
+ * <p>
+ * Inbound flow control is manual: the next message is only requested from the backend once the
+ * previous one has been written, so a slow HTTP client slows the backend down instead of filling
+ * the heap.
+ * <p>
+ * Only the first error or completion ends the response, later ones are dropped, so a failure
+ * reported before the call is cancelled is not followed by the cancellation.
+ */
+public class StreamingMessageWriter<T extends Message> implements ClientResponseObserver<T, T> {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingMessageWriter.class);
+
+    private static final MediaType TEXT_PLAIN_UTF8 = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+
+    private final Printer printer;
+    private final ResponseBodyEmitter emitter;
+    private final Function<Throwable, ? extends RuntimeException> errorTranslator;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private ClientCallStreamObserver<T> requestStream;
+
+    private StreamingMessageWriter(Printer printer, ResponseBodyEmitter emitter,
+                                   Function<Throwable, ? extends RuntimeException> errorTranslator) {
+        this.printer = printer;
+        this.emitter = emitter;
+        this.errorTranslator = errorTranslator;
+    }
+
+    public static <T extends Message> StreamingMessageWriter<T> newInstance(Printer printer, ResponseBodyEmitter emitter,
+                                                                           Function<Throwable, ? extends RuntimeException> errorTranslator) {
+        // Every message has to fit on a single line.
+        return new StreamingMessageWriter<>(printer.omittingInsignificantWhitespace(), emitter, errorTranslator);
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<T> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.disableAutoInboundFlowControl();
+        emitter.onTimeout(() -> requestStream.cancel("HTTP response timed out", null));
+        emitter.onError(t -> requestStream.cancel("HTTP response failed", t));
+    }
+
+    @Override
+    public void onNext(T value) {
+        if (finished.get()) {
+            return;
+        }
+        try {
+            write(emitter, printer.print(value), null);
+        } catch (IOException e) {
+            requestStream.cancel("Failed to write HTTP response", e);
+            return;
+        }
+        requestStream.request(1);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (finished.compareAndSet(false, true)) {
+            writeError(emitter, errorTranslator.apply(t));
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        if (finished.compareAndSet(false, true)) {
+            emitter.complete();
+        }
+    }
+
+    /**
+     * Reports a failure in the stream format and ends the response. Once the first message has been
+     * sent the status code can no longer change, so errors are always reported inline.
+     */
+    public static void writeError(ResponseBodyEmitter emitter, Throwable t) {
+        try {
+            write(emitter, JSON.toJSONString(Result.builder().code(400).message(t.getMessage()).build()), "error");
+            emitter.complete();
+        } catch (Exception e) {
+            logger.debug("Unable to report stream error to HTTP client", e);
+            emitter.completeWithError(t);
+        }
+    }
+
+    private static void write(ResponseBodyEmitter emitter, String json, String eventName) throws IOException {
+        if (emitter instanceof SseEmitter) {
+            SseEmitter.SseEventBuilder event = SseEmitter.event();
+            if (eventName != null) {
+                event.name(eventName);
+            }
+            ((SseEmitter) emitter).send(event.data(json, TEXT_PLAIN_UTF8));
+        } else {
+            emitter.send((json + "\n").getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_NDJSON);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.esquel.gateway.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * One entry of a {@code /batch} request.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BatchCall {
+
+  private String method;
+
+  private JsonNode payload;
+
+  private Map<String, Object> headers;
+}
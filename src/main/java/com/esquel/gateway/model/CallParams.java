@@ -16,6 +16,8 @@ public class CallParams {
 
     private MethodDescriptor methodDescriptor;
 
+    private io.grpc.MethodDescriptor<DynamicMessage, DynamicMessage> grpcMethodDescriptor;
+
     private Channel channel;
 
     private CallOptions callOptions;
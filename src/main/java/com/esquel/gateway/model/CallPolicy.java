@@ -0,0 +1,116 @@
+package com.esquel.gateway.model;
+
+import com.google.common.base.Splitter;
+import lombok.Builder;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * How a call to one method is made: its deadline, how many attempts it may take when the backend is
+ * unavailable, and how many hedged attempts may be sent when the first one is slow. Settings left
+ * null are taken from the policy this one is laid over.
+ * <p>
+ * Written as {@code deadline:2000,attempts:3,hedges:1,hedge-delay:50}, all in milliseconds. A zero
+ * deadline means none, a hedge delay left out follows the method's p95 latency.
+ * <p>
+ * {@code deadlineRequested} marks a deadline that the request chose, shorter than the configured one.
+ */
+@Builder(toBuilder = true)
+@Getter
+public class CallPolicy {
+
+  public static final CallPolicy EMPTY = CallPolicy.builder().build();
+
+  @Nullable
+  private final Long deadlineMillis;
+
+  @Nullable
+  private final Integer maxAttempts;
+
+  @Nullable
+  private final Integer hedges;
+
+  @Nullable
+  private final Long hedgeDelayMillis;
+
+  private final boolean deadlineRequested;
+
+  public static CallPolicy parse(String text) {
+    CallPolicyBuilder builder = CallPolicy.builder();
+    Map<String, String> settings;
+    try {
+      settings = Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator(':').split(text);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Call policy must be key:value pairs, got " + text);
+    }
+    settings.forEach((key, value) -> {
+      try {
+        switch (key.trim()) {
+          case "deadline":
+            builder.deadlineMillis(Long.parseLong(value.trim()));
+            break;
+          case "attempts":
+            builder.maxAttempts(Integer.parseInt(value.trim()));
+            break;
+          case "hedges":
+            builder.hedges(Integer.parseInt(value.trim()));
+            break;
+          case "hedge-delay":
+            builder.hedgeDelayMillis(Long.parseLong(value.trim()));
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown call policy setting " + key);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Call policy setting " + key + " must be a number, got " + value);
+      }
+    });
+    return builder.build();
+  }
+
+  /**
+   * This policy with every setting the other one has replaced.
+   */
+  public CallPolicy overriddenBy(@Nullable CallPolicy other) {
+    if (other == null) {
+      return this;
+    }
+    return CallPolicy.builder()
+            .deadlineMillis(other.deadlineMillis != null ? other.deadlineMillis : deadlineMillis)
+            .maxAttempts(other.maxAttempts != null ? other.maxAttempts : maxAttempts)
+            .hedges(other.hedges != null ? other.hedges : hedges)
+            .hedgeDelayMillis(other.hedgeDelayMillis != null ? other.hedgeDelayMillis : hedgeDelayMillis)
+            .build();
+  }
+
+  public long deadlineMillisOrZero() {
+    return deadlineMillis == null ? 0 : Math.max(0, deadlineMillis);
+  }
+
+  public int attempts() {
+    return maxAttempts == null ? 1 : Math.max(1, maxAttempts);
+  }
+
+  public int hedgesOrZero() {
+    return hedges == null ? 0 : Math.max(0, hedges);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    append(text, "deadline", deadlineMillis);
+    append(text, "attempts", maxAttempts);
+    append(text, "hedges", hedges);
+    append(text, "hedge-delay", hedgeDelayMillis);
+    return text.toString();
+  }
+
+  private static void append(StringBuilder text, String key, @Nullable Number value) {
+    if (value != null) {
+      text.append(StringUtils.isEmpty(text) ? "" : ",").append(key).append(':').append(value);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.esquel.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class CallPolicyStats {
+
+  private long calls;
+
+  private long retries;
+
+  private long hedges;
+
+  /**
+   * Calls answered by a hedged attempt rather than the first one.
+   */
+  private long hedgeWins;
+
+  /**
+   * Retries and hedges not sent because the method had used up its retry budget.
+   */
+  private long budgetExhausted;
+
+  private List<MethodStats> methods;
+
+  @Data
+  @Builder
+  @AllArgsConstructor
+  @NoArgsConstructor
+  public static class MethodStats {
+
+    private String method;
+
+    private String policy;
+
+    private long calls;
+
+    /**
+     * p95 latency of successful attempts in milliseconds, -1 until enough calls were seen.
+     */
+    private double p95Millis;
+
+    private double retryTokens;
+  }
+}
@@ -1,30 +1,111 @@
 package com.esquel.gateway.model;
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat.Printer;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static java.util.stream.Collectors.toList;
-
+/**
+ * The response messages of one call. They are kept as messages and only rendered to JSON when the
+ * HTTP response is written, directly into the response stream.
+ */
+@JsonSerialize(using = CallResults.Serializer.class)
 public class CallResults {
-    private final List<String> results;
+    private final Printer printer;
+    private final List<Message> results;
 
-    public CallResults() {
+    public CallResults(Printer printer) {
+        this.printer = printer;
         this.results = new ArrayList<>();
     }
 
-    public void add(String jsonText) {
-        results.add(jsonText);
+    public void add(Message message) {
+        results.add(message);
     }
 
-    public List<String> asList() {
+    public List<Message> asMessages() {
         return results;
     }
 
-    public Object asJSON() {
-        if (results.size() == 1) {
-            return JSONObject.parse(results.get(0));
+    public List<String> asList() {
+        List<String> jsonTexts = new ArrayList<>(results.size());
+        for (Message message : results) {
+            try {
+                jsonTexts.add(printer.print(message));
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Unable to print response message", e);
+            }
+        }
+        return jsonTexts;
+    }
+
+    /**
+     * Writes a single result as an object and anything else as an array, printing each message
+     * once straight into the generator.
+     */
+    public static class Serializer extends StdSerializer<CallResults> {
+
+        public Serializer() {
+            super(CallResults.class);
+        }
+
+        @Override
+        public void serialize(CallResults value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            if (value.results.size() == 1) {
+                value.printer.appendTo(value.results.get(0), new RawValueAppender(gen));
+                return;
+            }
+            gen.writeStartArray();
+            for (Message message : value.results) {
+                value.printer.appendTo(message, new RawValueAppender(gen));
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    /**
+     * Feeds printer output to a generator. The first chunk starts a new raw value so the generator
+     * still writes its separators, the rest is appended as is.
+     */
+    private static class RawValueAppender implements Appendable {
+        private final JsonGenerator gen;
+        private boolean started;
+
+        private RawValueAppender(JsonGenerator gen) {
+            this.gen = gen;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            if (started) {
+                gen.writeRaw(csq.toString());
+            } else {
+                gen.writeRawValue(csq.toString());
+                started = true;
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            return append(csq.subSequence(start, end));
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            if (started) {
+                gen.writeRaw(c);
+            } else {
+                gen.writeRawValue(String.valueOf(c));
+                started = true;
+            }
+            return this;
         }
-        return results.stream().map(JSON::parseObject).collect(toList());
     }
 }
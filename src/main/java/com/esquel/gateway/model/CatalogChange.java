@@ -0,0 +1,41 @@
+package com.esquel.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Set;
+
+/**
+ * What changed between two published catalog versions, by full service name. When the new version
+ * was loaded from another endpoint than the previous one, nothing carries over and every service
+ * counts as affected.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class CatalogChange {
+
+  private long version;
+
+  private long previousVersion;
+
+  private Set<String> added;
+
+  private Set<String> changed;
+
+  private Set<String> removed;
+
+  private boolean endpointChanged;
+
+  public boolean affects(String fullServiceName) {
+    return endpointChanged || added.contains(fullServiceName) || changed.contains(fullServiceName)
+            || removed.contains(fullServiceName);
+  }
+
+  public boolean isEmpty() {
+    return !endpointChanged && added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+  }
+}
@@ -0,0 +1,68 @@
+package com.esquel.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class ChannelPoolStats {
+
+  private int size;
+
+  private long created;
+
+  private long evicted;
+
+  private List<ChannelStats> channels;
+
+  @Data
+  @Builder
+  @AllArgsConstructor
+  @NoArgsConstructor
+  public static class ChannelStats {
+
+    private String endpoint;
+
+    private String state;
+
+    private long createdAt;
+
+    private long lastUsedAt;
+
+    private long acquisitions;
+
+    private long stripesGrown;
+
+    private long stripesShrunk;
+
+    private List<StripeStats> stripes;
+  }
+
+  @Data
+  @Builder
+  @AllArgsConstructor
+  @NoArgsConstructor
+  public static class StripeStats {
+
+    private int index;
+
+    private String state;
+
+    private int activeStreams;
+
+    private int peakStreams;
+
+    /**
+     * Active streams over the streams a stripe takes before another one is added.
+     */
+    private double utilization;
+
+    private long calls;
+  }
+}
@@ -0,0 +1,30 @@
+package com.esquel.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class CoalescingStats {
+
+  private List<String> methods;
+
+  private long calls;
+
+  private long backendCalls;
+
+  private long coalesced;
+
+  private int inFlight;
+
+  /**
+   * Share of eligible calls that were answered by another caller's rpc.
+   */
+  private double ratio;
+}
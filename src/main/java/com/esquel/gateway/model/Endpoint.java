@@ -33,6 +33,22 @@ public class Endpoint {
     this.scheme = scheme;
   }
 
+  /**
+   * Parses {@code host:port}.
+   */
+  public static Endpoint parse(String hostAndPort) {
+    int separator = hostAndPort.lastIndexOf(':');
+    if (separator <= 0 || separator == hostAndPort.length() - 1) {
+      throw new IllegalArgumentException("Endpoint must be host:port, got " + hostAndPort);
+    }
+    try {
+      return new Endpoint(hostAndPort.substring(0, separator).trim(),
+              Integer.parseInt(hostAndPort.substring(separator + 1).trim()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Endpoint must be host:port, got " + hostAndPort);
+    }
+  }
+
   @Override
   public String toString() {
     return String.format("%s:%d", host, port);
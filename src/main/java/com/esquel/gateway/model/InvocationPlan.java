@@ -0,0 +1,33 @@
+package com.esquel.gateway.model;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.util.JsonFormat;
+import io.grpc.MethodDescriptor;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Everything needed to invoke one gRPC method, compiled once per catalog version so that a call only
+ * has to parse its payload, run the rpc and print the responses.
+ */
+@Builder
+@Getter
+public class InvocationPlan {
+
+  private final String fullMethodName;
+
+  private final Descriptors.MethodDescriptor methodDescriptor;
+
+  private final MethodDescriptor.MethodType methodType;
+
+  private final MethodDescriptor<DynamicMessage, DynamicMessage> grpcMethodDescriptor;
+
+  private final MethodDescriptor<byte[], byte[]> rawMethodDescriptor;
+
+  private final JsonFormat.TypeRegistry typeRegistry;
+
+  private final JsonFormat.Parser parser;
+
+  private final JsonFormat.Printer printer;
+}
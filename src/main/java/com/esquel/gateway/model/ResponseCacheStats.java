@@ -0,0 +1,34 @@
+package com.esquel.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class ResponseCacheStats {
+
+  private long entries;
+
+  private long bytes;
+
+  private long maxBytes;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  private double hitRate;
+
+  /**
+   * Configured TTL in seconds per allow-listed method.
+   */
+  private Map<String, Long> methods;
+}
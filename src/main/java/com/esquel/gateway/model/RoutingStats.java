@@ -0,0 +1,61 @@
+package com.esquel.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class RoutingStats {
+
+  /**
+   * Number of services in the routing table.
+   */
+  private int routes;
+
+  private List<BackendStats> backends;
+
+  /**
+   * Endpoints loaded for requests that targeted them, see {@code grpc.routing.targets}.
+   */
+  private List<BackendStats> targets;
+
+  private long targetBytes;
+
+  private long targetMaxBytes;
+
+  private long targetLoads;
+
+  private long targetEvictions;
+
+  @Data
+  @Builder
+  @AllArgsConstructor
+  @NoArgsConstructor
+  public static class BackendStats {
+
+    private String endpoint;
+
+    private long catalogVersion;
+
+    private int services;
+
+    /**
+     * Services this backend is routed for, fewer than {@link #services} when another backend
+     * registered earlier serves some of them.
+     */
+    private int routed;
+
+    /**
+     * Serialized size of the loaded descriptors.
+     */
+    private long bytes;
+
+    private long loadedAt;
+  }
+}
@@ -0,0 +1,383 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.balancer.ReplicaLoadBalancerProvider;
+import com.esquel.gateway.model.CallPolicy;
+import com.esquel.gateway.model.CallPolicyStats;
+import com.esquel.gateway.model.InvocationPlan;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Decides the {@link CallPolicy} of every call and carries it out.
+ * <p>
+ * A call's policy is built up from {@code grpc.call.deadline} for unary methods,
+ * {@code grpc.call.idempotent} for methods whose descriptor declares them idempotent, the
+ * {@code grpc.call.methods} entries of the service and of the method, and finally the policy the
+ * request asks for. A request may only shorten the configured deadline, never lift or remove it. Only
+ * unary methods that are idempotent, or given attempts or hedges in {@code grpc.call.methods}, are
+ * ever sent more than once.
+ * <p>
+ * The deadline goes into the call options and so holds for every attempt together. Retries follow
+ * an UNAVAILABLE with a jittered exponential backoff, hedges are sent while the call is still running
+ * after the method's p95 latency, and whichever attempt answers first wins while the others are
+ * cancelled. Both come out of a per method budget that grows by {@code grpc.call.retry-budget} with
+ * every call, so a struggling backend never sees more than that share of extra load.
+ */
+@Service("callPolicies")
+public class CallPolicies {
+
+  private static final int SAMPLES = 128;
+
+  private static final int MIN_SAMPLES = 20;
+
+  private static final double MAX_TOKENS = 10;
+
+  private static final long BACKOFF_MILLIS = 50;
+
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+
+  private final CallPolicy unaryPolicy;
+
+  private final CallPolicy idempotentPolicy;
+
+  private final Map<String, CallPolicy> configured;
+
+  private final double retryBudget;
+
+  private final Map<String, MethodState> methods = new ConcurrentHashMap<>();
+
+  private final LongAdder calls = new LongAdder();
+
+  private final LongAdder retries = new LongAdder();
+
+  private final LongAdder hedges = new LongAdder();
+
+  private final LongAdder hedgeWins = new LongAdder();
+
+  private final LongAdder budgetExhausted = new LongAdder();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "grpc-call-scheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public CallPolicies(@Value("${grpc.call.deadline}") long deadline,
+                      @Value("${grpc.call.methods}") String methods,
+                      @Value("${grpc.call.idempotent}") String idempotent,
+                      @Value("${grpc.call.retry-budget}") double retryBudget) {
+    this.unaryPolicy = CallPolicy.builder().deadlineMillis(deadline).build();
+    this.idempotentPolicy = CallPolicy.parse(idempotent);
+    this.configured = ImmutableMap.copyOf(Splitter.on(';').trimResults().omitEmptyStrings()
+            .withKeyValueSeparator('=').split(methods).entrySet().stream()
+            .collect(Collectors.toMap(e -> e.getKey().trim(), e -> CallPolicy.parse(e.getValue()))));
+    this.retryBudget = retryBudget;
+  }
+
+  /**
+   * The policy of a call to the planned method, with the request's own policy, if any, laid over it.
+   * The requested deadline only counts when it is shorter than the configured one.
+   */
+  public CallPolicy policy(InvocationPlan plan, @Nullable CallPolicy requested) {
+    boolean unary = plan.getMethodType() == MethodDescriptor.MethodType.UNARY;
+    CallPolicy forService = configured.get(StringUtils.substringBefore(plan.getFullMethodName(), "/") + "/*");
+    CallPolicy forMethod = configured.get(plan.getFullMethodName());
+    boolean repeatable = isIdempotent(plan) || declaresRepeats(forService) || declaresRepeats(forMethod);
+
+    CallPolicy policy = unary ? unaryPolicy : CallPolicy.EMPTY;
+    if (isIdempotent(plan)) {
+      policy = policy.overriddenBy(idempotentPolicy);
+    }
+    policy = policy.overriddenBy(forService).overriddenBy(forMethod);
+    long configuredDeadline = policy.deadlineMillisOrZero();
+    policy = policy.overriddenBy(requested == null ? null : requested.toBuilder().deadlineMillis(null).build());
+    long requestedDeadline = requested == null ? 0 : requested.deadlineMillisOrZero();
+    if (requestedDeadline > 0 && (configuredDeadline == 0 || requestedDeadline < configuredDeadline)) {
+      policy = policy.toBuilder().deadlineMillis(requestedDeadline).deadlineRequested(true).build();
+    }
+    if (!unary || !repeatable) {
+      policy = policy.toBuilder().maxAttempts(1).hedges(0).build();
+    }
+    return policy;
+  }
+
+  /**
+   * Adds the policy's deadline, unless the caller already gave the call one. A deadline the request
+   * chose is flagged, so that the balancer doesn't blame replicas for running out of it.
+   */
+  public CallOptions apply(CallPolicy policy, CallOptions callOptions) {
+    if (callOptions.getDeadline() != null || policy.deadlineMillisOrZero() == 0) {
+      return callOptions;
+    }
+    CallOptions options = callOptions.withDeadlineAfter(policy.deadlineMillisOrZero(), TimeUnit.MILLISECONDS);
+    return policy.isDeadlineRequested() ? options.withOption(ReplicaLoadBalancerProvider.CALLER_DEADLINE, true) : options;
+  }
+
+  /**
+   * Runs a unary call by the policy. Every attempt is started by {@code attempt}, inside a context of
+   * its own so that it can be cancelled once another attempt has answered.
+   */
+  public <T> CompletableFuture<T> execute(InvocationPlan plan, CallPolicy policy, CallOptions callOptions,
+                                          Supplier<CompletableFuture<T>> attempt) {
+    calls.increment();
+    MethodState state = methods.computeIfAbsent(plan.getFullMethodName(), MethodState::new);
+    state.calls.increment();
+    state.policy = policy.toString();
+    state.deposit(retryBudget);
+    return new Attempts<>(state, policy, callOptions.getDeadline(), attempt).start();
+  }
+
+  public CallPolicyStats stats() {
+    return CallPolicyStats.builder()
+            .calls(calls.sum())
+            .retries(retries.sum())
+            .hedges(hedges.sum())
+            .hedgeWins(hedgeWins.sum())
+            .budgetExhausted(budgetExhausted.sum())
+            .methods(methods.values().stream()
+                    .map(MethodState::stats)
+                    .sorted(Comparator.comparing(CallPolicyStats.MethodStats::getMethod))
+                    .collect(Collectors.toList()))
+            .build();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private static boolean isIdempotent(InvocationPlan plan) {
+    DescriptorProtos.MethodOptions.IdempotencyLevel level = plan.getMethodDescriptor().getOptions().getIdempotencyLevel();
+    return level == DescriptorProtos.MethodOptions.IdempotencyLevel.IDEMPOTENT
+            || level == DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS;
+  }
+
+  private static boolean declaresRepeats(@Nullable CallPolicy policy) {
+    return policy != null && (policy.getMaxAttempts() != null || policy.getHedges() != null);
+  }
+
+  /**
+   * The attempts of one call. Everything but starting and cancelling attempts happens under its lock.
+   */
+  private class Attempts<T> {
+
+    private final MethodState state;
+
+    // Retries and hedges are launched from the scheduler, still under the caller's context.
+    private final Context parent = Context.current();
+
+    private final Deadline deadline;
+
+    private final Supplier<CompletableFuture<T>> attempt;
+
+    private final long hedgeDelayNanos;
+
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    private final List<Context.CancellableContext> running = new ArrayList<>();
+
+    private int retriesLeft;
+
+    private int hedgesLeft;
+
+    private int retried;
+
+    private boolean done;
+
+    private Attempts(MethodState state, CallPolicy policy, @Nullable Deadline deadline,
+                     Supplier<CompletableFuture<T>> attempt) {
+      this.state = state;
+      this.deadline = deadline;
+      this.attempt = attempt;
+      this.retriesLeft = policy.attempts() - 1;
+      this.hedgesLeft = policy.hedgesOrZero();
+      this.hedgeDelayNanos = policy.getHedgeDelayMillis() != null
+              ? TimeUnit.MILLISECONDS.toNanos(Math.max(1, policy.getHedgeDelayMillis()))
+              : state.p95Nanos;
+    }
+
+    private CompletableFuture<T> start() {
+      launch(false);
+      scheduleHedge();
+      return result;
+    }
+
+    private void scheduleHedge() {
+      if (hedgesLeft > 0 && hedgeDelayNanos > 0) {
+        scheduler.schedule(this::hedge, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private void hedge() {
+      synchronized (this) {
+        if (done || hedgesLeft == 0) {
+          return;
+        }
+        if (!state.withdraw()) {
+          budgetExhausted.increment();
+          return;
+        }
+        hedgesLeft--;
+      }
+      hedges.increment();
+      launch(true);
+      scheduleHedge();
+    }
+
+    private void retry() {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+      }
+      launch(false);
+    }
+
+    private void launch(boolean hedged) {
+      Context.CancellableContext context = parent.withCancellation();
+      synchronized (this) {
+        running.add(context);
+      }
+      long startedAt = System.nanoTime();
+      CompletableFuture<T> future;
+      Context previous = context.attach();
+      try {
+        future = attempt.get();
+      } catch (RuntimeException e) {
+        future = CompletableFuture.failedFuture(e);
+      } finally {
+        context.detach(previous);
+      }
+      future.whenComplete((value, e) -> complete(context, hedged, startedAt, value, e));
+    }
+
+    private void complete(Context.CancellableContext context, boolean hedged, long startedAt,
+                          @Nullable T value, @Nullable Throwable e) {
+      // The attempt is over either way, its context only needs releasing.
+      context.cancel(null);
+      List<Context.CancellableContext> others = new ArrayList<>();
+      long backoffMillis = 0;
+      synchronized (this) {
+        running.remove(context);
+        if (done) {
+          return;
+        }
+        if (e != null && Status.fromThrowable(e).getCode() == Status.Code.UNAVAILABLE) {
+          if (!running.isEmpty()) {
+            // Another attempt is still out and may yet answer.
+            return;
+          }
+          if (retriesLeft > 0 && (deadline == null || !deadline.isExpired())) {
+            if (state.withdraw()) {
+              retriesLeft--;
+              backoffMillis = ThreadLocalRandom.current().nextLong(1,
+                      Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(retried++, 10)) + 1);
+            } else {
+              budgetExhausted.increment();
+            }
+          }
+        }
+        done = backoffMillis == 0;
+        if (done) {
+          others.addAll(running);
+          running.clear();
+        }
+      }
+      others.forEach(other -> other.cancel(null));
+      if (!done) {
+        retries.increment();
+        scheduler.schedule(this::retry, backoffMillis, TimeUnit.MILLISECONDS);
+      } else if (e == null) {
+        state.record(System.nanoTime() - startedAt);
+        if (hedged) {
+          hedgeWins.increment();
+        }
+        result.complete(value);
+      } else {
+        result.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Latencies and retry budget of one method.
+   */
+  private static class MethodState {
+
+    private final String method;
+
+    private final LongAdder calls = new LongAdder();
+
+    private final long[] samples = new long[SAMPLES];
+
+    private volatile String policy;
+
+    private volatile long p95Nanos = -1;
+
+    // Guarded by this.
+    private long recorded;
+
+    private double tokens = MAX_TOKENS;
+
+    private MethodState(String method) {
+      this.method = method;
+    }
+
+    private synchronized void record(long nanos) {
+      samples[(int) (recorded++ % SAMPLES)] = nanos;
+      if (recorded >= MIN_SAMPLES && recorded % 8 == 0) {
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(recorded, SAMPLES));
+        Arrays.sort(sorted);
+        p95Nanos = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+      }
+    }
+
+    private synchronized void deposit(double ratio) {
+      tokens = Math.min(MAX_TOKENS, tokens + ratio);
+    }
+
+    private synchronized boolean withdraw() {
+      if (tokens < 1) {
+        return false;
+      }
+      tokens -= 1;
+      return true;
+    }
+
+    private synchronized CallPolicyStats.MethodStats stats() {
+      return CallPolicyStats.MethodStats.builder()
+              .method(method)
+              .policy(policy)
+              .calls(calls.sum())
+              .p95Millis(p95Nanos < 0 ? -1 : p95Nanos / 1e6)
+              .retryTokens(tokens)
+              .build();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.CatalogChange;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.store.CatalogSnapshot;
+import com.esquel.gateway.store.DescriptorPool;
+import com.esquel.protobuf.SavedCatalog;
+import com.esquel.protobuf.SavedService;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last published catalog in {@code grpc.reflection.snapshot-file}. The file is replaced
+ * atomically after every new catalog version and memory-mapped when the gateway starts, so requests
+ * can be served before reflection has answered. An empty path turns this off.
+ */
+@Service("catalogSnapshotStore")
+public class CatalogSnapshotStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(CatalogSnapshotStore.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  private final Path file;
+
+  public CatalogSnapshotStore(@Value("${grpc.reflection.snapshot-file}") String file) {
+    this.file = StringUtils.isBlank(file) ? null : Paths.get(file);
+  }
+
+  public boolean isEnabled() {
+    return Objects.nonNull(file);
+  }
+
+  public void save(CatalogSnapshot snapshot) {
+    if (!isEnabled() || !snapshot.isLoaded()) {
+      return;
+    }
+    Map<String, DescriptorProtos.FileDescriptorProto> files = new LinkedHashMap<>();
+    SavedCatalog.Builder saved = SavedCatalog.newBuilder()
+            .setFormatVersion(FORMAT_VERSION)
+            .setHost(snapshot.getEndpoint().getHost())
+            .setPort(snapshot.getEndpoint().getPort())
+            .setSavedAt(System.currentTimeMillis());
+    snapshot.getFileDescriptorSets().forEach((service, set) -> {
+      SavedService.Builder savedService = SavedService.newBuilder();
+      set.getFileList().forEach(proto -> {
+        files.putIfAbsent(proto.getName(), proto);
+        savedService.addFiles(proto.getName());
+      });
+      HashCode hash = snapshot.getServiceHashes().get(service);
+      if (hash != null) {
+        savedService.setHash(ByteString.copyFrom(hash.asBytes()));
+      }
+      saved.putServices(service, savedService.build());
+    });
+    saved.setFiles(DescriptorProtos.FileDescriptorSet.newBuilder().addAllFile(files.values()));
+
+    try {
+      Path directory = file.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        OutputStream output = Channels.newOutputStream(channel);
+        saved.build().writeTo(output);
+        output.flush();
+        channel.force(true);
+      }
+      // Readers only ever see the old file or the complete new one.
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logger.info("Saved catalog version {} of [{}] to [{}]", snapshot.getVersion(), snapshot.getEndpoint(), file);
+    } catch (IOException e) {
+      logger.warn("Unable to save the catalog to [{}]", file, e);
+    }
+  }
+
+  /**
+   * Reads the saved catalog, if there is one for the endpoint. The result is published as version 1
+   * with every service added, the first reflection load then only publishes what differs from it.
+   */
+  public Optional<CatalogSnapshot> load(Endpoint endpoint) {
+    if (!isEnabled()) {
+      return Optional.empty();
+    }
+    long start = System.nanoTime();
+    SavedCatalog saved;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      saved = SavedCatalog.parseFrom(buffer);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      logger.warn("Unable to read the saved catalog [{}]", file, e);
+      return Optional.empty();
+    }
+    if (saved.getFormatVersion() != FORMAT_VERSION
+            || !new Endpoint(saved.getHost(), saved.getPort()).equals(endpoint)) {
+      logger.info("Ignoring saved catalog [{}] of [{}:{}]", file, saved.getHost(), saved.getPort());
+      return Optional.empty();
+    }
+
+    Map<String, DescriptorProtos.FileDescriptorProto> files = new HashMap<>();
+    saved.getFiles().getFileList().forEach(proto -> files.put(proto.getName(), proto));
+    ImmutableMap.Builder<String, DescriptorProtos.FileDescriptorSet> sets = ImmutableMap.builder();
+    ImmutableMap.Builder<String, HashCode> hashes = ImmutableMap.builder();
+    saved.getServicesMap().forEach((service, savedService) -> {
+      DescriptorProtos.FileDescriptorSet.Builder set = DescriptorProtos.FileDescriptorSet.newBuilder();
+      savedService.getFilesList().forEach(name -> {
+        DescriptorProtos.FileDescriptorProto proto = files.get(name);
+        if (proto != null) {
+          set.addFile(proto);
+        }
+      });
+      sets.put(service, set.build());
+      if (!savedService.getHash().isEmpty()) {
+        hashes.put(service, HashCode.fromBytes(savedService.getHash().toByteArray()));
+      }
+    });
+    ImmutableMap<String, DescriptorProtos.FileDescriptorSet> fileDescriptorSets = sets.build();
+    CatalogSnapshot snapshot = CatalogSnapshot.builder()
+            .version(1)
+            .endpoint(new Endpoint(saved.getHost(), saved.getPort()))
+            .serviceNames(fileDescriptorSets.keySet())
+            .fileDescriptorSets(fileDescriptorSets)
+            .serviceHashes(hashes.build())
+            .descriptorPool(DescriptorPool.build(fileDescriptorSets.values()))
+            .change(CatalogChange.builder()
+                    .version(1)
+                    .previousVersion(0)
+                    .added(Collections.unmodifiableSet(fileDescriptorSets.keySet()))
+                    .changed(Collections.emptySet())
+                    .removed(Collections.emptySet())
+                    .build())
+            .loadedAt(saved.getSavedAt())
+            .build();
+    logger.info("Read saved catalog of [{}] with {} services in {} ms", snapshot.getEndpoint(),
+            fileDescriptorSets.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return Optional.of(snapshot);
+  }
+}
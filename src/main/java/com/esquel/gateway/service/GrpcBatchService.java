@@ -0,0 +1,105 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.BatchCall;
+import com.esquel.gateway.model.CallPolicy;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.Result;
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Collections.emptyMap;
+
+/**
+ * Runs the independent unary calls of a batch concurrently, at most {@code concurrency} at a time,
+ * and reports one result per entry in request order. A failing entry never fails the batch.
+ */
+@Service("grpcBatchService")
+public class GrpcBatchService {
+
+  private final GrpcProxyService grpcProxyService;
+
+  private final int defaultConcurrency;
+
+  private final int maxSize;
+
+  public GrpcBatchService(GrpcProxyService grpcProxyService,
+                          @Value("${grpc.batch.concurrency}") int defaultConcurrency,
+                          @Value("${grpc.batch.max-size}") int maxSize) {
+    this.grpcProxyService = grpcProxyService;
+    this.defaultConcurrency = defaultConcurrency;
+    this.maxSize = maxSize;
+  }
+
+  public CompletableFuture<Result<Object>> callBatch(List<BatchCall> calls, Long timeout, Integer concurrency,
+                                                     @Nullable Endpoint target, @Nullable CallPolicy policy) {
+    checkArgument(calls.size() <= maxSize, "A batch can't hold more than %s calls.", maxSize);
+    CallOptions callOptions = Objects.isNull(timeout)
+            ? CallOptions.DEFAULT
+            : CallOptions.DEFAULT.withDeadline(Deadline.after(timeout, TimeUnit.MILLISECONDS));
+    List<CompletableFuture<Result<Object>>> results = new ArrayList<>(calls.size());
+    calls.forEach(call -> results.add(new CompletableFuture<>()));
+
+    AtomicInteger next = new AtomicInteger();
+    int limit = Math.max(1, Objects.isNull(concurrency) ? defaultConcurrency : concurrency);
+    // Every entry is called under the batch's context, so cancelling the batch cancels them all.
+    Context.CancellableContext context = Context.current().withCancellation();
+    for (int i = 0; i < Math.min(limit, calls.size()); i++) {
+      dispatchNext(context, calls, results, next, callOptions, target, policy);
+    }
+    CompletableFuture<Result<Object>> batch = CompletableFuture.allOf(results.toArray(new CompletableFuture[0]))
+            .thenApply(v -> Result.builder().code(200)
+                    .result(results.stream().map(CompletableFuture::join).collect(Collectors.toList()))
+                    .build());
+    batch.whenComplete((value, e) -> context.cancel(null));
+    return batch;
+  }
+
+  /**
+   * Starts the next pending entry, and once it finishes, the one after it. Each of the
+   * {@code concurrency} chains started by {@link #callBatch} keeps one call in flight.
+   */
+  private void dispatchNext(Context context, List<BatchCall> calls, List<CompletableFuture<Result<Object>>> results,
+                            AtomicInteger next, CallOptions callOptions, @Nullable Endpoint target,
+                            @Nullable CallPolicy policy) {
+    int index = next.getAndIncrement();
+    if (index >= calls.size()) {
+      return;
+    }
+    BatchCall call = calls.get(index);
+    CompletableFuture<Result<Object>> result;
+    // Later entries are started from the callback of an earlier one, which runs under that call's context.
+    Context previous = context.attach();
+    try {
+      result = grpcProxyService.callService(call.getMethod(),
+              Objects.isNull(call.getPayload()) ? "{}" : call.getPayload().toString(),
+              Objects.isNull(call.getHeaders()) ? emptyMap() : call.getHeaders(),
+              callOptions, target, policy);
+    } catch (Exception e) {
+      result = CompletableFuture.failedFuture(e);
+    } finally {
+      context.detach(previous);
+    }
+    result.whenComplete((value, e) -> {
+      if (e != null) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        results.get(index).complete(Result.builder().code(400).message(cause.getMessage()).build());
+      } else {
+        results.get(index).complete(value);
+      }
+      dispatchNext(context, calls, results, next, callOptions, target, policy);
+    });
+  }
+}
@@ -0,0 +1,282 @@
+package com.esquel.gateway.service;
+
+import com.alibaba.fastjson.JSON;
+import com.esquel.gateway.model.CallPolicy;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.GrpcMethodDefinition;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.MethodDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Replays an NDJSON body of request payloads against one unary method. Up to {@code window} calls
+ * are kept in flight while the body is read, at most {@code grpc.bulk.max-window}, and every outcome
+ * is written back as one NDJSON line carrying the input line number, in completion order. Every job
+ * takes a thread, jobs beyond {@code grpc.bulk.max-jobs} are turned away.
+ * <p>
+ * Outcomes are sent in chunks of {@value #FLUSH_BYTES} bytes, or at the latest
+ * {@value #FLUSH_INTERVAL_MS} ms after they were written. Failed lines are only reported to the
+ * client; the log gets one summary per job.
+ */
+@Service("grpcBulkService")
+public class GrpcBulkService {
+
+  private static final Logger logger = LoggerFactory.getLogger(GrpcBulkService.class);
+
+  private static final int FLUSH_BYTES = 32 * 1024;
+
+  private static final long FLUSH_INTERVAL_MS = 200;
+
+  private final GrpcProxyService grpcProxyService;
+
+  private final GrpcRoutingService grpcRoutingService;
+
+  private final CallPolicies callPolicies;
+
+  private final int defaultWindow;
+
+  private final int maxWindow;
+
+  private final ExecutorService jobExecutor;
+
+  private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "grpc-bulk-flush");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public GrpcBulkService(GrpcProxyService grpcProxyService, GrpcRoutingService grpcRoutingService,
+                         CallPolicies callPolicies, @Value("${grpc.bulk.window}") int defaultWindow,
+                         @Value("${grpc.bulk.max-window}") int maxWindow,
+                         @Value("${grpc.bulk.max-jobs}") int maxJobs) {
+    this.grpcProxyService = grpcProxyService;
+    this.grpcRoutingService = grpcRoutingService;
+    this.callPolicies = callPolicies;
+    this.defaultWindow = defaultWindow;
+    this.maxWindow = Math.max(1, maxWindow);
+    this.jobExecutor = new ThreadPoolExecutor(0, maxJobs, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+      Thread thread = new Thread(r, "grpc-bulk-job");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void callBulk(String rawFullMethodName, InputStream body, String headers, Integer window,
+                       @Nullable Endpoint target, @Nullable CallPolicy policy, ResponseBodyEmitter emitter) {
+    int size = Math.min(maxWindow, Math.max(1, window == null ? defaultWindow : window));
+    BulkJob job = new BulkJob(emitter);
+    try {
+      jobExecutor.execute(() -> job.run(rawFullMethodName, body, headers, size, target, policy));
+    } catch (RejectedExecutionException e) {
+      job.writeError(0, "Too many bulk jobs in progress, try again later");
+      job.finish();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    jobExecutor.shutdownNow();
+    flushScheduler.shutdownNow();
+  }
+
+  private class BulkJob {
+
+    private final ResponseBodyEmitter emitter;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_BYTES * 2);
+
+    private final Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+
+    private final long startedAt = System.nanoTime();
+
+    // Sends what is buffered even while no further outcome comes in to do it.
+    private final ScheduledFuture<?> flushTask;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile String firstFailure;
+
+    private long lastFlush = System.currentTimeMillis();
+
+    private volatile boolean aborted;
+
+    private BulkJob(ResponseBodyEmitter emitter) {
+      this.emitter = emitter;
+      emitter.onTimeout(() -> aborted = true);
+      emitter.onError(t -> aborted = true);
+      this.flushTask = flushScheduler.scheduleWithFixedDelay(this::flushPending, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+              TimeUnit.MILLISECONDS);
+    }
+
+    private void run(String rawFullMethodName, InputStream body, String headers, int window, @Nullable Endpoint target,
+                     @Nullable CallPolicy policy) {
+      Semaphore inFlight = new Semaphore(window);
+      int lineNumber = 0;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+        // One plan, and so one parser, printer and method descriptor, for the whole job.
+        GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
+        GrpcRoutingService.Backend backend = grpcRoutingService.route(target, methodDefinition.getFullServiceName());
+        InvocationPlan plan = backend.getInvocationPlanCache().get(methodDefinition);
+        checkArgument(plan.getMethodType() == MethodDescriptor.MethodType.UNARY,
+                "Bulk mode only supports unary methods, %s is %s", plan.getFullMethodName(), plan.getMethodType());
+        Channel channel = grpcProxyService.serviceChannel(backend, headers);
+        CallPolicy callPolicy = callPolicies.policy(plan, policy);
+        CallOptions options = callPolicies.apply(callPolicy, CallOptions.DEFAULT);
+        String line;
+        while (!aborted && (line = reader.readLine()) != null) {
+          int current = ++lineNumber;
+          if (line.isBlank()) {
+            continue;
+          }
+          DynamicMessage.Builder messageBuilder = DynamicMessage.newBuilder(plan.getMethodDescriptor().getInputType());
+          try {
+            plan.getParser().merge(line, messageBuilder);
+          } catch (InvalidProtocolBufferException e) {
+            writeError(current, "Unable to parse json text: " + e.getMessage());
+            continue;
+          }
+          inFlight.acquire();
+          calls.incrementAndGet();
+          DynamicMessage request = messageBuilder.build();
+          callPolicies.execute(plan, callPolicy, options,
+                          () -> GrpcProxyService.unaryCall(channel, plan.getGrpcMethodDescriptor(), options, request))
+                  .whenComplete((result, e) -> {
+                    if (e == null) {
+                      writeResult(current, plan.getPrinter(), result);
+                    } else {
+                      writeError(current, GrpcProxyService.errorMessage(e));
+                    }
+                    inFlight.release();
+                  });
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        aborted = true;
+      } catch (Exception e) {
+        writeError(lineNumber, grpcProxyService.translateException(e).getMessage());
+      } finally {
+        // Let the tail of the window finish before closing the response.
+        inFlight.acquireUninterruptibly(window);
+        finish();
+        summarize(rawFullMethodName, lineNumber);
+      }
+    }
+
+    private void summarize(String rawFullMethodName, int lines) {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+      if (failures.get() == 0) {
+        logger.info("Bulk job for [{}] read {} lines and made {} calls in {} ms", rawFullMethodName, lines,
+                calls.get(), elapsed);
+      } else {
+        logger.warn("Bulk job for [{}] read {} lines and made {} calls in {} ms, {} lines failed, the first with: {}",
+                rawFullMethodName, lines, calls.get(), elapsed, failures.get(), firstFailure);
+      }
+    }
+
+    private synchronized void writeResult(int line, JsonFormat.Printer printer, Message message) {
+      try {
+        writer.write("{\"line\":" + line + ",\"code\":200,\"result\":");
+        printer.appendTo(message, writer);
+        writer.write("}\n");
+        flushIfDue();
+      } catch (Exception e) {
+        abort(e);
+      }
+    }
+
+    private synchronized void writeError(int line, String message) {
+      if (failures.getAndIncrement() == 0) {
+        firstFailure = "line " + line + ": " + message;
+      }
+      try {
+        writer.write("{\"line\":" + line + ",\"code\":400,\"message\":" + JSON.toJSONString(message) + "}\n");
+        flushIfDue();
+      } catch (Exception e) {
+        abort(e);
+      }
+    }
+
+    private void flushIfDue() throws IOException {
+      if (buffer.size() >= FLUSH_BYTES || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MS) {
+        flush();
+      }
+    }
+
+    private synchronized void flushPending() {
+      if (aborted) {
+        return;
+      }
+      try {
+        flushIfDue();
+      } catch (Exception e) {
+        abort(e);
+      }
+    }
+
+    private void flush() throws IOException {
+      writer.flush();
+      if (buffer.size() > 0) {
+        emitter.send(buffer.toByteArray(), MediaType.APPLICATION_NDJSON);
+        buffer.reset();
+      }
+      lastFlush = System.currentTimeMillis();
+    }
+
+    private synchronized void finish() {
+      flushTask.cancel(false);
+      if (aborted) {
+        return;
+      }
+      try {
+        flush();
+        emitter.complete();
+      } catch (Exception e) {
+        abort(e);
+      }
+    }
+
+    private void abort(Exception e) {
+      if (!aborted) {
+        logger.warn("Bulk job aborted, the HTTP client can no longer be written to", e);
+        aborted = true;
+      }
+    }
+  }
+}
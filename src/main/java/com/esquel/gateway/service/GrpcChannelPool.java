@@ -0,0 +1,235 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.balancer.BalancerConfig;
+import com.esquel.gateway.balancer.BalancingPolicy;
+import com.esquel.gateway.model.ChannelPoolStats;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.utils.ChannelFactory;
+import com.esquel.gateway.utils.StripedChannel;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.grpc.ManagedChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Hands out one long-lived {@link ManagedChannel} per backend {@link Endpoint}. Channels are created
+ * on first use, shared by every call to that endpoint and shut down once they have been idle for
+ * {@code grpc.channel.idle-timeout} seconds.
+ * <p>
+ * Endpoints listed in {@code grpc.lb.replicas} get a balanced channel instead, which spreads calls
+ * over the endpoint's replicas by {@code grpc.lb.policy} and ejects replicas that keep failing.
+ * <p>
+ * Each pooled channel is a {@link StripedChannel}: it opens further connections to the endpoint
+ * while every connection carries {@code grpc.channel.stripes.max-streams} streams, and closes them
+ * again once idle.
+ */
+@Service("grpcChannelPool")
+public class GrpcChannelPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(GrpcChannelPool.class);
+
+  private final Map<Endpoint, PooledChannel> channels = new ConcurrentHashMap<>();
+
+  private final AtomicLong created = new AtomicLong();
+
+  private final AtomicLong evicted = new AtomicLong();
+
+  private final long keepAliveTime;
+
+  private final long keepAliveTimeout;
+
+  private final long idleTimeoutMillis;
+
+  private final ImmutableMap<Endpoint, ImmutableList<Endpoint>> replicas;
+
+  private final BalancerConfig balancerConfig;
+
+  private final int minStripes;
+
+  private final int maxStripes;
+
+  private final int maxStreams;
+
+  private final long stripeIdleNanos;
+
+  private final ScheduledExecutorService evictor;
+
+  public GrpcChannelPool(@Value("${grpc.channel.keep-alive-time}") long keepAliveTime,
+                         @Value("${grpc.channel.keep-alive-timeout}") long keepAliveTimeout,
+                         @Value("${grpc.channel.idle-timeout}") long idleTimeout,
+                         @Value("${grpc.lb.replicas}") String replicas,
+                         @Value("${grpc.lb.policy}") String policy,
+                         @Value("${grpc.lb.failure-rate-threshold}") double failureRateThreshold,
+                         @Value("${grpc.lb.minimum-requests}") int minimumRequests,
+                         @Value("${grpc.lb.ejection-time}") long ejectionTime,
+                         @Value("${grpc.channel.stripes.min}") int minStripes,
+                         @Value("${grpc.channel.stripes.max}") int maxStripes,
+                         @Value("${grpc.channel.stripes.max-streams}") int maxStreams,
+                         @Value("${grpc.channel.stripes.idle-timeout}") long stripeIdleTimeout) {
+    this.keepAliveTime = keepAliveTime;
+    this.keepAliveTimeout = keepAliveTimeout;
+    this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeout);
+    this.replicas = parseReplicas(replicas);
+    this.balancerConfig = BalancerConfig.builder()
+            .policy(BalancingPolicy.parse(policy))
+            .failureRateThreshold(failureRateThreshold)
+            .minimumRequests(minimumRequests)
+            .baseEjectionNanos(TimeUnit.SECONDS.toNanos(ejectionTime))
+            .build();
+    this.minStripes = minStripes;
+    this.maxStripes = maxStripes;
+    this.maxStreams = maxStreams;
+    this.stripeIdleNanos = TimeUnit.SECONDS.toNanos(stripeIdleTimeout);
+    this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "grpc-channel-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = Math.max(1, Math.min(Math.min(idleTimeout, stripeIdleTimeout) / 4, 60));
+    this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns the shared channel for the endpoint, creating it if needed.
+   */
+  public ManagedChannel acquire(Endpoint endpoint) {
+    return channels.compute(key(endpoint), (k, pooled) -> {
+      if (pooled == null || pooled.channel.isShutdown()) {
+        List<Endpoint> addresses = replicas.get(k);
+        if (addresses == null) {
+          pooled = new PooledChannel(new StripedChannel(
+                  () -> ChannelFactory.createPooled(k.getHost(), k.getPort(), keepAliveTime, keepAliveTimeout),
+                  minStripes, maxStripes, maxStreams));
+          logger.info("Created pooled channel for [{}]", k);
+        } else {
+          pooled = new PooledChannel(new StripedChannel(
+                  () -> ChannelFactory.createBalanced(k, addresses, balancerConfig, keepAliveTime, keepAliveTimeout),
+                  minStripes, maxStripes, maxStreams));
+          logger.info("Created pooled channel for [{}] balanced over {} by {}", k, addresses, balancerConfig.getPolicy());
+        }
+        created.incrementAndGet();
+      }
+      pooled.touch();
+      return pooled;
+    }).channel;
+  }
+
+  /**
+   * Returns the shared channel for the endpoint and asks it to start connecting right away, so the
+   * first call does not pay for the TCP and HTTP/2 handshake.
+   */
+  public ManagedChannel preconnect(Endpoint endpoint) {
+    ManagedChannel channel = acquire(endpoint);
+    channel.getState(true);
+    return channel;
+  }
+
+  /**
+   * Shuts the channel of the endpoint down once its calls have finished. A later acquire creates
+   * a new one.
+   */
+  public void release(Endpoint endpoint) {
+    channels.computeIfPresent(key(endpoint), (k, pooled) -> {
+      logger.info("Releasing channel for [{}]", k);
+      pooled.channel.shutdown();
+      evicted.incrementAndGet();
+      return null;
+    });
+  }
+
+  public void evictIdle() {
+    long now = System.currentTimeMillis();
+    channels.keySet().forEach(endpoint -> channels.computeIfPresent(endpoint, (k, pooled) -> {
+      if (now - pooled.lastUsedAt < idleTimeoutMillis) {
+        pooled.channel.shrinkIdle(stripeIdleNanos);
+        return pooled;
+      }
+      logger.info("Evicting idle channel for [{}]", k);
+      pooled.channel.shutdown();
+      evicted.incrementAndGet();
+      return null;
+    }));
+  }
+
+  public ChannelPoolStats stats() {
+    return ChannelPoolStats.builder()
+            .size(channels.size())
+            .created(created.get())
+            .evicted(evicted.get())
+            .channels(channels.entrySet().stream()
+                    .map(e -> ChannelPoolStats.ChannelStats.builder()
+                            .endpoint(e.getKey().toString())
+                            .state(e.getValue().channel.getState(false).name())
+                            .createdAt(e.getValue().createdAt)
+                            .lastUsedAt(e.getValue().lastUsedAt)
+                            .acquisitions(e.getValue().acquisitions.get())
+                            .stripesGrown(e.getValue().channel.getGrown())
+                            .stripesShrunk(e.getValue().channel.getShrunk())
+                            .stripes(e.getValue().channel.stripeStats())
+                            .build())
+                    .sorted(Comparator.comparing(ChannelPoolStats.ChannelStats::getEndpoint))
+                    .collect(Collectors.toList()))
+            .build();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    evictor.shutdownNow();
+    channels.values().forEach(pooled -> pooled.channel.shutdown());
+    channels.clear();
+  }
+
+  /**
+   * Parses {@code endpoint=replica,replica;endpoint=...}, every part being {@code host:port}.
+   */
+  static ImmutableMap<Endpoint, ImmutableList<Endpoint>> parseReplicas(String replicas) {
+    ImmutableMap.Builder<Endpoint, ImmutableList<Endpoint>> parsed = ImmutableMap.builder();
+    Splitter.on(';').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(replicas)
+            .forEach((endpoint, addresses) -> parsed.put(Endpoint.parse(endpoint),
+                    ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(addresses)
+                            .stream()
+                            .map(Endpoint::parse)
+                            .collect(Collectors.toList()))));
+    return parsed.build();
+  }
+
+  private static Endpoint key(Endpoint endpoint) {
+    // Endpoint is mutable, so never key the map on the caller's instance.
+    return new Endpoint(endpoint.getHost(), endpoint.getPort());
+  }
+
+  private static class PooledChannel {
+
+    private final StripedChannel channel;
+
+    private final long createdAt = System.currentTimeMillis();
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private volatile long lastUsedAt = createdAt;
+
+    private PooledChannel(StripedChannel channel) {
+      this.channel = channel;
+    }
+
+    private void touch() {
+      lastUsedAt = System.currentTimeMillis();
+      acquisitions.incrementAndGet();
+    }
+  }
+}
@@ -2,33 +2,56 @@ package com.esquel.gateway.service;
 
 import com.alibaba.fastjson.JSON;
 import com.esquel.gateway.handler.MessageWriter;
+import com.esquel.gateway.handler.StreamingMessageWriter;
 import com.esquel.gateway.model.*;
 import com.esquel.gateway.utils.ChannelFactory;
+import com.esquel.gateway.utils.DelimitedMessages;
 import com.esquel.gateway.utils.DynamicMessageMarshaller;
 import com.esquel.gateway.utils.GrpcReflectionUtils;
 import com.esquel.gateway.handler.CompositeStreamObserver;
 import com.esquel.gateway.handler.DoneObserver;
+import com.esquel.gateway.handler.RequestStreamGate;
 import com.esquel.protobuf.ErrorInfo;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.protobuf.DescriptorProtos;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.DynamicMessage;
-import com.google.protobuf.util.JsonFormat;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.*;
 import io.grpc.protobuf.ProtoUtils;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
 import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -43,46 +66,159 @@ public class GrpcProxyService {
 
   private static final Logger logger = LoggerFactory.getLogger(GrpcReflectionService.class);
 
-  private final GrpcReflectionService grpcReflectionService;
+  private final GrpcRoutingService grpcRoutingService;
 
-  public GrpcProxyService(GrpcReflectionService grpcReflectionService) {
-    this.grpcReflectionService = grpcReflectionService;
+  private final RequestCoalescer requestCoalescer;
+
+  private final ResponseCache responseCache;
+
+  private final CallPolicies callPolicies;
+
+  // One thread per duplex upload, up to grpc.stream.max-uploads, further uploads are turned away.
+  private final ExecutorService ingestExecutor;
+
+  public GrpcProxyService(GrpcRoutingService grpcRoutingService, RequestCoalescer requestCoalescer,
+                          ResponseCache responseCache, CallPolicies callPolicies,
+                          @Value("${grpc.stream.max-uploads}") int maxUploads) {
+    this.grpcRoutingService = grpcRoutingService;
+    this.requestCoalescer = requestCoalescer;
+    this.responseCache = responseCache;
+    this.callPolicies = callPolicies;
+    this.ingestExecutor = new ThreadPoolExecutor(0, maxUploads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+      Thread thread = new Thread(r, "grpc-request-ingest");
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
   public CallResults invokeMethod(GrpcMethodDefinition definition,
                                   Channel channel,
                                   CallOptions callOptions,
                                   List<String> requestJsonTexts) {
-
-    DescriptorProtos.FileDescriptorSet fileDescriptorSet = grpcReflectionService.getServiceByKey(definition.getFullServiceName());
-    if (fileDescriptorSet == null) {
-      return null;
+    try {
+      return invokeMethodAsync(definition, channel, callOptions, requestJsonTexts).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException("Caught exception while waiting for rpc", e);
     }
-    ImmutableList<Descriptors.FileDescriptor> fileDescriptors = GrpcReflectionUtils.ListFileDescriptor(fileDescriptorSet);
+  }
 
-    Descriptors.MethodDescriptor methodDescriptor = GrpcReflectionUtils.getServiceMethod(definition, fileDescriptors);
+  /**
+   * Starts the rpc and returns right away. The returned future completes on a grpc thread once the
+   * rpc terminates, so no caller thread is held for the backend round trip.
+   */
+  public CompletableFuture<CallResults> invokeMethodAsync(GrpcMethodDefinition definition,
+                                                          Channel channel,
+                                                          CallOptions callOptions,
+                                                          List<String> requestJsonTexts) {
 
-    ImmutableSet<Descriptors.Descriptor> listMessageTypes = GrpcReflectionUtils.listMessageTypes(fileDescriptors);
+    InvocationPlan plan = grpcRoutingService.plan(definition);
 
-    JsonFormat.TypeRegistry registry = JsonFormat.TypeRegistry.newBuilder().add(listMessageTypes).build();
+    List<DynamicMessage> requestMessages = GrpcReflectionUtils.parseToMessages(plan.getParser(),
+            plan.getMethodDescriptor().getInputType(), requestJsonTexts);
+    return invoke(plan, channel, callOptions, requestMessages);
+  }
 
-    List<DynamicMessage> requestMessages = GrpcReflectionUtils.parseToMessages(registry, methodDescriptor.getInputType(),
-            requestJsonTexts);
-    CallResults results = new CallResults();
-    StreamObserver<DynamicMessage> streamObserver = MessageWriter.newInstance(registry, results);
+  private CompletableFuture<CallResults> invoke(InvocationPlan plan,
+                                                Channel channel,
+                                                CallOptions callOptions,
+                                                List<DynamicMessage> requestMessages) {
+    CallResults results = new CallResults(plan.getPrinter());
+    StreamObserver<DynamicMessage> streamObserver = MessageWriter.newInstance(results);
     CallParams callParams = CallParams.builder()
-            .methodDescriptor(methodDescriptor)
+            .methodDescriptor(plan.getMethodDescriptor())
+            .grpcMethodDescriptor(plan.getGrpcMethodDescriptor())
             .channel(channel)
             .callOptions(callOptions)
             .requests(requestMessages)
             .responseObserver(streamObserver)
             .build();
-    try {
-      Objects.requireNonNull(call(callParams)).get();
-    } catch (InterruptedException | ExecutionException e) {
-      throw new RuntimeException("Caught exception while waiting for rpc", e);
+    return toResultFuture(Objects.requireNonNull(call(callParams)), results);
+  }
+
+  /**
+   * Starts a client or bidi streaming call and feeds it one request message per NDJSON line of the
+   * body, parsing each line only when the request stream is ready for it. The calling thread blocks
+   * while the body is uploaded, but memory use does not depend on the size of the body.
+   * <p>
+   * When the body can't be read or parsed, the failure is reported to the response observer before
+   * the call is cancelled, and then thrown.
+   */
+  public static ListenableFuture<Void> ingest(InvocationPlan plan,
+                                       Channel channel,
+                                       CallOptions callOptions,
+                                       InputStream body,
+                                       StreamObserver<DynamicMessage> responseObserver) {
+    checkRequestStream(plan);
+    MethodDescriptor.MethodType methodType = plan.getMethodType();
+    DoneObserver<DynamicMessage> doneObserver = new DoneObserver<>();
+    RequestStreamGate<DynamicMessage> gate = new RequestStreamGate<>();
+    StreamObserver<DynamicMessage> compositeObserver = CompositeStreamObserver.of(responseObserver, doneObserver, gate);
+    ClientCall<DynamicMessage, DynamicMessage> clientCall = channel.newCall(plan.getGrpcMethodDescriptor(), callOptions);
+    StreamObserver<DynamicMessage> requestObserver = methodType == MethodDescriptor.MethodType.BIDI_STREAMING
+            ? asyncBidiStreamingCall(clientCall, compositeObserver)
+            : asyncClientStreamingCall(clientCall, compositeObserver);
+
+    Descriptors.Descriptor inputType = plan.getMethodDescriptor().getInputType();
+    int lineNumber = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank()) {
+          continue;
+        }
+        DynamicMessage.Builder messageBuilder = DynamicMessage.newBuilder(inputType);
+        plan.getParser().merge(line, messageBuilder);
+        if (!gate.awaitReady()) {
+          // The rpc already ended, its outcome is reported through the completion future.
+          return doneObserver.getCompletionFuture();
+        }
+        requestObserver.onNext(messageBuilder.build());
+      }
+      requestObserver.onCompleted();
+    } catch (InvalidProtocolBufferException e) {
+      throw abort(responseObserver, requestObserver,
+              new IllegalArgumentException("Unable to parse json text at line " + lineNumber, e));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw abort(responseObserver, requestObserver, new RuntimeException("Interrupted while streaming requests", e));
+    } catch (IOException | RuntimeException e) {
+      throw abort(responseObserver, requestObserver,
+              new RuntimeException("Unable to read request stream at line " + lineNumber, e));
     }
-    return results;
+    return doneObserver.getCompletionFuture();
+  }
+
+  /**
+   * Reports the failure first, so the client sees it rather than the cancellation it causes.
+   */
+  private static RuntimeException abort(StreamObserver<DynamicMessage> responseObserver,
+                                        StreamObserver<DynamicMessage> requestObserver, RuntimeException failure) {
+    responseObserver.onError(failure);
+    requestObserver.onError(failure);
+    return failure;
+  }
+
+  private static void checkRequestStream(InvocationPlan plan) {
+    checkArgument(plan.getMethodType() == MethodDescriptor.MethodType.CLIENT_STREAMING
+                    || plan.getMethodType() == MethodDescriptor.MethodType.BIDI_STREAMING,
+            "Method %s does not take a request stream", plan.getFullMethodName());
+  }
+
+  private CompletableFuture<CallResults> toResultFuture(ListenableFuture<Void> done, CallResults results) {
+    CompletableFuture<CallResults> future = new CompletableFuture<>();
+    Futures.addCallback(done, new FutureCallback<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        future.complete(results);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        future.completeExceptionally(t);
+      }
+    }, MoreExecutors.directExecutor());
+    return future;
   }
 
   @Nullable
@@ -103,12 +239,12 @@ public class GrpcProxyService {
         return doneObserver.getCompletionFuture();
       case CLIENT_STREAMING:
         requestObserver = asyncClientStreamingCall(createCall(callParams), compositeObserver);
-        requests.forEach(responseObserver::onNext);
+        requests.forEach(requestObserver::onNext);
         requestObserver.onCompleted();
         return doneObserver.getCompletionFuture();
       case BIDI_STREAMING:
         requestObserver = asyncBidiStreamingCall(createCall(callParams), compositeObserver);
-        requests.forEach(responseObserver::onNext);
+        requests.forEach(requestObserver::onNext);
         requestObserver.onCompleted();
         return doneObserver.getCompletionFuture();
       default:
@@ -127,8 +263,11 @@ public class GrpcProxyService {
   }
 
   private ClientCall<DynamicMessage, DynamicMessage> createCall(CallParams callParams) {
-    return callParams.getChannel().newCall(createGrpcMethodDescriptor(callParams.getMethodDescriptor()),
-            callParams.getCallOptions());
+    io.grpc.MethodDescriptor<DynamicMessage, DynamicMessage> grpcMethodDescriptor = callParams.getGrpcMethodDescriptor();
+    if (grpcMethodDescriptor == null) {
+      grpcMethodDescriptor = createGrpcMethodDescriptor(callParams.getMethodDescriptor());
+    }
+    return callParams.getChannel().newCall(grpcMethodDescriptor, callParams.getCallOptions());
   }
 
   private io.grpc.MethodDescriptor<DynamicMessage, DynamicMessage> createGrpcMethodDescriptor(Descriptors.MethodDescriptor descriptor) {
@@ -140,39 +279,351 @@ public class GrpcProxyService {
             .build();
   }
 
-  public Result<Object> callService(String rawFullMethodName, String payload, String headers) {
-    Endpoint endpoint = getCurrentEndpoint();
-    GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
-    Map<String, Object> metaHeaderMap = JSON.parseObject(headers);
-    ManagedChannel serviceChannel = null;
+  public CompletableFuture<Result<Object>> callService(String rawFullMethodName, String payload, String headers,
+                                                       @Nullable Endpoint target, @Nullable CallPolicy policy) {
     try {
-      serviceChannel = ChannelFactory.create(endpoint.getHost(), endpoint.getPort(), metaHeaderMap);
-      CallResults results = invokeMethod(methodDefinition, serviceChannel, DEFAULT, singletonList(payload));
-      return Result.builder().code(200).result(results.asJSON()).build();
+      return callService(rawFullMethodName, payload, JSON.parseObject(headers), DEFAULT, target, policy);
     } catch (Exception e) {
-      logger.error(e.getMessage(), e);
-      String message = e.toString();
-      Metadata metadata = Status.trailersFromThrowable(e);
-      if (Objects.nonNull(metadata)) {
-        ErrorInfo errorInfo = metadata.get(ProtoUtils.keyForProto(ErrorInfo.getDefaultInstance()));
-        if (Objects.nonNull(errorInfo)) {
-          message = errorInfo.getMessage();
+      return CompletableFuture.failedFuture(translateException(e));
+    }
+  }
+
+  /**
+   * Calls the method on the targeted endpoint, or on the backend serving it when no target is given,
+   * by the method's call policy with the requested one laid over it.
+   */
+  public CompletableFuture<Result<Object>> callService(String rawFullMethodName, String payload,
+                                                       Map<String, Object> headers, CallOptions callOptions,
+                                                       @Nullable Endpoint target, @Nullable CallPolicy policy) {
+    return cancellable(() -> startService(rawFullMethodName, payload, headers, callOptions, target, policy));
+  }
+
+  private CompletableFuture<Result<Object>> startService(String rawFullMethodName, String payload,
+                                                         Map<String, Object> headers, CallOptions callOptions,
+                                                         @Nullable Endpoint target, @Nullable CallPolicy policy) {
+    try {
+      GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
+      GrpcRoutingService.Backend backend = grpcRoutingService.route(target, methodDefinition.getFullServiceName());
+      InvocationPlan plan = backend.getInvocationPlanCache().get(methodDefinition);
+      Channel serviceChannel = serviceChannel(backend, headers);
+      List<DynamicMessage> requestMessages = GrpcReflectionUtils.parseToMessages(plan.getParser(),
+              plan.getMethodDescriptor().getInputType(), singletonList(payload));
+      long ttlMillis = responseCache.ttlMillis(plan);
+      ResponseCache.CacheKey cacheKey = null;
+      if (ttlMillis > 0) {
+        cacheKey = responseCache.key(backend.getCatalog().getEndpoint(), plan,
+                GrpcReflectionUtils.toCanonicalBytes(requestMessages.get(0)), headers);
+        byte[] cached = responseCache.get(cacheKey);
+        if (cached != null) {
+          CallResults cachedResults = new CallResults(plan.getPrinter());
+          cachedResults.add(DynamicMessage.parseFrom(plan.getMethodDescriptor().getOutputType(), cached));
+          return CompletableFuture.completedFuture(Result.builder().code(200).result(cachedResults).build());
         }
       }
-      throw new RuntimeException(message);
-    } finally {
-      if (serviceChannel != null) {
-        serviceChannel.shutdown();
+      CallPolicy callPolicy = callPolicies.policy(plan, policy);
+      CallOptions options = callPolicies.apply(callPolicy, callOptions);
+      Supplier<CompletableFuture<CallResults>> call = plan.getMethodType() == MethodDescriptor.MethodType.UNARY
+              ? () -> callPolicies.execute(plan, callPolicy, options, () -> invoke(plan, serviceChannel, options, requestMessages))
+              : () -> invoke(plan, serviceChannel, options, requestMessages);
+      CompletableFuture<CallResults> results;
+      // A call with its own deadline or policy can't share an rpc started under someone else's.
+      if (requestCoalescer.isEnabled(plan) && callOptions.getDeadline() == null && policy == null) {
+        results = requestCoalescer.execute(backend.getCatalog().getEndpoint(), plan, requestMessages.get(0), headers, call);
+      } else {
+        results = call.get();
+      }
+      if (cacheKey != null) {
+        ResponseCache.CacheKey key = cacheKey;
+        results = results.thenApply(callResults -> {
+          responseCache.put(key, callResults.asMessages().get(0).toByteArray(), ttlMillis);
+          return callResults;
+        });
       }
+      return results
+              .handle((callResults, e) -> {
+                if (e != null) {
+                  throw translateException(e);
+                }
+                return Result.builder().code(200).result(callResults).build();
+              });
+    } catch (Exception e) {
+      return CompletableFuture.failedFuture(translateException(e));
+    }
+  }
+
+  /**
+   * Uploads the NDJSON body to a client or bidi streaming method and collects its responses.
+   */
+  public CompletableFuture<Result<Object>> callStreamingService(String rawFullMethodName, InputStream body, String headers,
+                                                                @Nullable Endpoint target, @Nullable CallPolicy policy) {
+    return cancellable(() -> startStreamingService(rawFullMethodName, body, headers, target, policy));
+  }
+
+  private CompletableFuture<Result<Object>> startStreamingService(String rawFullMethodName, InputStream body,
+                                                                  String headers, @Nullable Endpoint target,
+                                                                  @Nullable CallPolicy policy) {
+    try {
+      GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
+      GrpcRoutingService.Backend backend = grpcRoutingService.route(target, methodDefinition.getFullServiceName());
+      InvocationPlan plan = backend.getInvocationPlanCache().get(methodDefinition);
+      Channel serviceChannel = serviceChannel(backend, headers);
+      CallResults results = new CallResults(plan.getPrinter());
+      StreamObserver<DynamicMessage> streamObserver = MessageWriter.newInstance(results);
+      CallOptions options = callPolicies.apply(callPolicies.policy(plan, policy), DEFAULT);
+      return toResultFuture(ingest(plan, serviceChannel, options, body, streamObserver), results)
+              .handle((callResults, e) -> {
+                if (e != null) {
+                  throw translateException(e);
+                }
+                return Result.builder().code(200).result(callResults).build();
+              });
+    } catch (Exception e) {
+      return CompletableFuture.failedFuture(translateException(e));
     }
   }
 
-  private Endpoint getCurrentEndpoint() {
-    Endpoint endpoint = grpcReflectionService.getCurrentEndPoint();
-    if (Objects.isNull(endpoint) || grpcReflectionService.getStorage().isEmpty()) {
-      grpcReflectionService.loadGrpcServices();
-      endpoint = grpcReflectionService.getCurrentEndPoint();
+  /**
+   * Uploads the NDJSON body to a client or bidi streaming method while its responses are streamed
+   * back to the emitter. The upload runs on its own thread so both directions flow at once.
+   */
+  public void streamStreamingService(String rawFullMethodName, InputStream body, String headers,
+                                     @Nullable Endpoint target, @Nullable CallPolicy policy,
+                                     ResponseBodyEmitter emitter) {
+    try {
+      GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
+      GrpcRoutingService.Backend backend = grpcRoutingService.route(target, methodDefinition.getFullServiceName());
+      InvocationPlan plan = backend.getInvocationPlanCache().get(methodDefinition);
+      Channel serviceChannel = serviceChannel(backend, headers);
+      checkRequestStream(plan);
+      CallOptions options = callPolicies.apply(callPolicies.policy(plan, policy), DEFAULT);
+      StreamingMessageWriter<DynamicMessage> writer =
+              StreamingMessageWriter.newInstance(plan.getPrinter(), emitter, this::translateException);
+      ingestExecutor.execute(() -> {
+        try {
+          ingest(plan, serviceChannel, options, body, writer);
+        } catch (Exception e) {
+          // Already reported to the client by the writer.
+          logger.debug("Request stream for [{}] aborted", rawFullMethodName, e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      StreamingMessageWriter.writeError(emitter, new RuntimeException("Too many request streams in progress, try again later"));
+    } catch (Exception e) {
+      StreamingMessageWriter.writeError(emitter, translateException(e));
+    }
+  }
+
+  /**
+   * Forwards already serialized request bytes and returns the serialized responses without ever
+   * decoding them. A method which takes or returns a stream exchanges length-delimited messages.
+   */
+  public CompletableFuture<ResponseEntity<byte[]>> callRawService(String rawFullMethodName, byte[] body, String headers,
+                                                                  @Nullable Endpoint target, @Nullable CallPolicy policy) {
+    return cancellable(() -> startRawService(rawFullMethodName, body, headers, target, policy));
+  }
+
+  private CompletableFuture<ResponseEntity<byte[]>> startRawService(String rawFullMethodName, byte[] body, String headers,
+                                                                    @Nullable Endpoint target, @Nullable CallPolicy policy) {
+    try {
+      GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
+      GrpcRoutingService.Backend backend = grpcRoutingService.route(target, methodDefinition.getFullServiceName());
+      InvocationPlan plan = backend.getInvocationPlanCache().get(methodDefinition);
+      Map<String, Object> headerMap = JSON.parseObject(headers);
+      long ttlMillis = responseCache.ttlMillis(plan);
+      ResponseCache.CacheKey cacheKey = null;
+      if (ttlMillis > 0) {
+        cacheKey = responseCache.key(backend.getCatalog().getEndpoint(), plan, UnsafeByteOperations.unsafeWrap(body), headerMap);
+        byte[] cached = responseCache.get(cacheKey);
+        if (cached != null) {
+          return CompletableFuture.completedFuture(ResponseEntity.ok(cached));
+        }
+      }
+      ResponseCache.CacheKey key = cacheKey;
+      Channel serviceChannel = serviceChannel(backend, headerMap);
+      MethodDescriptor.MethodType methodType = plan.getMethodType();
+      CallPolicy callPolicy = callPolicies.policy(plan, policy);
+      CallOptions options = callPolicies.apply(callPolicy, DEFAULT);
+      if (methodType == MethodDescriptor.MethodType.UNARY) {
+        return callPolicies.execute(plan, callPolicy, options,
+                () -> unaryCall(serviceChannel, plan.getRawMethodDescriptor(), options, body))
+                .handle((responseBody, e) -> {
+                  if (e != null) {
+                    return rawError(e);
+                  }
+                  if (key != null) {
+                    responseCache.put(key, responseBody, ttlMillis);
+                  }
+                  return ResponseEntity.ok(responseBody);
+                });
+      }
+      ClientCall<byte[], byte[]> clientCall = serviceChannel.newCall(plan.getRawMethodDescriptor(), options);
+      List<byte[]> responses = new ArrayList<>();
+      DoneObserver<byte[]> doneObserver = new DoneObserver<>();
+      StreamObserver<byte[]> compositeObserver = CompositeStreamObserver.of(new StreamObserver<byte[]>() {
+        @Override
+        public void onNext(byte[] value) {
+          responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          // Reported through the completion future.
+        }
+
+        @Override
+        public void onCompleted() {
+          // Reported through the completion future.
+        }
+      }, doneObserver);
+      if (methodType.clientSendsOneMessage()) {
+        asyncServerStreamingCall(clientCall, body, compositeObserver);
+      } else {
+        StreamObserver<byte[]> requestObserver = methodType == MethodDescriptor.MethodType.BIDI_STREAMING
+                ? asyncBidiStreamingCall(clientCall, compositeObserver)
+                : asyncClientStreamingCall(clientCall, compositeObserver);
+        DelimitedMessages.split(body).forEach(requestObserver::onNext);
+        requestObserver.onCompleted();
+      }
+      CompletableFuture<ResponseEntity<byte[]>> future = new CompletableFuture<>();
+      Futures.addCallback(doneObserver.getCompletionFuture(), new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+          byte[] responseBody = methodType.serverSendsOneMessage() && responses.size() == 1
+                  ? responses.get(0)
+                  : DelimitedMessages.join(responses);
+          if (key != null) {
+            responseCache.put(key, responseBody, ttlMillis);
+          }
+          future.complete(ResponseEntity.ok(responseBody));
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          future.complete(rawError(t));
+        }
+      }, MoreExecutors.directExecutor());
+      return future;
+    } catch (Exception e) {
+      return CompletableFuture.completedFuture(rawError(e));
+    }
+  }
+
+  /**
+   * Starts the rpcs of a call inside a context of their own, cancelled once the returned future is
+   * done. Cancelling the future, as the controller does when the async request times out, so
+   * cancels the rpcs as well.
+   */
+  static <T> CompletableFuture<T> cancellable(Supplier<CompletableFuture<T>> call) {
+    Context.CancellableContext context = Context.current().withCancellation();
+    CompletableFuture<T> future;
+    Context previous = context.attach();
+    try {
+      future = call.get();
+    } finally {
+      context.detach(previous);
+    }
+    future.whenComplete((value, e) -> context.cancel(null));
+    return future;
+  }
+
+  /**
+   * Starts a unary call whose response completes the returned future.
+   */
+  static <ReqT, RespT> CompletableFuture<RespT> unaryCall(Channel channel, MethodDescriptor<ReqT, RespT> method,
+                                                          CallOptions callOptions, ReqT request) {
+    CompletableFuture<RespT> future = new CompletableFuture<>();
+    Futures.addCallback(futureUnaryCall(channel.newCall(method, callOptions), request),
+            new FutureCallback<RespT>() {
+              @Override
+              public void onSuccess(RespT result) {
+                future.complete(result);
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+              }
+            }, MoreExecutors.directExecutor());
+    return future;
+  }
+
+  /**
+   * Protobuf callers can't read a JSON envelope, so failures are reported as grpc status headers.
+   */
+  private ResponseEntity<byte[]> rawError(Throwable e) {
+    Status status = Status.fromThrowable(e);
+    String message = String.valueOf(translateException(e).getMessage());
+    return ResponseEntity.badRequest()
+            .header("grpc-status", String.valueOf(status.getCode().value()))
+            .header("grpc-message", URLEncoder.encode(message, StandardCharsets.UTF_8))
+            .build();
+  }
+
+  /**
+   * Writes every response message of the method to the emitter as soon as it arrives. Failures are
+   * reported inside the stream, so this method does not throw.
+   */
+  public void streamService(String rawFullMethodName, String payload, String headers, @Nullable Endpoint target,
+                            @Nullable CallPolicy policy, ResponseBodyEmitter emitter) {
+    try {
+      GrpcMethodDefinition methodDefinition = GrpcReflectionUtils.parseToMethodDefinition(rawFullMethodName);
+      GrpcRoutingService.Backend backend = grpcRoutingService.route(target, methodDefinition.getFullServiceName());
+      InvocationPlan plan = backend.getInvocationPlanCache().get(methodDefinition);
+      Channel serviceChannel = serviceChannel(backend, headers);
+      List<DynamicMessage> requestMessages = GrpcReflectionUtils.parseToMessages(plan.getParser(),
+              plan.getMethodDescriptor().getInputType(), singletonList(payload));
+      call(CallParams.builder()
+              .methodDescriptor(plan.getMethodDescriptor())
+              .grpcMethodDescriptor(plan.getGrpcMethodDescriptor())
+              .channel(serviceChannel)
+              .callOptions(callPolicies.apply(callPolicies.policy(plan, policy), DEFAULT))
+              .requests(requestMessages)
+              .responseObserver(StreamingMessageWriter.newInstance(plan.getPrinter(), emitter, this::translateException))
+              .build());
+    } catch (Exception e) {
+      StreamingMessageWriter.writeError(emitter, translateException(e));
+    }
+  }
+
+  /**
+   * Returns a channel to the backend, attaching the given headers.
+   */
+  public Channel serviceChannel(GrpcRoutingService.Backend backend, String headers) {
+    return serviceChannel(backend, JSON.parseObject(headers));
+  }
+
+  public Channel serviceChannel(GrpcRoutingService.Backend backend, Map<String, Object> metaHeaderMap) {
+    return ChannelFactory.withMetadata(grpcRoutingService.channel(backend), metaHeaderMap);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    ingestExecutor.shutdownNow();
+  }
+
+  public RuntimeException translateException(Throwable e) {
+    if (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
+    }
+    logger.error(e.getMessage(), e);
+    return new RuntimeException(errorMessage(e));
+  }
+
+  /**
+   * The message {@link #translateException} reports for the failure, without logging it.
+   */
+  public static String errorMessage(Throwable e) {
+    if (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
+    }
+    String message = e.toString();
+    Metadata metadata = Status.trailersFromThrowable(e);
+    if (Objects.nonNull(metadata)) {
+      ErrorInfo errorInfo = metadata.get(ProtoUtils.keyForProto(ErrorInfo.getDefaultInstance()));
+      if (Objects.nonNull(errorInfo)) {
+        message = errorInfo.getMessage();
+      }
     }
-    return endpoint;
+    return message;
   }
 }
@@ -1,23 +1,43 @@
 package com.esquel.gateway.service;
 
-import com.esquel.gateway.store.CacheStorage;
-import com.esquel.gateway.utils.ChannelFactory;
+import com.esquel.gateway.store.CatalogSnapshot;
+import com.esquel.gateway.store.DescriptorSetDirectorySource;
+import com.esquel.gateway.store.DescriptorSource;
+import com.esquel.gateway.store.ReflectionDescriptorSource;
+import com.esquel.gateway.store.DescriptorPool;
+import com.esquel.gateway.model.CatalogChange;
 import com.esquel.gateway.model.Endpoint;
-import com.esquel.gateway.utils.GrpcReflectionUtils;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.Descriptors;
-import io.grpc.ManagedChannel;
-import lombok.SneakyThrows;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 
@@ -26,39 +46,496 @@ public class GrpcReflectionService {
 
   private static final Logger logger = LoggerFactory.getLogger(GrpcProxyService.class);
 
+  private static final long PREFETCH_PAUSE_MS = 50;
+
   private final Endpoint endpoint;
 
-  private ManagedChannel channel;
+  private final GrpcChannelPool grpcChannelPool;
+
+  private final CatalogSnapshotStore catalogSnapshotStore;
+
+  private final DescriptorSetDirectorySource descriptorSetSource;
+
+  private Closeable descriptorSetWatch;
+
+  private final AtomicReference<CatalogSnapshot> snapshot = new AtomicReference<>(CatalogSnapshot.empty());
+
+  private final AtomicReference<Load> inFlightLoad = new AtomicReference<>();
+
+  private final ScheduledExecutorService refresher;
+
+  private final boolean lazy;
+
+  private final int prefetchBatch;
+
+  // Serializes publishing, readers never take it.
+  private final Object publishLock = new Object();
+
+  // Lazy mode: services being resolved right now, so concurrent first calls share one lookup.
+  private final Map<String, CompletableFuture<Void>> resolving = new ConcurrentHashMap<>();
+
+  private final ExecutorService prefetcher;
+
+  private final AtomicBoolean prefetching = new AtomicBoolean();
+
+  // Siblings share the prefetcher of the service that created them and must not shut it down.
+  private final boolean ownsPrefetcher;
+
+  private final long refreshPeriod;
 
-  private final CacheStorage<String, DescriptorProtos.FileDescriptorSet> FILE_DESCRIPTOR_SET_STORAGE;
+  private ScheduledFuture<?> scheduledRefresh;
 
-  private Endpoint currentEndpoint;
+  private final List<Runnable> publishListeners = new CopyOnWriteArrayList<>();
 
-  public GrpcReflectionService(Endpoint endpoint,@Value("${grpc.reflection.service.cache}") int expiredTime) {
+  /**
+   * The catalog is kept for {@code grpc.reflection.service.cache} seconds, but it is reloaded in the
+   * background once {@code grpc.reflection.refresh-ahead} of that time has passed. The old catalog
+   * keeps being served while the reload runs, and if the reload fails. A catalog saved by an earlier
+   * run is served until the first reload completes.
+   * <p>
+   * When {@code grpc.descriptor-set.dir} is set, the catalog of the configured endpoint is read from
+   * the descriptor sets in that directory instead of over reflection, and reloaded whenever they change.
+   * <p>
+   * With {@code grpc.reflection.lazy} only the list of services is loaded up front. A service is
+   * resolved on its first call, and the rest are resolved {@code grpc.reflection.prefetch-batch} at a
+   * time by a low priority background thread.
+   * <p>
+   * Nothing runs in the background before {@link #start}.
+   */
+  public GrpcReflectionService(Endpoint endpoint, GrpcChannelPool grpcChannelPool,
+                               CatalogSnapshotStore catalogSnapshotStore,
+                               @Value("${grpc.reflection.service.cache}") int expiredTime,
+                               @Value("${grpc.reflection.refresh-ahead}") double refreshAhead,
+                               @Value("${grpc.descriptor-set.dir}") String descriptorSetDir,
+                               @Value("${grpc.reflection.lazy}") boolean lazy,
+                               @Value("${grpc.reflection.prefetch-batch}") int prefetchBatch) {
+    this(endpoint, grpcChannelPool, catalogSnapshotStore, Math.max(1, (long) (expiredTime * refreshAhead)),
+            StringUtils.isBlank(descriptorSetDir) ? null : new DescriptorSetDirectorySource(Paths.get(descriptorSetDir)),
+            lazy, prefetchBatch,
+            Executors.newSingleThreadExecutor(r -> {
+              Thread thread = new Thread(r, "grpc-catalog-prefetcher");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }),
+            true);
+  }
+
+  private GrpcReflectionService(Endpoint endpoint, GrpcChannelPool grpcChannelPool,
+                                CatalogSnapshotStore catalogSnapshotStore, long refreshPeriod,
+                                DescriptorSetDirectorySource descriptorSetSource, boolean lazy, int prefetchBatch,
+                                ExecutorService prefetcher, boolean ownsPrefetcher) {
     this.endpoint = endpoint;
-    FILE_DESCRIPTOR_SET_STORAGE = new CacheStorage<>(
-            () -> CacheBuilder.newBuilder().expireAfterWrite(expiredTime, TimeUnit.SECONDS).build()
-    );
+    this.lazy = lazy;
+    this.prefetchBatch = prefetchBatch;
+    this.grpcChannelPool = grpcChannelPool;
+    this.catalogSnapshotStore = catalogSnapshotStore;
+    this.refreshPeriod = refreshPeriod;
+    // Every backend refreshes on its own thread, a slow one can't hold up the others.
+    this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "grpc-catalog-refresher-" + endpoint);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.prefetcher = prefetcher;
+    this.ownsPrefetcher = ownsPrefetcher;
+    catalogSnapshotStore.load(new Endpoint(endpoint.getHost(), endpoint.getPort())).ifPresent(snapshot::set);
+    this.descriptorSetSource = descriptorSetSource;
+  }
+
+  /**
+   * Loads the catalog in the background, then keeps it fresh and watches the descriptor sets.
+   */
+  @PostConstruct
+  public synchronized void start() {
+    if (Objects.nonNull(scheduledRefresh)) {
+      return;
+    }
+    descriptorSetWatch = watchDescriptorSets();
+    refresher.execute(this::refresh);
+    scheduledRefresh = refresher.scheduleWithFixedDelay(this::refresh, refreshPeriod, refreshPeriod, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates the catalog of another backend, configured like this one. It shares this service's
+   * channel pool and prefetch thread but refreshes on a thread of its own, is not saved to the
+   * snapshot file and starts loading right away.
+   */
+  public GrpcReflectionService forEndpoint(Endpoint endpoint) {
+    GrpcReflectionService sibling = new GrpcReflectionService(new Endpoint(endpoint.getHost(), endpoint.getPort()),
+            grpcChannelPool, new CatalogSnapshotStore(""), refreshPeriod, null, lazy, prefetchBatch, prefetcher, false);
+    sibling.start();
+    return sibling;
+  }
+
+  /**
+   * The endpoint this catalog is loaded from, or the configured one until the first load completes.
+   */
+  public Endpoint getEndpoint() {
+    Endpoint current = snapshot.get().getEndpoint();
+    return Objects.isNull(current) ? endpoint : current;
+  }
+
+  /**
+   * Runs the listener after every load that published a new catalog. Services resolved lazily
+   * don't notify, they were listed already.
+   */
+  public void onPublish(Runnable listener) {
+    publishListeners.add(listener);
   }
 
   public void loadGrpcServices() {
     loadGrpcServicesByIpAndPort(this.endpoint);
   }
 
-  @SneakyThrows
+  /**
+   * Loads the catalog of the endpoint and waits for it. A load of the same endpoint that is already
+   * running is joined instead of started again.
+   */
   public void loadGrpcServicesByIpAndPort(Endpoint endpoint) {
     try {
-      if (Objects.isNull(this.channel) || !Objects.equals(endpoint, this.currentEndpoint)) {
-        this.channel = ChannelFactory.create(endpoint.getHost(), endpoint.getPort());
+      load(endpoint).join();
+    } catch (CompletionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+  }
+
+  /**
+   * Returns the current catalog without waiting, it is empty until the first load completes.
+   */
+  public CatalogSnapshot currentSnapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * Returns the current catalog, loading it first if nothing has been loaded yet. Callers arriving
+   * together share that load, afterwards this never blocks.
+   */
+  public CatalogSnapshot getSnapshot() {
+    CatalogSnapshot current = snapshot.get();
+    if (current.isLoaded()) {
+      return current;
+    }
+    loadGrpcServices();
+    return snapshot.get();
+  }
+
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (Objects.nonNull(scheduledRefresh)) {
+      scheduledRefresh.cancel(false);
+    }
+    refresher.shutdownNow();
+    if (ownsPrefetcher) {
+      prefetcher.shutdownNow();
+    }
+    if (Objects.nonNull(descriptorSetWatch)) {
+      try {
+        descriptorSetWatch.close();
+      } catch (IOException e) {
+        logger.warn("Unable to stop watching descriptor sets", e);
       }
-      List<String> serviceNames = GrpcReflectionUtils.listAllServices(this.channel).get();
-      if (Objects.nonNull(serviceNames)) {
-        FILE_DESCRIPTOR_SET_STORAGE.removeAll();
-        for (String serviceName : serviceNames) {
-          FILE_DESCRIPTOR_SET_STORAGE.add(serviceName, GrpcReflectionUtils.lookupService(this.channel, serviceName).get());
+    }
+  }
+
+  private Closeable watchDescriptorSets() {
+    if (Objects.isNull(descriptorSetSource)) {
+      return null;
+    }
+    try {
+      return descriptorSetSource.watch(() -> refresher.execute(() -> {
+        Endpoint current = snapshot.get().getEndpoint();
+        // Only the configured endpoint is described by the directory.
+        if (Objects.isNull(current) || isConfiguredEndpoint(current)) {
+          refresh();
         }
+      }));
+    } catch (IOException e) {
+      logger.warn("Unable to watch descriptor sets, changes need a reload", e);
+      return null;
+    }
+  }
+
+  private boolean isConfiguredEndpoint(Endpoint target) {
+    return target.getHost().equals(endpoint.getHost()) && target.getPort() == endpoint.getPort();
+  }
+
+  private DescriptorSource sourceFor(Endpoint target) {
+    if (Objects.nonNull(descriptorSetSource) && isConfiguredEndpoint(target)) {
+      return descriptorSetSource;
+    }
+    return new ReflectionDescriptorSource(grpcChannelPool.preconnect(target));
+  }
+
+  /**
+   * Resolves the service if the catalog lists it without descriptors, see {@link #resolveServices}.
+   */
+  public CatalogSnapshot resolveService(String fullServiceName) {
+    return resolveServices(Collections.singletonList(fullServiceName));
+  }
+
+  /**
+   * Makes sure the descriptors of the given services are part of the catalog and returns it. Only
+   * services listed but not resolved yet are looked up, all of them over one reflection stream. A
+   * caller asking for a service that another caller is already resolving waits for that lookup.
+   */
+  public CatalogSnapshot resolveServices(Collection<String> services) {
+    CatalogSnapshot current = getSnapshot();
+    List<String> owned = new ArrayList<>();
+    List<CompletableFuture<Void>> waits = new ArrayList<>();
+    for (String service : services) {
+      if (!current.isPending(service)) {
+        continue;
       }
-      this.currentEndpoint = endpoint;
+      CompletableFuture<Void> resolution = new CompletableFuture<>();
+      CompletableFuture<Void> existing = resolving.putIfAbsent(service, resolution);
+      if (existing != null) {
+        waits.add(existing);
+      } else if (!snapshot.get().isPending(service)) {
+        // Resolved by someone else between our two checks.
+        resolving.remove(service);
+        resolution.complete(null);
+      } else {
+        owned.add(service);
+        waits.add(resolution);
+      }
+    }
+    if (!owned.isEmpty()) {
+      try {
+        resolve(current.getEndpoint(), owned);
+        owned.forEach(service -> resolving.remove(service).complete(null));
+      } catch (RuntimeException e) {
+        owned.forEach(service -> resolving.remove(service).completeExceptionally(e));
+      }
+    }
+    try {
+      waits.forEach(CompletableFuture::join);
+    } catch (CompletionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+    return snapshot.get();
+  }
+
+  private void resolve(Endpoint endpoint, List<String> services) {
+    long start = System.nanoTime();
+    // The files of the catalog being extended, which the resolved services have to link against.
+    Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors = new HashMap<>();
+    snapshot.get().getDescriptorPool().getFiles().forEach(file -> knownDescriptors.put(file.getName(), file.toProto()));
+    ImmutableMap<String, DescriptorProtos.FileDescriptorSet> resolved;
+    try {
+      resolved = sourceFor(endpoint).load(services, knownDescriptors);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Can not resolve grpc services!");
+    } catch (Exception e) {
+      logger.error(e.getMessage());
+      throw new RuntimeException("Can not resolve grpc services!");
+    }
+    synchronized (publishLock) {
+      CatalogSnapshot latest = snapshot.get();
+      if (!endpoint.equals(latest.getEndpoint())) {
+        // Another backend was loaded meanwhile, these descriptors belong to the old one.
+        return;
+      }
+      Map<String, DescriptorProtos.FileDescriptorSet> sets = new LinkedHashMap<>(latest.getFileDescriptorSets());
+      Map<String, HashCode> hashes = new LinkedHashMap<>(latest.getServiceHashes());
+      Set<String> added = new TreeSet<>();
+      resolved.forEach((service, set) -> {
+        if (latest.isPending(service)) {
+          sets.put(service, set);
+          hashes.put(service, Hashing.sha256().hashBytes(set.toByteArray()));
+          added.add(service);
+        }
+      });
+      if (added.isEmpty()) {
+        return;
+      }
+      long version = latest.getVersion() + 1;
+      snapshot.set(CatalogSnapshot.builder()
+              .version(version)
+              .endpoint(endpoint)
+              .serviceNames(latest.getServiceNames())
+              .fileDescriptorSets(ImmutableMap.copyOf(sets))
+              .serviceHashes(ImmutableMap.copyOf(hashes))
+              .descriptorPool(latest.getDescriptorPool().extend(Maps.filterKeys(resolved, added::contains).values()))
+              .change(CatalogChange.builder()
+                      .version(version)
+                      .previousVersion(latest.getVersion())
+                      .added(Collections.unmodifiableSet(added))
+                      .changed(Collections.emptySet())
+                      .removed(Collections.emptySet())
+                      .build())
+              .loadedAt(latest.getLoadedAt())
+              .build());
+    }
+    logger.debug("Resolved {} services from [{}] in {} ms", resolved.size(), endpoint,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Resolves the services still pending in the background, a batch at a time with a pause in
+   * between, so calls resolving their own service are never queued behind a long lookup. Services
+   * the backend can't describe are tried once.
+   */
+  private void prefetch() {
+    if (!lazy || prefetchBatch <= 0 || !prefetching.compareAndSet(false, true)) {
+      return;
+    }
+    prefetcher.execute(() -> {
+      Set<String> attempted = new HashSet<>();
+      try {
+        while (true) {
+          CatalogSnapshot current = snapshot.get();
+          List<String> pending = current.getServiceNames().stream()
+                  .filter(service -> current.isPending(service) && !attempted.contains(service))
+                  .limit(prefetchBatch)
+                  .collect(Collectors.toList());
+          if (pending.isEmpty()) {
+            break;
+          }
+          attempted.addAll(pending);
+          resolveServices(pending);
+          Thread.sleep(PREFETCH_PAUSE_MS);
+        }
+        CatalogSnapshot prefetched = snapshot.get();
+        logger.info("Prefetched {} services from [{}]", attempted.size(), prefetched.getEndpoint());
+        catalogSnapshotStore.save(prefetched);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        logger.warn("Prefetching services stopped, the rest are resolved on first use", e);
+      } finally {
+        prefetching.set(false);
+      }
+    });
+  }
+
+  private void refresh() {
+    Endpoint current = snapshot.get().getEndpoint();
+    Endpoint target = Objects.isNull(current) ? this.endpoint : current;
+    try {
+      load(target).join();
+    } catch (CompletionException e) {
+      logger.warn("Background reload of [{}] failed, keep serving the previous catalog", target);
+    }
+  }
+
+  private CompletableFuture<Void> load(Endpoint endpoint) {
+    Endpoint target = new Endpoint(endpoint.getHost(), endpoint.getPort());
+    while (true) {
+      Load load = new Load(target);
+      Load existing = inFlightLoad.compareAndExchange(null, load);
+      if (existing == null) {
+        try {
+          doLoad(target);
+          load.future.complete(null);
+          prefetch();
+        } catch (RuntimeException e) {
+          load.future.completeExceptionally(e);
+        } finally {
+          inFlightLoad.set(null);
+        }
+        return load.future;
+      }
+      if (existing.endpoint.equals(target)) {
+        return existing.future;
+      }
+      // Another endpoint is being loaded, wait for it and load ours afterwards.
+      existing.future.handle((v, e) -> null).join();
+    }
+  }
+
+  private void doLoad(Endpoint endpoint) {
+    try {
+      long start = System.nanoTime();
+      CatalogSnapshot previousSnapshot = snapshot.get();
+      boolean sameEndpoint = endpoint.equals(previousSnapshot.getEndpoint());
+      ImmutableMap<String, DescriptorProtos.FileDescriptorSet> previous = sameEndpoint
+              ? previousSnapshot.getFileDescriptorSets() : ImmutableMap.of();
+      Map<String, HashCode> previousHashes = sameEndpoint ? previousSnapshot.getServiceHashes() : ImmutableMap.of();
+      // Every file is read again: a shared import may change while the files declaring the services
+      // don't, and a server that doesn't send dependencies along would never show it.
+      Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors = ImmutableMap.of();
+
+      DescriptorSource source = sourceFor(endpoint);
+      ImmutableSet<String> serviceNames;
+      ImmutableMap<String, DescriptorProtos.FileDescriptorSet> catalog;
+      if (lazy) {
+        serviceNames = ImmutableSet.copyOf(source.listServices());
+        // Services resolved before are checked again, the others stay pending until used.
+        List<String> resolved = previous.keySet().stream().filter(serviceNames::contains).collect(Collectors.toList());
+        catalog = resolved.isEmpty() ? ImmutableMap.of() : source.load(resolved, knownDescriptors);
+      } else {
+        catalog = source.load(knownDescriptors);
+        serviceNames = catalog.keySet();
+      }
+
+      Map<String, HashCode> hashes = new LinkedHashMap<>();
+      Map<String, DescriptorProtos.FileDescriptorSet> sets = new LinkedHashMap<>();
+      Set<String> added = new TreeSet<>();
+      Set<String> changed = new TreeSet<>();
+      // Services only the previous endpoint had are gone as well.
+      Set<String> removed = new TreeSet<>(sameEndpoint ? previousHashes.keySet() : previousSnapshot.getServiceNames());
+      // Unchanged services keep their previous descriptor set, only what differs is replaced.
+      catalog.forEach((service, set) -> {
+        HashCode hash = Hashing.sha256().hashBytes(set.toByteArray());
+        HashCode previousHash = previousHashes.get(service);
+        hashes.put(service, hash);
+        removed.remove(service);
+        if (previousHash == null) {
+          added.add(service);
+        } else if (!previousHash.equals(hash)) {
+          changed.add(service);
+        }
+        sets.put(service, previousHash != null && previousHash.equals(hash) ? previous.get(service) : set);
+      });
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      if (sameEndpoint && added.isEmpty() && changed.isEmpty() && removed.isEmpty()
+              && serviceNames.equals(previousSnapshot.getServiceNames())) {
+        logger.info("Catalog of [{}] unchanged, checked {} services in {} ms", endpoint, catalog.size(), elapsed);
+        return;
+      }
+
+      CatalogSnapshot next;
+      synchronized (publishLock) {
+        // Loads are serialized, only services resolved meanwhile can have been published since.
+        CatalogSnapshot latest = snapshot.get();
+        if (latest != previousSnapshot && sameEndpoint) {
+          latest.getFileDescriptorSets().forEach((service, set) -> {
+            if (serviceNames.contains(service) && !sets.containsKey(service)) {
+              sets.put(service, set);
+              hashes.put(service, latest.getServiceHashes().get(service));
+            }
+          });
+        }
+        long version = latest.getVersion() + 1;
+        ImmutableMap<String, DescriptorProtos.FileDescriptorSet> fileDescriptorSets = ImmutableMap.copyOf(sets);
+        next = CatalogSnapshot.builder()
+                .version(version)
+                .endpoint(endpoint)
+                .serviceNames(serviceNames)
+                .fileDescriptorSets(fileDescriptorSets)
+                .serviceHashes(ImmutableMap.copyOf(hashes))
+                .descriptorPool(DescriptorPool.build(fileDescriptorSets.values()))
+                .change(CatalogChange.builder()
+                        .version(version)
+                        .previousVersion(latest.getVersion())
+                        .added(Collections.unmodifiableSet(added))
+                        .changed(Collections.unmodifiableSet(changed))
+                        .removed(Collections.unmodifiableSet(removed))
+                        .endpointChanged(!sameEndpoint)
+                        .build())
+                .loadedAt(System.currentTimeMillis())
+                .build();
+        snapshot.set(next);
+      }
+      logger.info("Loaded {} services from [{}] in {} ms, {} added, {} changed, {} removed", catalog.size(), endpoint,
+              elapsed, added.size(), changed.size(), removed.size());
+      catalogSnapshotStore.save(next);
+      publishListeners.forEach(Runnable::run);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Can not load grpc services!");
     } catch (Exception e) {
       logger.error(e.getMessage());
       throw new RuntimeException("Can not load grpc services!");
@@ -66,45 +543,39 @@ public class GrpcReflectionService {
   }
 
   public DescriptorProtos.FileDescriptorSet getServiceByKey(String fullServiceName) {
-    if (FILE_DESCRIPTOR_SET_STORAGE.isEmpty()) {
-      loadGrpcServices();
-    }
-    return FILE_DESCRIPTOR_SET_STORAGE.get(fullServiceName);
+    return resolveService(fullServiceName).getFileDescriptorSets().get(fullServiceName);
   }
 
 
   public ImmutableMap<String, DescriptorProtos.FileDescriptorSet> getStorage() {
-    return FILE_DESCRIPTOR_SET_STORAGE.getAll();
+    return snapshot.get().getFileDescriptorSets();
   }
 
   public Endpoint getCurrentEndPoint() {
-    return this.currentEndpoint;
+    return snapshot.get().getEndpoint();
   }
 
-  public ImmutableList<Descriptors.FileDescriptor> getFileDescriptorList() {
+  /**
+   * Returns a number that changes every time a different catalog is published, so that anything
+   * derived from the descriptors knows when to rebuild.
+   */
+  public long getCatalogVersion() {
+    return snapshot.get().getVersion();
+  }
 
-    ImmutableList.Builder<Descriptors.FileDescriptor> builder = ImmutableList.builder();
+  /**
+   * Returns the descriptors of the loaded catalog, loading it first if nothing has been loaded yet.
+   */
+  public DescriptorPool getDescriptorPool() {
+    return getSnapshot().getDescriptorPool();
+  }
 
-    FILE_DESCRIPTOR_SET_STORAGE.values().forEach(set -> {
-      Map<String, Descriptors.FileDescriptor> descriptorCache = new HashMap<>();
-      ImmutableMap<String, DescriptorProtos.FileDescriptorProto> descriptorProtoIndex = GrpcReflectionUtils.computeDescriptorProtoIndex(set);
-      for (DescriptorProtos.FileDescriptorProto descriptorProto : set.getFileList()) {
-        try {
-          builder.add(GrpcReflectionUtils.descriptorFromProto(descriptorProto, descriptorProtoIndex, descriptorCache));
-        } catch (Descriptors.DescriptorValidationException e) {
-          logger.warn("Skipped descriptor " + descriptorProto.getName() + " due to error", e);
-        }
-      }
-    });
-    return builder.build();
+  public ImmutableList<Descriptors.FileDescriptor> getFileDescriptorList() {
+    return snapshot.get().getDescriptorPool().getFiles();
   }
 
   public ImmutableList<Descriptors.ServiceDescriptor> getServiceDescriptorList() {
-    String ignoreService = "grpc.reflection.v1alpha.ServerReflection";
-    return ImmutableList.copyOf(getFileDescriptorList().stream().map(Descriptors.FileDescriptor::getServices).flatMap(Collection::stream)
-            .filter(s -> !ignoreService.equalsIgnoreCase(s.getFullName()))
-            .sorted(Comparator.comparing(Descriptors.ServiceDescriptor::getFullName))
-            .collect(Collectors.toList()));
+    return snapshot.get().getDescriptorPool().getServices();
   }
 
   public ImmutableList<Descriptors.MethodDescriptor> getMethodDescriptorList() {
@@ -112,4 +583,15 @@ public class GrpcReflectionService {
             .flatMap(Collection::stream)
             .collect(Collectors.toList()));
   }
+
+  private static class Load {
+
+    private final Endpoint endpoint;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private Load(Endpoint endpoint) {
+      this.endpoint = endpoint;
+    }
+  }
 }
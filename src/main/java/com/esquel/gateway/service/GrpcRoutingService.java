@@ -0,0 +1,339 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.GrpcMethodDefinition;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.model.RoutingStats;
+import com.esquel.gateway.store.CatalogSnapshot;
+import com.esquel.gateway.store.DescriptorPool;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.grpc.Channel;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Routes every service to the backend serving it, so one gateway fronts many backends at once.
+ * The configured endpoint is always the first backend, more are added with {@link #register}
+ * without touching the others. Each backend keeps its own catalog and invocation plans, and a
+ * routing table maps every full service name to its backend; it is rebuilt whenever a backend
+ * publishes a new catalog, and read without locking.
+ * <p>
+ * When two backends serve the same service, the one registered first wins.
+ * <p>
+ * A request may also name the endpoint it wants, see {@link #target}. Only registered backends
+ * may be targeted unless {@code grpc.routing.targets.allowed-hosts} lists the hosts, or {@code *}
+ * for any. Endpoints that are not registered get a catalog and channel of their own, kept in an LRU
+ * bounded by {@code grpc.routing.targets.max-bytes}, each target weighing its descriptors plus
+ * {@link #TARGET_OVERHEAD_BYTES} for its channel and loader, and dropped after
+ * {@code grpc.routing.targets.idle-timeout} seconds without use, each independently of the others.
+ */
+@Service("grpcRoutingService")
+public class GrpcRoutingService {
+
+  private static final Logger logger = LoggerFactory.getLogger(GrpcRoutingService.class);
+
+  /**
+   * Weight every target carries besides its descriptors, so targets with tiny catalogs can't fill
+   * the LRU by the million.
+   */
+  static final int TARGET_OVERHEAD_BYTES = 64 * 1024;
+
+  private static final String ANY_HOST = "*";
+
+  private final GrpcReflectionService grpcReflectionService;
+
+  private final GrpcChannelPool grpcChannelPool;
+
+  private final Backend defaultBackend;
+
+  // Registration order, which decides who serves a service offered by several backends.
+  private final List<Backend> backends = new ArrayList<>();
+
+  private final AtomicReference<ImmutableMap<String, Backend>> routes = new AtomicReference<>(ImmutableMap.of());
+
+  private final Cache<Endpoint, Backend> targets;
+
+  private final long targetsMaxBytes;
+
+  private final Set<String> allowedHosts;
+
+  public GrpcRoutingService(GrpcReflectionService grpcReflectionService, GrpcChannelPool grpcChannelPool,
+                            InvocationPlanCache invocationPlanCache,
+                            @Value("${grpc.routing.targets.max-bytes}") long targetsMaxBytes,
+                            @Value("${grpc.routing.targets.idle-timeout}") long targetsIdleTimeout,
+                            @Value("${grpc.routing.targets.allowed-hosts}") String allowedHosts) {
+    this.grpcReflectionService = grpcReflectionService;
+    this.grpcChannelPool = grpcChannelPool;
+    this.targetsMaxBytes = targetsMaxBytes;
+    this.allowedHosts = Arrays.stream(allowedHosts.split(","))
+            .map(String::trim)
+            .filter(host -> !host.isEmpty())
+            .collect(Collectors.toSet());
+    this.targets = CacheBuilder.newBuilder()
+            // Few entries, a single segment keeps the weight bound exact.
+            .concurrencyLevel(1)
+            .maximumWeight(targetsMaxBytes)
+            .weigher((Endpoint endpoint, Backend backend) -> backend.weight())
+            .expireAfterAccess(targetsIdleTimeout, TimeUnit.SECONDS)
+            .removalListener((RemovalListener<Endpoint, Backend>) this::onTargetRemoved)
+            .recordStats()
+            .build();
+    this.defaultBackend = new Backend(grpcReflectionService, invocationPlanCache);
+    this.backends.add(defaultBackend);
+    grpcReflectionService.onPublish(this::rebuild);
+    rebuild();
+  }
+
+  /**
+   * Returns the backend serving the service. Services no backend has listed go to the configured
+   * endpoint, which reports them as unknown.
+   */
+  public Backend route(String fullServiceName) {
+    Backend backend = routes.get().get(fullServiceName);
+    return backend != null ? backend : defaultBackend;
+  }
+
+  /**
+   * Returns the targeted backend, or the one serving the service when no target is given.
+   */
+  public Backend route(@Nullable Endpoint target, String fullServiceName) {
+    return target == null ? route(fullServiceName) : target(target);
+  }
+
+  /**
+   * Returns the backend at the endpoint. Registered backends are used as they are. Any other
+   * endpoint must be on an allowed host, then the first request loads its catalog while concurrent
+   * requests for it wait on that load, and later requests share it.
+   */
+  public Backend target(Endpoint endpoint) {
+    Endpoint key = new Endpoint(endpoint.getHost(), endpoint.getPort());
+    Backend registered;
+    synchronized (this) {
+      registered = find(key);
+    }
+    if (registered != null) {
+      return registered;
+    }
+    if (!allowedHosts.contains(ANY_HOST) && !allowedHosts.contains(key.getHost())) {
+      throw new IllegalArgumentException("Endpoint " + key + " is not allowed as a target");
+    }
+    try {
+      return targets.get(key, () -> loadTarget(key));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+  }
+
+  public InvocationPlan plan(GrpcMethodDefinition definition) {
+    return route(definition.getFullServiceName()).getInvocationPlanCache().get(definition);
+  }
+
+  /**
+   * Returns the shared channel to the backend.
+   */
+  public Channel channel(Backend backend) {
+    return grpcChannelPool.acquire(backend.getCatalog().getSnapshot().getEndpoint());
+  }
+
+  /**
+   * Adds the backend and waits for its catalog, or reloads it if it is registered already.
+   */
+  public void register(Endpoint endpoint) {
+    Backend backend;
+    synchronized (this) {
+      backend = find(endpoint);
+      if (backend == null) {
+        GrpcReflectionService catalog = grpcReflectionService.forEndpoint(endpoint);
+        backend = new Backend(catalog, new InvocationPlanCache(catalog));
+        catalog.onPublish(this::rebuild);
+        backends.add(backend);
+        logger.info("Registered backend [{}]", endpoint);
+      }
+    }
+    // Requests targeting it use the registered backend from now on.
+    targets.invalidate(new Endpoint(endpoint.getHost(), endpoint.getPort()));
+    try {
+      backend.getCatalog().loadGrpcServices();
+    } catch (RuntimeException e) {
+      if (backend != defaultBackend) {
+        unregister(endpoint);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Removes a registered backend, its services are routed to the others again. The configured
+   * endpoint can't be removed.
+   */
+  public boolean unregister(Endpoint endpoint) {
+    Backend backend;
+    synchronized (this) {
+      backend = find(endpoint);
+      if (backend == null || backend == defaultBackend) {
+        return false;
+      }
+      backends.remove(backend);
+    }
+    backend.getCatalog().shutdown();
+    rebuild();
+    logger.info("Unregistered backend [{}]", endpoint);
+    return true;
+  }
+
+  /**
+   * Reloads the catalog of every backend.
+   */
+  public void reload() {
+    getBackends().forEach(backend -> backend.getCatalog().loadGrpcServices());
+  }
+
+  public synchronized ImmutableList<Backend> getBackends() {
+    return ImmutableList.copyOf(backends);
+  }
+
+  public RoutingStats stats() {
+    ImmutableMap<String, Backend> current = routes.get();
+    CacheStats targetStats = targets.stats();
+    return RoutingStats.builder()
+            .routes(current.size())
+            .backends(getBackends().stream()
+                    .map(backend -> backendStats(backend, (int) current.values().stream().filter(b -> b == backend).count()))
+                    .collect(Collectors.toList()))
+            .targets(targets.asMap().values().stream()
+                    .map(backend -> backendStats(backend, 0))
+                    .sorted(Comparator.comparing(RoutingStats.BackendStats::getEndpoint))
+                    .collect(Collectors.toList()))
+            .targetBytes(targets.asMap().values().stream().mapToLong(Backend::weight).sum())
+            .targetMaxBytes(targetsMaxBytes)
+            .targetLoads(targetStats.loadCount())
+            .targetEvictions(targetStats.evictionCount())
+            .build();
+  }
+
+  private static RoutingStats.BackendStats backendStats(Backend backend, int routed) {
+    CatalogSnapshot snapshot = backend.getCatalog().currentSnapshot();
+    return RoutingStats.BackendStats.builder()
+            .endpoint(backend.getCatalog().getEndpoint().toString())
+            .catalogVersion(snapshot.getVersion())
+            .services(snapshot.getServiceNames().size())
+            .routed(routed)
+            .bytes(backend.bytes())
+            .loadedAt(snapshot.getLoadedAt())
+            .build();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    targets.invalidateAll();
+    getBackends().stream().filter(backend -> backend != defaultBackend)
+            .forEach(backend -> backend.getCatalog().shutdown());
+  }
+
+  private Backend loadTarget(Endpoint endpoint) {
+    GrpcReflectionService catalog = grpcReflectionService.forEndpoint(endpoint);
+    try {
+      catalog.loadGrpcServices();
+    } catch (RuntimeException e) {
+      catalog.shutdown();
+      throw e;
+    }
+    logger.info("Loaded target backend [{}]", endpoint);
+    return new Backend(catalog, new InvocationPlanCache(catalog));
+  }
+
+  private void onTargetRemoved(RemovalNotification<Endpoint, Backend> notification) {
+    Endpoint endpoint = notification.getKey();
+    notification.getValue().getCatalog().shutdown();
+    synchronized (this) {
+      if (find(endpoint) != null) {
+        // Registered meanwhile, the channel is still in use.
+        return;
+      }
+    }
+    grpcChannelPool.release(endpoint);
+    logger.info("Dropped target backend [{}], {}", endpoint, notification.getCause());
+  }
+
+  private Backend find(Endpoint endpoint) {
+    for (Backend backend : backends) {
+      Endpoint current = backend.getCatalog().getEndpoint();
+      if (current.getHost().equals(endpoint.getHost()) && current.getPort() == endpoint.getPort()) {
+        return backend;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void rebuild() {
+    Map<String, Backend> index = new HashMap<>();
+    for (Backend backend : backends) {
+      for (String service : backend.getCatalog().currentSnapshot().getServiceNames()) {
+        Backend existing = index.putIfAbsent(service, backend);
+        if (existing != null && !DescriptorPool.REFLECTION_SERVICE.equals(service)) {
+          logger.warn("Service [{}] is served by [{}], ignored on [{}]", service,
+                  existing.getCatalog().getEndpoint(), backend.getCatalog().getEndpoint());
+        }
+      }
+    }
+    routes.set(ImmutableMap.copyOf(index));
+  }
+
+  /**
+   * One backend: its catalog and the plans compiled from it.
+   */
+  @Getter
+  public static class Backend {
+
+    private final GrpcReflectionService catalog;
+
+    private final InvocationPlanCache invocationPlanCache;
+
+    private Backend(GrpcReflectionService catalog, InvocationPlanCache invocationPlanCache) {
+      this.catalog = catalog;
+      this.invocationPlanCache = invocationPlanCache;
+    }
+
+    /**
+     * Serialized size of the descriptors loaded, in bytes. In lazy mode this grows as services are
+     * resolved, the LRU only weighs a backend when it is loaded.
+     */
+    private long bytes() {
+      return catalog.currentSnapshot().getDescriptorPool().getFiles().stream()
+              .mapToLong(file -> file.toProto().getSerializedSize())
+              .sum();
+    }
+
+    /**
+     * What the backend counts against the targets LRU: its descriptors plus a fixed overhead.
+     */
+    private int weight() {
+      return (int) Math.min(Integer.MAX_VALUE, bytes() + TARGET_OVERHEAD_BYTES);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.CatalogChange;
+import com.esquel.gateway.model.GrpcMethodDefinition;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.store.CatalogSnapshot;
+import com.esquel.gateway.store.DescriptorPool;
+import com.esquel.gateway.utils.ByteArrayMarshaller;
+import com.esquel.gateway.utils.DynamicMessageMarshaller;
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.util.JsonFormat;
+import io.grpc.MethodDescriptor;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Caches {@link InvocationPlan}s by full method name. The cache is tied to a catalog version: once
+ * {@link GrpcReflectionService} publishes a new catalog, plans of the services it changed are dropped
+ * and compiled again on first use.
+ */
+@Service("invocationPlanCache")
+public class InvocationPlanCache {
+
+  private final GrpcReflectionService grpcReflectionService;
+
+  private final AtomicReference<Plans> plans = new AtomicReference<>(new Plans(-1));
+
+  public InvocationPlanCache(GrpcReflectionService grpcReflectionService) {
+    this.grpcReflectionService = grpcReflectionService;
+  }
+
+  public InvocationPlan get(GrpcMethodDefinition definition) {
+    // Read the catalog once, so the plans and the descriptors they are compiled from always match.
+    CatalogSnapshot loaded = grpcReflectionService.getSnapshot();
+    // In lazy mode the first call of a service resolves its descriptors.
+    CatalogSnapshot snapshot = loaded.isPending(definition.getFullServiceName())
+            ? grpcReflectionService.resolveService(definition.getFullServiceName()) : loaded;
+    Plans current = plans.updateAndGet(p -> p.version >= snapshot.getVersion() ? p : next(p, snapshot));
+    String fullMethodName = definition.getFullMethodName();
+    InvocationPlan plan;
+    if (current.version != snapshot.getVersion()) {
+      // A newer catalog was published meanwhile, its plans must not be mixed with ours.
+      plan = compileService(snapshot.getDescriptorPool(), definition).get(fullMethodName);
+    } else {
+      plan = current.plans.get(fullMethodName);
+      if (plan == null) {
+        // Compile every method of the service at once, they share the same file descriptors.
+        compileService(snapshot.getDescriptorPool(), definition).forEach(current.plans::putIfAbsent);
+        plan = current.plans.get(fullMethodName);
+      }
+    }
+    if (plan == null) {
+      throw new IllegalArgumentException(
+              "Unable to find method " + definition.getMethodName()
+                      + " in service " + definition.getServiceName());
+    }
+    return plan;
+  }
+
+  /**
+   * Starts the plans of a new catalog version. When the catalog only moved one version ahead, plans
+   * of services it did not touch are carried over instead of compiled again.
+   */
+  private Plans next(Plans previous, CatalogSnapshot snapshot) {
+    Plans next = new Plans(snapshot.getVersion());
+    CatalogChange change = snapshot.getChange();
+    if (change != null && change.getPreviousVersion() == previous.version) {
+      previous.plans.forEach((fullMethodName, plan) -> {
+        if (!change.affects(plan.getMethodDescriptor().getService().getFullName())) {
+          next.plans.put(fullMethodName, plan);
+        }
+      });
+    }
+    return next;
+  }
+
+  private Map<String, InvocationPlan> compileService(DescriptorPool descriptorPool, GrpcMethodDefinition definition) {
+    Descriptors.ServiceDescriptor service = descriptorPool.findService(definition.getFullServiceName());
+    if (service == null) {
+      throw new IllegalArgumentException("Unable to find service with name: " + definition.getFullServiceName());
+    }
+    JsonFormat.TypeRegistry registry = descriptorPool.getTypeRegistry();
+    JsonFormat.Parser parser = JsonFormat.parser().usingTypeRegistry(registry);
+    JsonFormat.Printer printer = JsonFormat.printer().usingTypeRegistry(registry).includingDefaultValueFields()
+            .omittingInsignificantWhitespace();
+
+    Map<String, InvocationPlan> compiled = new ConcurrentHashMap<>();
+    for (Descriptors.MethodDescriptor method : service.getMethods()) {
+      String fullMethodName = GrpcReflectionUtils.fetchFullMethodName(method);
+      compiled.put(fullMethodName, InvocationPlan.builder()
+              .fullMethodName(fullMethodName)
+              .methodDescriptor(method)
+              .methodType(GrpcReflectionUtils.fetchMethodType(method))
+              .grpcMethodDescriptor(createGrpcMethodDescriptor(method))
+              .rawMethodDescriptor(createRawMethodDescriptor(method))
+              .typeRegistry(registry)
+              .parser(parser)
+              .printer(printer)
+              .build());
+    }
+    return compiled;
+  }
+
+  private static MethodDescriptor<DynamicMessage, DynamicMessage> createGrpcMethodDescriptor(Descriptors.MethodDescriptor descriptor) {
+    return MethodDescriptor.<DynamicMessage, DynamicMessage>newBuilder()
+            .setType(GrpcReflectionUtils.fetchMethodType(descriptor))
+            .setFullMethodName(GrpcReflectionUtils.fetchFullMethodName(descriptor))
+            .setRequestMarshaller(new DynamicMessageMarshaller(descriptor.getInputType()))
+            .setResponseMarshaller(new DynamicMessageMarshaller(descriptor.getOutputType()))
+            .build();
+  }
+
+  private static MethodDescriptor<byte[], byte[]> createRawMethodDescriptor(Descriptors.MethodDescriptor descriptor) {
+    return MethodDescriptor.<byte[], byte[]>newBuilder()
+            .setType(GrpcReflectionUtils.fetchMethodType(descriptor))
+            .setFullMethodName(GrpcReflectionUtils.fetchFullMethodName(descriptor))
+            .setRequestMarshaller(ByteArrayMarshaller.INSTANCE)
+            .setResponseMarshaller(ByteArrayMarshaller.INSTANCE)
+            .build();
+  }
+
+  private static class Plans {
+
+    private final long version;
+
+    private final Map<String, InvocationPlan> plans = new ConcurrentHashMap<>();
+
+    private Plans(long version) {
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.CallResults;
+import com.esquel.gateway.model.CoalescingStats;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DynamicMessage;
+import io.grpc.Context;
+import io.grpc.MethodDescriptor;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Lets concurrent identical unary calls share one backend rpc. Only methods listed in
+ * {@code grpc.coalescing.methods} take part, since sharing is only safe for read-only methods.
+ * Calls are identical when they have the same method, the same deterministically serialized
+ * request and the same forwarded metadata. A call only joins an rpc that is still in flight,
+ * results are never kept once it completes.
+ */
+@Service("requestCoalescer")
+public class RequestCoalescer {
+
+  private final Set<String> methods;
+
+  private final Map<CallKey, CompletableFuture<CallResults>> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder calls = new LongAdder();
+
+  private final LongAdder backendCalls = new LongAdder();
+
+  public RequestCoalescer(@Value("${grpc.coalescing.methods}") String methods) {
+    this.methods = Arrays.stream(methods.split(","))
+            .map(String::trim)
+            .filter(method -> !method.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+  }
+
+  public boolean isEnabled(InvocationPlan plan) {
+    return plan.getMethodType() == MethodDescriptor.MethodType.UNARY && methods.contains(plan.getFullMethodName());
+  }
+
+  /**
+   * Joins the in-flight rpc for an identical call, or starts one with {@code call}. The returned
+   * future is shared by every caller, so callers must only chain on it.
+   */
+  public CompletableFuture<CallResults> execute(Endpoint endpoint,
+                                                InvocationPlan plan,
+                                                DynamicMessage request,
+                                                Map<String, Object> headers,
+                                                Supplier<CompletableFuture<CallResults>> call) {
+    calls.increment();
+    CallKey key = new CallKey(endpoint.toString(), plan.getFullMethodName(), GrpcReflectionUtils.toCanonicalBytes(request),
+            canonicalHeaders(headers));
+    CompletableFuture<CallResults> leader = new CompletableFuture<>();
+    CompletableFuture<CallResults> existing = inFlight.putIfAbsent(key, leader);
+    if (existing != null) {
+      return existing;
+    }
+    backendCalls.increment();
+    // The rpc serves every caller, so the leader giving up must not cancel it.
+    Context forked = Context.current().fork();
+    Context previous = forked.attach();
+    try {
+      call.get().whenComplete((results, e) -> {
+        // Leave the map before completing, so late arrivals start a fresh rpc instead of
+        // joining one whose result has already been handed out.
+        inFlight.remove(key, leader);
+        if (e != null) {
+          leader.completeExceptionally(e);
+        } else {
+          leader.complete(results);
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.remove(key, leader);
+      leader.completeExceptionally(e);
+    } finally {
+      forked.detach(previous);
+    }
+    return leader;
+  }
+
+  public CoalescingStats stats() {
+    long total = calls.sum();
+    long backend = backendCalls.sum();
+    ArrayList<String> methodList = new ArrayList<>(methods);
+    Collections.sort(methodList);
+    return CoalescingStats.builder()
+            .methods(methodList)
+            .calls(total)
+            .backendCalls(backend)
+            .coalesced(total - backend)
+            .inFlight(inFlight.size())
+            .ratio(total == 0 ? 0 : (double) (total - backend) / total)
+            .build();
+  }
+
+  private static String canonicalHeaders(Map<String, Object> headers) {
+    if (headers == null || headers.isEmpty()) {
+      return "";
+    }
+    StringBuilder builder = new StringBuilder();
+    new TreeMap<>(headers).forEach((k, v) -> builder.append(k).append('=').append(v).append('\n'));
+    return builder.toString();
+  }
+
+  @AllArgsConstructor
+  @EqualsAndHashCode
+  private static class CallKey {
+
+    private final String endpoint;
+
+    private final String fullMethodName;
+
+    private final ByteString request;
+
+    private final String headers;
+  }
+}
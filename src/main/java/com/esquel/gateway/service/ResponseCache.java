@@ -0,0 +1,212 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.model.ResponseCacheStats;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import io.grpc.MethodDescriptor;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Caches encoded responses of unary methods that are safe to serve again.
+ * <p>
+ * A method is cacheable when it is listed in {@code grpc.cache.methods} as {@code method=ttlSeconds},
+ * or, when {@code grpc.cache.no-side-effects} is on, when its descriptor declares
+ * {@code idempotency_level = NO_SIDE_EFFECTS}, in which case {@code grpc.cache.default-ttl} applies.
+ * Entries are keyed on the endpoint, the method, the request bytes and all forwarded metadata, so a
+ * response fetched with one caller's credentials is never served to another. Naming metadata keys
+ * in {@code grpc.cache.key-headers} narrows the key to those, for deployments where the rest of the
+ * metadata is known not to change the response. Entries are weighed by size and evicted once the
+ * cache holds more than {@code grpc.cache.max-bytes}, or once the longest configured TTL has passed.
+ */
+@Service("responseCache")
+public class ResponseCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+  private final Map<String, Long> ttlMillisByMethod;
+
+  private final long defaultTtlMillis;
+
+  private final boolean cacheNoSideEffects;
+
+  private final List<String> keyHeaders;
+
+  private final long maxBytes;
+
+  private final Cache<CacheKey, CachedResponse> cache;
+
+  public ResponseCache(@Value("${grpc.cache.methods}") String methods,
+                       @Value("${grpc.cache.default-ttl}") long defaultTtl,
+                       @Value("${grpc.cache.no-side-effects}") boolean cacheNoSideEffects,
+                       @Value("${grpc.cache.key-headers}") String keyHeaders,
+                       @Value("${grpc.cache.max-bytes}") long maxBytes) {
+    this.ttlMillisByMethod = Arrays.stream(methods.split(","))
+            .map(String::trim)
+            .filter(StringUtils::isNotEmpty)
+            .collect(Collectors.toUnmodifiableMap(
+                    entry -> StringUtils.substringBefore(entry, "=").trim(),
+                    entry -> TimeUnit.SECONDS.toMillis(entry.contains("=")
+                            ? Long.parseLong(StringUtils.substringAfter(entry, "=").trim())
+                            : defaultTtl)));
+    this.defaultTtlMillis = TimeUnit.SECONDS.toMillis(defaultTtl);
+    this.cacheNoSideEffects = cacheNoSideEffects;
+    this.keyHeaders = Arrays.stream(keyHeaders.split(","))
+            .map(String::trim)
+            .filter(StringUtils::isNotEmpty)
+            .sorted()
+            .collect(Collectors.toUnmodifiableList());
+    this.maxBytes = maxBytes;
+    long maxTtlMillis = Math.max(defaultTtlMillis, ttlMillisByMethod.values().stream()
+            .mapToLong(Long::longValue)
+            .max()
+            .orElse(0));
+    // Expiry is per method, so it is checked on read; expiring after the longest TTL keeps dead
+    // entries from holding weight until the size bound gets to them.
+    this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .expireAfterWrite(Math.max(1, maxTtlMillis), TimeUnit.MILLISECONDS)
+            .weigher((CacheKey key, CachedResponse value) -> key.weight() + value.response.length)
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Returns how long responses of the method may be served from the cache, zero when they may not.
+   */
+  public long ttlMillis(InvocationPlan plan) {
+    if (plan.getMethodType() != MethodDescriptor.MethodType.UNARY) {
+      return 0;
+    }
+    Long ttl = ttlMillisByMethod.get(plan.getFullMethodName());
+    if (ttl != null) {
+      return ttl;
+    }
+    if (cacheNoSideEffects && plan.getMethodDescriptor().getOptions().getIdempotencyLevel()
+            == DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS) {
+      return defaultTtlMillis;
+    }
+    return 0;
+  }
+
+  public CacheKey key(Endpoint endpoint, InvocationPlan plan, ByteString request,
+                      @Nullable Map<String, Object> headers) {
+    StringBuilder selected = new StringBuilder();
+    if (headers != null && keyHeaders.isEmpty()) {
+      new TreeMap<>(headers).forEach((name, value) -> selected.append(name).append('=').append(value).append('\n'));
+    } else if (headers != null) {
+      for (String name : keyHeaders) {
+        Object value = headers.get(name);
+        if (value != null) {
+          selected.append(name).append('=').append(value).append('\n');
+        }
+      }
+    }
+    return new CacheKey(endpoint.toString(), plan.getFullMethodName(), request, selected.toString());
+  }
+
+  @Nullable
+  public byte[] get(CacheKey key) {
+    CachedResponse cached = cache.getIfPresent(key);
+    if (cached == null) {
+      return null;
+    }
+    if (cached.expiresAt <= System.currentTimeMillis()) {
+      cache.asMap().remove(key, cached);
+      return null;
+    }
+    return cached.response;
+  }
+
+  public void put(CacheKey key, byte[] response, long ttlMillis) {
+    cache.put(key, new CachedResponse(response, System.currentTimeMillis() + ttlMillis));
+  }
+
+  /**
+   * Drops the entries of one method, of every method starting with the prefix, or everything
+   * when neither is given. Returns the number of entries removed.
+   */
+  public long invalidate(@Nullable String method, @Nullable String prefix) {
+    long before = cache.size();
+    if (StringUtils.isEmpty(method) && StringUtils.isEmpty(prefix)) {
+      cache.invalidateAll();
+    } else {
+      cache.asMap().keySet().removeIf(key -> Objects.equals(key.fullMethodName, method)
+              || (StringUtils.isNotEmpty(prefix) && key.fullMethodName.startsWith(prefix)));
+    }
+    cache.cleanUp();
+    long removed = Math.max(0, before - cache.size());
+    logger.info("Invalidated {} cached responses, method [{}], prefix [{}]", removed, method, prefix);
+    return removed;
+  }
+
+  public ResponseCacheStats stats() {
+    cache.cleanUp();
+    CacheStats stats = cache.stats();
+    long bytes = cache.asMap().entrySet().stream()
+            .mapToLong(e -> e.getKey().weight() + e.getValue().response.length)
+            .sum();
+    Map<String, Long> methods = new TreeMap<>();
+    ttlMillisByMethod.forEach((method, ttl) -> methods.put(method, TimeUnit.MILLISECONDS.toSeconds(ttl)));
+    return ResponseCacheStats.builder()
+            .entries(cache.size())
+            .bytes(bytes)
+            .maxBytes(maxBytes)
+            .hits(stats.hitCount())
+            .misses(stats.missCount())
+            .evictions(stats.evictionCount())
+            .hitRate(stats.hitRate())
+            .methods(Collections.unmodifiableMap(methods))
+            .build();
+  }
+
+  @AllArgsConstructor
+  @EqualsAndHashCode
+  public static class CacheKey {
+
+    // Backends targeted per request may serve the same method with different data.
+    private final String endpoint;
+
+    private final String fullMethodName;
+
+    private final ByteString request;
+
+    private final String headers;
+
+    private int weight() {
+      return endpoint.length() + fullMethodName.length() + request.size() + headers.length();
+    }
+  }
+
+  private static class CachedResponse {
+
+    private final byte[] response;
+
+    private final long expiresAt;
+
+    private CachedResponse(byte[] response, long expiresAt) {
+      this.response = response;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -2,8 +2,10 @@ package com.esquel.gateway.service;
 
 import com.esquel.gateway.constrants.EnvType;
 import com.esquel.gateway.constrants.FieldTypeEnum;
+import com.esquel.gateway.controller.GrpcController;
 import com.esquel.gateway.model.ApiDocument;
 import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.store.CatalogSnapshot;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.Descriptors;
 import org.slf4j.Logger;
@@ -25,23 +27,41 @@ public class UIService {
 
   public static final String DEFAULT_TAG = "grpc.GateWay";
 
-  private final GrpcReflectionService grpcReflectionService;
+  private final GrpcRoutingService grpcRoutingService;
 
   private final Endpoint endpoint;
 
-  public UIService(GrpcReflectionService grpcReflectionService,
+  public UIService(GrpcRoutingService grpcRoutingService,
                    Endpoint endpoint) {
-    this.grpcReflectionService = grpcReflectionService;
+    this.grpcRoutingService = grpcRoutingService;
     this.endpoint = endpoint;
   }
 
   public ApiDocument getApiDoc(Endpoint uiEndpoint) {
+    return getApiDoc(uiEndpoint, Collections.emptyList(), null);
+  }
 
-    if (grpcReflectionService.getStorage().isEmpty()) {
+  /**
+   * Builds the document of every registered backend, or of the targeted endpoint alone, for the
+   * given services only, or for every service when none are given. Only the given services are
+   * resolved, so in lazy mode a document without tags renders the services resolved so far and
+   * lists the others with a link that renders them.
+   */
+  public ApiDocument getApiDoc(Endpoint uiEndpoint, Collection<String> tags, Endpoint target) {
+
+    Set<String> rendered = tags == null || tags.isEmpty() ? null : new HashSet<>(tags);
+    List<GrpcRoutingService.Backend> backends = Objects.isNull(target)
+            ? grpcRoutingService.getBackends() : List.of(grpcRoutingService.target(target));
+    // Build the whole document from one catalog version per backend.
+    Map<GrpcRoutingService.Backend, CatalogSnapshot> snapshots = new LinkedHashMap<>();
+    for (GrpcRoutingService.Backend backend : backends) {
       try {
-        grpcReflectionService.loadGrpcServices();
+        snapshots.put(backend, Objects.isNull(rendered)
+                ? backend.getCatalog().getSnapshot()
+                : backend.getCatalog().resolveServices(rendered));
       } catch (Exception e) {
         logger.error(e.getMessage());
+        snapshots.put(backend, backend.getCatalog().currentSnapshot());
       }
     }
 
@@ -60,14 +80,15 @@ public class UIService {
     builder.host(uiEndpoint.getHost() + (ignorePort.contains(uiEndpoint.getPort()) ? "" : ":" + uiEndpoint.getPort()));
 
     //tags
-    Endpoint currentEndPoint = grpcReflectionService.getCurrentEndPoint();
+    String currentEndPoints = snapshots.values().stream().map(CatalogSnapshot::getEndpoint).filter(Objects::nonNull)
+            .map(Endpoint::toString).collect(Collectors.joining(", "));
 
     List<ApiDocument.Tag> tagList = new ArrayList<>();
 
     tagList.add(0, ApiDocument.Tag.builder().name(DEFAULT_TAG).externalDocs(new HashMap<>() {
       {
         put("description", "Current Endpoint");
-        put("url", Objects.isNull(currentEndPoint) ? "not found" : currentEndPoint.toString());
+        put("url", currentEndPoints.isEmpty() ? "not found" : currentEndPoints);
       }
     }).build());
 
@@ -75,12 +96,32 @@ public class UIService {
 
     try {
 
-      serviceDescriptorList = grpcReflectionService.getServiceDescriptorList();
+      // A service offered by several backends is shown once, for the backend it is routed to.
+      serviceDescriptorList = ImmutableList.copyOf(snapshots.entrySet().stream()
+              .flatMap(e -> e.getValue().getDescriptorPool().getServices().stream()
+                      .filter(s -> Objects.nonNull(target) || grpcRoutingService.route(s.getFullName()) == e.getKey()))
+              .filter(s -> Objects.isNull(rendered) || rendered.contains(s.getFullName()))
+              .sorted(Comparator.comparing(Descriptors.ServiceDescriptor::getFullName))
+              .collect(Collectors.toList()));
 
       List<ApiDocument.Tag> serviceTags = serviceDescriptorList.stream().map(s -> ApiDocument.Tag.builder().name(s.getFullName()).build()).collect(Collectors.toList());
 
       tagList.addAll(serviceTags);
 
+      tagList.addAll(snapshots.entrySet().stream()
+              .flatMap(e -> e.getValue().getServiceNames().stream()
+                      .filter(s -> e.getValue().isPending(s))
+                      .filter(s -> Objects.nonNull(target) || grpcRoutingService.route(s) == e.getKey()))
+              .filter(s -> Objects.isNull(rendered) || rendered.contains(s))
+              .sorted()
+              .map(s -> ApiDocument.Tag.builder().name(s).description("Not loaded yet").externalDocs(new HashMap<>() {
+                {
+                  put("description", "Load");
+                  put("url", "?tags=" + s);
+                }
+              }).build())
+              .collect(Collectors.toList()));
+
     } catch (Exception e) {
       logger.error(e.getMessage());
     }
@@ -122,7 +163,9 @@ public class UIService {
             })
             .build());
 
-    List<Descriptors.FileDescriptor> fileDescriptorsList = grpcReflectionService.getFileDescriptorList();
+    List<Descriptors.FileDescriptor> fileDescriptorsList = snapshots.values().stream()
+            .flatMap(snapshot -> snapshot.getDescriptorPool().getFiles().stream())
+            .collect(Collectors.toList());
 
     // build definitions
     for (Descriptors.FileDescriptor dfp : fileDescriptorsList) {
@@ -190,6 +233,8 @@ public class UIService {
     builder.operationId(method.getFullName());
     List<ApiDocument.Parameter> parameters = parseParameters(inputType);
     parameters.add(buildHeaderParameter());
+    parameters.add(buildTargetParameter());
+    parameters.add(buildPolicyParameter());
     builder.parameters(parameters);
     Map<String, ApiDocument.ResponseObject> response = parseResponse(outputType);
     builder.responses(response);
@@ -217,6 +262,26 @@ public class UIService {
     return builder.build();
   }
 
+  private ApiDocument.Parameter buildTargetParameter() {
+    ApiDocument.Parameter.ParameterBuilder builder = ApiDocument.Parameter.builder();
+    builder.name(GrpcController.TARGET_PARAMETER);
+    builder.description("host:port of the gRPC server to call instead of the routed one");
+    builder.in("query");
+    builder.type("string");
+    builder.required(false);
+    return builder.build();
+  }
+
+  private ApiDocument.Parameter buildPolicyParameter() {
+    ApiDocument.Parameter.ParameterBuilder builder = ApiDocument.Parameter.builder();
+    builder.name(GrpcController.POLICY_HEADER);
+    builder.description("Call policy laid over the method's own, e.g. deadline:500,attempts:1,hedges:0; a deadline may only shorten the configured one");
+    builder.in("header");
+    builder.type("string");
+    builder.required(false);
+    return builder.build();
+  }
+
   private List<ApiDocument.Parameter> parseParameters(Descriptors.Descriptor inputType) {
     List<ApiDocument.Parameter> parameters = new ArrayList<>();
     ApiDocument.Parameter.ParameterBuilder builder = ApiDocument.Parameter.builder();
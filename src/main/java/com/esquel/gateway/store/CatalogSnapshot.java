@@ -0,0 +1,76 @@
+package com.esquel.gateway.store;
+
+import com.esquel.gateway.model.CatalogChange;
+import com.esquel.gateway.model.Endpoint;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.protobuf.DescriptorProtos;
+import lombok.Builder;
+import lombok.Getter;
+
+import javax.annotation.Nullable;
+
+/**
+ * One published version of the catalog: the endpoint it was loaded from, the descriptor set of every
+ * service, their content hashes and the descriptor pool built from them. A snapshot never changes,
+ * a reload publishes a new one, so a reader that holds a snapshot always sees one consistent catalog.
+ */
+@Builder
+@Getter
+public class CatalogSnapshot {
+
+  private static final CatalogSnapshot EMPTY = CatalogSnapshot.builder()
+          .version(0)
+          .serviceNames(ImmutableSet.of())
+          .fileDescriptorSets(ImmutableMap.of())
+          .serviceHashes(ImmutableMap.of())
+          .descriptorPool(DescriptorPool.empty())
+          .build();
+
+  private final long version;
+
+  /**
+   * Null until a catalog has been loaded.
+   */
+  @Nullable
+  private final Endpoint endpoint;
+
+  /**
+   * Every service of the backend. In lazy mode this may hold services whose descriptors have not
+   * been resolved yet, otherwise it is the key set of {@link #fileDescriptorSets}.
+   */
+  private final ImmutableSet<String> serviceNames;
+
+  /**
+   * The descriptors of every resolved service.
+   */
+  private final ImmutableMap<String, DescriptorProtos.FileDescriptorSet> fileDescriptorSets;
+
+  private final ImmutableMap<String, HashCode> serviceHashes;
+
+  private final DescriptorPool descriptorPool;
+
+  /**
+   * What this version changed compared to the previous one, null for the empty snapshot.
+   */
+  @Nullable
+  private final CatalogChange change;
+
+  private final long loadedAt;
+
+  public static CatalogSnapshot empty() {
+    return EMPTY;
+  }
+
+  public boolean isLoaded() {
+    return endpoint != null;
+  }
+
+  /**
+   * True if the backend has the service but its descriptors have not been resolved yet.
+   */
+  public boolean isPending(String fullServiceName) {
+    return serviceNames.contains(fullServiceName) && !fileDescriptorSets.containsKey(fullServiceName);
+  }
+}
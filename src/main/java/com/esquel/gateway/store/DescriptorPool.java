@@ -0,0 +1,167 @@
+package com.esquel.gateway.store;
+
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.util.JsonFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Every descriptor of one catalog, built once. Files shared by several services, such as common
+ * imports and the well-known types, exist a single time, and services, methods and message types
+ * are looked up by full name in constant time. A pool is immutable, a reload builds a new one.
+ */
+public class DescriptorPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(DescriptorPool.class);
+
+  public static final String REFLECTION_SERVICE = "grpc.reflection.v1alpha.ServerReflection";
+
+  private static final DescriptorPool EMPTY = new DescriptorPool(ImmutableList.of());
+
+  private final ImmutableList<Descriptors.FileDescriptor> files;
+
+  private final ImmutableMap<String, Descriptors.ServiceDescriptor> services;
+
+  private final ImmutableMap<String, Descriptors.MethodDescriptor> methods;
+
+  private final ImmutableMap<String, Descriptors.Descriptor> messageTypes;
+
+  private final ImmutableList<Descriptors.ServiceDescriptor> exposedServices;
+
+  private final JsonFormat.TypeRegistry typeRegistry;
+
+  private DescriptorPool(ImmutableList<Descriptors.FileDescriptor> files) {
+    this.files = files;
+    Map<String, Descriptors.ServiceDescriptor> services = new HashMap<>();
+    Map<String, Descriptors.MethodDescriptor> methods = new HashMap<>();
+    Map<String, Descriptors.Descriptor> messageTypes = new HashMap<>();
+    JsonFormat.TypeRegistry.Builder registry = JsonFormat.TypeRegistry.newBuilder();
+    for (Descriptors.FileDescriptor file : files) {
+      for (Descriptors.ServiceDescriptor service : file.getServices()) {
+        services.put(service.getFullName(), service);
+        service.getMethods().forEach(method -> methods.put(GrpcReflectionUtils.fetchFullMethodName(method), method));
+      }
+      file.getMessageTypes().forEach(type -> indexMessageType(type, messageTypes));
+      registry.add(file.getMessageTypes());
+    }
+    this.services = ImmutableMap.copyOf(services);
+    this.methods = ImmutableMap.copyOf(methods);
+    this.messageTypes = ImmutableMap.copyOf(messageTypes);
+    this.exposedServices = ImmutableList.copyOf(services.values().stream()
+            .filter(s -> !REFLECTION_SERVICE.equalsIgnoreCase(s.getFullName()))
+            .sorted(Comparator.comparing(Descriptors.ServiceDescriptor::getFullName))
+            .collect(Collectors.toList()));
+    this.typeRegistry = registry.build();
+  }
+
+  public static DescriptorPool empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Builds the pool from per-service descriptor sets, which usually repeat the files they share.
+   */
+  public static DescriptorPool build(Collection<DescriptorProtos.FileDescriptorSet> descriptorSets) {
+    Map<String, DescriptorProtos.FileDescriptorProto> protos = new LinkedHashMap<>();
+    descriptorSets.forEach(set -> set.getFileList().forEach(file -> protos.putIfAbsent(file.getName(), file)));
+    ImmutableMap<String, DescriptorProtos.FileDescriptorProto> descriptorProtoIndex = ImmutableMap.copyOf(protos);
+    Map<String, Descriptors.FileDescriptor> descriptorCache = new HashMap<>();
+    ImmutableList.Builder<Descriptors.FileDescriptor> files = ImmutableList.builder();
+    for (DescriptorProtos.FileDescriptorProto descriptorProto : protos.values()) {
+      try {
+        files.add(GrpcReflectionUtils.descriptorFromProto(descriptorProto, descriptorProtoIndex, descriptorCache));
+      } catch (Descriptors.DescriptorValidationException | IllegalArgumentException e) {
+        logger.warn("Skipped descriptor " + descriptorProto.getName() + " due to error", e);
+      }
+    }
+    return new DescriptorPool(files.build());
+  }
+
+  /**
+   * Returns a pool that also holds the given descriptor sets. Files this pool already has are reused
+   * as they are, only the new ones are built.
+   */
+  public DescriptorPool extend(Collection<DescriptorProtos.FileDescriptorSet> descriptorSets) {
+    Map<String, DescriptorProtos.FileDescriptorProto> protos = new LinkedHashMap<>();
+    Map<String, Descriptors.FileDescriptor> descriptorCache = new HashMap<>();
+    for (Descriptors.FileDescriptor file : files) {
+      protos.put(file.getName(), file.toProto());
+      descriptorCache.put(file.getName(), file);
+    }
+    List<DescriptorProtos.FileDescriptorProto> added = new ArrayList<>();
+    descriptorSets.forEach(set -> set.getFileList().forEach(file -> {
+      if (protos.putIfAbsent(file.getName(), file) == null) {
+        added.add(file);
+      }
+    }));
+    if (added.isEmpty()) {
+      return this;
+    }
+    ImmutableMap<String, DescriptorProtos.FileDescriptorProto> descriptorProtoIndex = ImmutableMap.copyOf(protos);
+    ImmutableList.Builder<Descriptors.FileDescriptor> extended = ImmutableList.<Descriptors.FileDescriptor>builder().addAll(files);
+    for (DescriptorProtos.FileDescriptorProto descriptorProto : added) {
+      try {
+        extended.add(GrpcReflectionUtils.descriptorFromProto(descriptorProto, descriptorProtoIndex, descriptorCache));
+      } catch (Descriptors.DescriptorValidationException | IllegalArgumentException e) {
+        logger.warn("Skipped descriptor " + descriptorProto.getName() + " due to error", e);
+      }
+    }
+    return new DescriptorPool(extended.build());
+  }
+
+  private static void indexMessageType(Descriptors.Descriptor type, Map<String, Descriptors.Descriptor> messageTypes) {
+    messageTypes.put(type.getFullName(), type);
+    type.getNestedTypes().forEach(nested -> indexMessageType(nested, messageTypes));
+  }
+
+  public ImmutableList<Descriptors.FileDescriptor> getFiles() {
+    return files;
+  }
+
+  /**
+   * Services sorted by full name, without the reflection service itself.
+   */
+  public ImmutableList<Descriptors.ServiceDescriptor> getServices() {
+    return exposedServices;
+  }
+
+  @Nullable
+  public Descriptors.ServiceDescriptor findService(String fullServiceName) {
+    return services.get(fullServiceName);
+  }
+
+  /**
+   * Finds a method by its grpc name, {@code package.Service/Method}.
+   */
+  @Nullable
+  public Descriptors.MethodDescriptor findMethod(String fullMethodName) {
+    return methods.get(fullMethodName);
+  }
+
+  @Nullable
+  public Descriptors.Descriptor findMessageType(String fullName) {
+    return messageTypes.get(fullName);
+  }
+
+  public JsonFormat.TypeRegistry getTypeRegistry() {
+    return typeRegistry;
+  }
+
+  public boolean isEmpty() {
+    return files.isEmpty();
+  }
+}
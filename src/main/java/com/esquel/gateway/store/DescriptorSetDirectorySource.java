@@ -0,0 +1,126 @@
+package com.esquel.gateway.store;
+
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the files written by {@code protoc --include_imports --descriptor_set_out} from a directory,
+ * for backends which don't expose reflection. Every {@code .pb}, {@code .desc} and {@code .protoset}
+ * file in the directory is read, and a file imported by several of them is kept once.
+ */
+public class DescriptorSetDirectorySource implements DescriptorSource {
+
+  private static final Logger logger = LoggerFactory.getLogger(DescriptorSetDirectorySource.class);
+
+  private static final String GLOB = "*.{pb,desc,protoset}";
+
+  // Editors and build tools write several events per change, wait for them to settle.
+  private static final long SETTLE_MS = 500;
+
+  private final Path directory;
+
+  public DescriptorSetDirectorySource(Path directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public ImmutableMap<String, DescriptorProtos.FileDescriptorSet> load(
+          Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, GLOB)) {
+      stream.forEach(paths::add);
+    }
+    Collections.sort(paths);
+
+    Map<String, DescriptorProtos.FileDescriptorProto> files = new LinkedHashMap<>();
+    for (Path path : paths) {
+      DescriptorProtos.FileDescriptorSet set = DescriptorProtos.FileDescriptorSet.parseFrom(Files.readAllBytes(path));
+      set.getFileList().forEach(file -> files.putIfAbsent(file.getName(), file));
+    }
+
+    ImmutableMap.Builder<String, DescriptorProtos.FileDescriptorSet> catalog = ImmutableMap.builder();
+    files.values().forEach(file -> file.getServiceList().forEach(service -> {
+      String fullServiceName = file.getPackage().isEmpty()
+              ? service.getName()
+              : file.getPackage() + "." + service.getName();
+      catalog.put(fullServiceName, GrpcReflectionUtils.collectDependencies(file.getName(), files::get));
+    }));
+    logger.debug("Read {} files from {} descriptor sets in [{}]", files.size(), paths.size(), directory);
+    return catalog.build();
+  }
+
+  /**
+   * The files are local, so listing reads them all anyway.
+   */
+  @Override
+  public ImmutableList<String> listServices() throws IOException {
+    return load(ImmutableMap.of()).keySet().asList();
+  }
+
+  @Override
+  public ImmutableMap<String, DescriptorProtos.FileDescriptorSet> load(
+          Collection<String> services, Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors)
+          throws IOException {
+    ImmutableMap.Builder<String, DescriptorProtos.FileDescriptorSet> catalog = ImmutableMap.builder();
+    load(knownDescriptors).forEach((service, set) -> {
+      if (services.contains(service)) {
+        catalog.put(service, set);
+      }
+    });
+    return catalog.build();
+  }
+
+  /**
+   * Calls {@code onChange} on a daemon thread whenever files in the directory are created, changed
+   * or deleted, once the burst of events has settled. Closing the result stops watching.
+   */
+  public Closeable watch(Runnable onChange) throws IOException {
+    WatchService watchService = directory.getFileSystem().newWatchService();
+    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watchService.take();
+          do {
+            key.pollEvents();
+            key.reset();
+            key = watchService.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+          } while (key != null);
+          logger.info("Descriptor sets in [{}] changed", directory);
+          try {
+            onChange.run();
+          } catch (RuntimeException e) {
+            logger.warn("Unable to apply changed descriptor sets", e);
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // Stopped.
+      }
+    }, "descriptor-set-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return watchService;
+  }
+}
@@ -0,0 +1,36 @@
+package com.esquel.gateway.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Somewhere the descriptors of a backend's services can be read from.
+ */
+public interface DescriptorSource {
+
+  /**
+   * Returns every service of the backend with the files it needs, by full service name.
+   *
+   * @param knownDescriptors files known to be current, a source may reuse them instead of reading
+   *                         them again
+   */
+  ImmutableMap<String, DescriptorProtos.FileDescriptorSet> load(
+          Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors) throws Exception;
+
+  /**
+   * Returns the names of the backend's services without their descriptors.
+   */
+  ImmutableList<String> listServices() throws Exception;
+
+  /**
+   * Like {@link #load(Map)}, but only for the given services. Services the backend doesn't know are
+   * left out of the result.
+   */
+  ImmutableMap<String, DescriptorProtos.FileDescriptorSet> load(
+          Collection<String> services, Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors)
+          throws Exception;
+}
@@ -0,0 +1,40 @@
+package com.esquel.gateway.store;
+
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+import io.grpc.Channel;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Asks the backend itself over the server reflection service.
+ */
+public class ReflectionDescriptorSource implements DescriptorSource {
+
+  private final Channel channel;
+
+  public ReflectionDescriptorSource(Channel channel) {
+    this.channel = channel;
+  }
+
+  @Override
+  public ImmutableMap<String, DescriptorProtos.FileDescriptorSet> load(
+          Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors) throws Exception {
+    return GrpcReflectionUtils.loadCatalog(channel, knownDescriptors).get();
+  }
+
+  @Override
+  public ImmutableList<String> listServices() throws Exception {
+    return GrpcReflectionUtils.listAllServices(channel).get();
+  }
+
+  @Override
+  public ImmutableMap<String, DescriptorProtos.FileDescriptorSet> load(
+          Collection<String> services, Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors)
+          throws Exception {
+    return GrpcReflectionUtils.loadServices(channel, services, knownDescriptors).get();
+  }
+}
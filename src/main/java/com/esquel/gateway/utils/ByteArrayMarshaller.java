@@ -0,0 +1,40 @@
+package com.esquel.gateway.utils;
+
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor.Marshaller;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link Marshaller} which passes already serialized messages through untouched.
+ */
+public class ByteArrayMarshaller implements Marshaller<byte[]> {
+
+    public static final ByteArrayMarshaller INSTANCE = new ByteArrayMarshaller();
+
+    private ByteArrayMarshaller() {
+    }
+
+    @Override
+    public byte[] parse(InputStream inputStream) {
+        try {
+            return inputStream.readAllBytes();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read from the supplied input stream", e);
+        }
+    }
+
+    @Override
+    public InputStream stream(byte[] value) {
+        return new KnownLengthInputStream(value);
+    }
+
+    private static class KnownLengthInputStream extends ByteArrayInputStream implements KnownLength {
+
+        private KnownLengthInputStream(byte[] buf) {
+            super(buf);
+        }
+    }
+}
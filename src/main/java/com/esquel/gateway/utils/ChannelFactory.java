@@ -1,11 +1,18 @@
 package com.esquel.gateway.utils;
+import com.esquel.gateway.balancer.BalancerConfig;
+import com.esquel.gateway.balancer.ReplicaLoadBalancerProvider;
+import com.esquel.gateway.balancer.ReplicaNameResolverProvider;
+import com.esquel.gateway.model.Endpoint;
 import io.grpc.*;
 import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
 import static java.util.Collections.emptyMap;
+import static org.apache.commons.collections4.MapUtils.isEmpty;
 
 public class ChannelFactory {
 
@@ -21,6 +28,48 @@ public class ChannelFactory {
             .build();
   }
 
+  /**
+   * Creates a long-lived channel meant to be shared by many calls. Keep-alive pings detect dead
+   * connections early, and grpc's own idle mode is disabled because the pool evicts idle channels itself.
+   */
+  public static ManagedChannel createPooled(String host, int port, long keepAliveTime, long keepAliveTimeout) {
+    return NettyChannelBuilder.forAddress(host, port)
+            .usePlaintext()
+            .keepAliveTime(keepAliveTime, TimeUnit.SECONDS)
+            .keepAliveTimeout(keepAliveTimeout, TimeUnit.SECONDS)
+            .idleTimeout(30, TimeUnit.DAYS)
+            .enableRetry()
+            .build();
+  }
+
+  /**
+   * Creates a long-lived channel for an endpoint served by several replicas. Calls are spread over
+   * the replicas by the gateway's own balancer, configured through the channel's service config.
+   */
+  public static ManagedChannel createBalanced(Endpoint endpoint, List<Endpoint> replicas, BalancerConfig config,
+                                              long keepAliveTime, long keepAliveTimeout) {
+    ReplicaLoadBalancerProvider.register();
+    return NettyChannelBuilder.forTarget(ReplicaNameResolverProvider.register(endpoint, replicas))
+            .defaultServiceConfig(config.toServiceConfig())
+            .usePlaintext()
+            .keepAliveTime(keepAliveTime, TimeUnit.SECONDS)
+            .keepAliveTimeout(keepAliveTimeout, TimeUnit.SECONDS)
+            .idleTimeout(30, TimeUnit.DAYS)
+            .enableRetry()
+            .build();
+  }
+
+  /**
+   * Wraps a shared channel so that the given metadata is attached to every call made through it.
+   * The wrapper is cheap and leaves the underlying channel untouched.
+   */
+  public static Channel withMetadata(Channel channel, Map<String, Object> metaDataMap) {
+    if (isEmpty(metaDataMap)) {
+      return channel;
+    }
+    return ClientInterceptors.intercept(channel, metadataInterceptor(metaDataMap));
+  }
+
   private static ClientInterceptor metadataInterceptor(Map<String, Object> metaDataMap) {
     return new ClientInterceptor() {
       @Override
@@ -0,0 +1,46 @@
+package com.esquel.gateway.utils;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits and joins serialized messages which are each prefixed with their varint length, the
+ * framing used by {@code writeDelimitedTo} and {@code parseDelimitedFrom}.
+ */
+public class DelimitedMessages {
+
+  public static List<byte[]> split(byte[] bytes) {
+    List<byte[]> messages = new ArrayList<>();
+    CodedInputStream input = CodedInputStream.newInstance(bytes);
+    try {
+      while (!input.isAtEnd()) {
+        messages.add(input.readByteArray());
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed length-delimited message stream", e);
+    }
+    return messages;
+  }
+
+  public static byte[] join(List<byte[]> messages) {
+    int size = 0;
+    for (byte[] message : messages) {
+      size += CodedOutputStream.computeByteArraySizeNoTag(message);
+    }
+    byte[] bytes = new byte[size];
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      for (byte[] message : messages) {
+        output.writeByteArrayNoTag(message);
+      }
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to frame messages", e);
+    }
+    return bytes;
+  }
+}
@@ -1,29 +1,67 @@
 package com.esquel.gateway.utils;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.Parser;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
 import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.MethodDescriptor.PrototypeMarshaller;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * A {@link Marshaller} for dynamic messages.
+ * <p>
+ * Outgoing messages are handed to grpc as a {@link Drainable} {@link KnownLength} stream, so they are
+ * serialized once straight into the transport buffer. Incoming messages of known length are read
+ * into a single array and parsed with aliasing enabled, so bytes fields share that array instead of
+ * being copied again.
  */
-public class DynamicMessageMarshaller implements Marshaller<DynamicMessage> {
-    private final Descriptor messageDescriptor;
+public class DynamicMessageMarshaller implements PrototypeMarshaller<DynamicMessage> {
+    private final DynamicMessage prototype;
+    private final Parser<DynamicMessage> parser;
 
     public DynamicMessageMarshaller(Descriptor messageDescriptor) {
-        this.messageDescriptor = messageDescriptor;
+        this.prototype = DynamicMessage.getDefaultInstance(messageDescriptor);
+        this.parser = prototype.getParserForType();
+    }
+
+    @Override
+    public DynamicMessage getMessagePrototype() {
+        return prototype;
+    }
+
+    @Override
+    public Class<DynamicMessage> getMessageClass() {
+        return DynamicMessage.class;
     }
 
     @Override
     public DynamicMessage parse(InputStream inputStream) {
         try {
-            return DynamicMessage.newBuilder(messageDescriptor)
-                    .mergeFrom(inputStream, ExtensionRegistryLite.getEmptyRegistry())
-                    .build();
+            CodedInputStream codedInputStream;
+            if (inputStream instanceof KnownLength) {
+                int size = inputStream.available();
+                if (size == 0) {
+                    return prototype;
+                }
+                codedInputStream = CodedInputStream.newInstance(readFully(inputStream, size));
+                codedInputStream.enableAliasing(true);
+            } else {
+                codedInputStream = CodedInputStream.newInstance(inputStream);
+            }
+            // Large payloads are expected, grpc already enforces the inbound message size.
+            codedInputStream.setSizeLimit(Integer.MAX_VALUE);
+            DynamicMessage message = parser.parseFrom(codedInputStream, ExtensionRegistryLite.getEmptyRegistry());
+            codedInputStream.checkLastTagWas(0);
+            return message;
         } catch (IOException e) {
             throw new RuntimeException("Unable to merge from the supplied input stream", e);
         }
@@ -31,6 +69,89 @@ public class DynamicMessageMarshaller implements Marshaller<DynamicMessage> {
 
     @Override
     public InputStream stream(DynamicMessage abstractMessage) {
-        return abstractMessage.toByteString().newInput();
+        return new DynamicMessageInputStream(abstractMessage);
+    }
+
+    private static byte[] readFully(InputStream inputStream, int size) throws IOException {
+        byte[] buffer = new byte[size];
+        int position = 0;
+        while (position < size) {
+            int count = inputStream.read(buffer, position, size - position);
+            if (count == -1) {
+                throw new IOException("Stream ended after " + position + " of " + size + " bytes");
+            }
+            position += count;
+        }
+        return buffer;
+    }
+
+    /**
+     * Serializes the message lazily: grpc either drains it directly into its own buffer, or reads it,
+     * in which case it is written straight into the caller's array when that is large enough.
+     */
+    private static class DynamicMessageInputStream extends InputStream implements Drainable, KnownLength {
+        private DynamicMessage message;
+        private ByteArrayInputStream partial;
+
+        private DynamicMessageInputStream(DynamicMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int written;
+            if (message != null) {
+                written = message.getSerializedSize();
+                message.writeTo(target);
+                message = null;
+            } else if (partial != null) {
+                written = (int) partial.transferTo(target);
+                partial = null;
+            } else {
+                written = 0;
+            }
+            return written;
+        }
+
+        @Override
+        public int read() {
+            if (message != null) {
+                partial = new ByteArrayInputStream(message.toByteArray());
+                message = null;
+            }
+            return partial != null ? partial.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (message != null) {
+                int size = message.getSerializedSize();
+                if (size == 0) {
+                    message = null;
+                    partial = null;
+                    return -1;
+                }
+                if (len >= size) {
+                    CodedOutputStream output = CodedOutputStream.newInstance(b, off, size);
+                    message.writeTo(output);
+                    output.flush();
+                    output.checkNoSpaceLeft();
+                    message = null;
+                    partial = null;
+                    return size;
+                }
+                partial = new ByteArrayInputStream(message.toByteArray());
+                message = null;
+            }
+            return partial != null ? partial.read(b, off, len) : -1;
+        }
+
+        @Override
+        public int available() {
+            if (message != null) {
+                return message.getSerializedSize();
+            }
+            return partial != null ? partial.available() : 0;
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package com.esquel.gateway.utils;
 
+import com.esquel.gateway.handler.CatalogLoadHandler;
 import com.esquel.gateway.handler.ListServicesHandler;
 import com.esquel.gateway.handler.LookupServiceHandler;
 import com.esquel.gateway.model.GrpcMethodDefinition;
@@ -7,10 +8,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat;
 import io.grpc.Channel;
 import io.grpc.MethodDescriptor;
@@ -20,11 +24,19 @@ import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static io.grpc.MethodDescriptor.generateFullMethodName;
@@ -38,6 +50,8 @@ public class GrpcReflectionUtils {
 
   private static final long LOOKUP_RPC_DEADLINE_MS = 10_000;
 
+  private static final long CATALOG_RPC_DEADLINE_MS = 60_000;
+
   public static GrpcMethodDefinition parseToMethodDefinition(String rawMethodName) {
     checkArgument(isNotBlank(rawMethodName), "Raw method name can't be empty.");
     int methodSplitPosition = rawMethodName.lastIndexOf(".");
@@ -57,7 +71,11 @@ public class GrpcReflectionUtils {
 
   public static List<DynamicMessage> parseToMessages(JsonFormat.TypeRegistry registry, Descriptors.Descriptor descriptor,
                                               List<String> jsonTexts) {
-    JsonFormat.Parser parser = JsonFormat.parser().usingTypeRegistry(registry);
+    return parseToMessages(JsonFormat.parser().usingTypeRegistry(registry), descriptor, jsonTexts);
+  }
+
+  public static List<DynamicMessage> parseToMessages(JsonFormat.Parser parser, Descriptors.Descriptor descriptor,
+                                                     List<String> jsonTexts) {
     List<DynamicMessage> messages = new ArrayList<>();
     try {
       for (String jsonText : jsonTexts) {
@@ -71,6 +89,23 @@ public class GrpcReflectionUtils {
     }
   }
 
+  /**
+   * Serializes the message deterministically, so equal messages give equal bytes and the result
+   * can be used as a lookup key.
+   */
+  public static ByteString toCanonicalBytes(Message message) {
+    try {
+      ByteString.Output output = ByteString.newOutput(message.getSerializedSize());
+      CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+      codedOutput.useDeterministicSerialization();
+      message.writeTo(codedOutput);
+      codedOutput.flush();
+      return output.toByteString();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   public static MethodDescriptor.MethodType fetchMethodType(Descriptors.MethodDescriptor methodDescriptor) {
     boolean clientStreaming = methodDescriptor.toProto().getClientStreaming();
     boolean serverStreaming = methodDescriptor.toProto().getServerStreaming();
@@ -81,7 +116,7 @@ public class GrpcReflectionUtils {
     } else if (!clientStreaming) {
       return MethodDescriptor.MethodType.SERVER_STREAMING;
     } else {
-      return MethodDescriptor.MethodType.SERVER_STREAMING;
+      return MethodDescriptor.MethodType.CLIENT_STREAMING;
     }
   }
 
@@ -107,6 +142,59 @@ public class GrpcReflectionUtils {
     return lookupServiceHandler.start(requestStream);
   }
 
+  /**
+   * Loads the descriptors of every service exposed by the server over one reflection stream.
+   * The result maps each service name to the files it needs, see {@link CatalogLoadHandler}.
+   */
+  public static ListenableFuture<ImmutableMap<String, DescriptorProtos.FileDescriptorSet>> loadCatalog(Channel channel) {
+    return loadCatalog(channel, ImmutableMap.of());
+  }
+
+  public static ListenableFuture<ImmutableMap<String, DescriptorProtos.FileDescriptorSet>> loadCatalog(
+          Channel channel, Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors) {
+    CatalogLoadHandler catalogLoadHandler = new CatalogLoadHandler(knownDescriptors);
+    StreamObserver<ServerReflectionRequest> requestStream = ServerReflectionGrpc.newStub(channel)
+            .withDeadlineAfter(CATALOG_RPC_DEADLINE_MS, TimeUnit.MILLISECONDS)
+            .serverReflectionInfo(catalogLoadHandler);
+    return catalogLoadHandler.start(requestStream);
+  }
+
+  /**
+   * Loads the descriptors of the given services only, over one reflection stream.
+   */
+  public static ListenableFuture<ImmutableMap<String, DescriptorProtos.FileDescriptorSet>> loadServices(
+          Channel channel, Collection<String> services, Map<String, DescriptorProtos.FileDescriptorProto> knownDescriptors) {
+    CatalogLoadHandler catalogLoadHandler = new CatalogLoadHandler(knownDescriptors, services);
+    StreamObserver<ServerReflectionRequest> requestStream = ServerReflectionGrpc.newStub(channel)
+            .withDeadlineAfter(CATALOG_RPC_DEADLINE_MS, TimeUnit.MILLISECONDS)
+            .serverReflectionInfo(catalogLoadHandler);
+    return catalogLoadHandler.start(requestStream);
+  }
+
+  /**
+   * Collects the file and everything it imports, directly or not, into one set.
+   */
+  public static DescriptorProtos.FileDescriptorSet collectDependencies(
+          String file, Function<String, DescriptorProtos.FileDescriptorProto> lookup) {
+    Set<String> visited = new LinkedHashSet<>();
+    Deque<String> pending = new ArrayDeque<>();
+    pending.push(file);
+    DescriptorProtos.FileDescriptorSet.Builder builder = DescriptorProtos.FileDescriptorSet.newBuilder();
+    while (!pending.isEmpty()) {
+      String name = pending.pop();
+      if (!visited.add(name)) {
+        continue;
+      }
+      DescriptorProtos.FileDescriptorProto descriptor = lookup.apply(name);
+      if (descriptor == null) {
+        logger.warn("Missing dependency [{}] of [{}]", name, file);
+        continue;
+      }
+      builder.addFile(descriptor);
+      descriptor.getDependencyList().forEach(pending::push);
+    }
+    return builder.build();
+  }
 
   public static ImmutableList<Descriptors.FileDescriptor> ListFileDescriptor(DescriptorProtos.FileDescriptorSet descriptorSet) {
     ImmutableMap<String, DescriptorProtos.FileDescriptorProto> descriptorProtoIndex =
@@ -195,6 +283,8 @@ public class GrpcReflectionUtils {
 
     // Finally, construct the actual descriptor.
     Descriptors.FileDescriptor[] empty = new Descriptors.FileDescriptor[0];
-    return Descriptors.FileDescriptor.buildFrom(descriptorProto, dependencies.build().toArray(empty));
+    Descriptors.FileDescriptor descriptor = Descriptors.FileDescriptor.buildFrom(descriptorProto, dependencies.build().toArray(empty));
+    descriptorCache.put(descriptorName, descriptor);
+    return descriptor;
   }
 }
@@ -0,0 +1,341 @@
+package com.esquel.gateway.utils;
+
+import com.esquel.gateway.model.ChannelPoolStats;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A channel made of several channels to the same endpoint, each with its own HTTP/2 connection and
+ * so its own event loop and {@code MAX_CONCURRENT_STREAMS} budget. Every call goes to the stripe
+ * with the fewest active streams, the lowest stripe on ties, so load stays packed on the first
+ * stripes and the last ones drain when it drops.
+ * <p>
+ * A stripe is added once every stripe carries {@code maxStreams} active streams, up to
+ * {@code maxStripes}, and {@link #shrinkIdle} closes stripes above {@code minStripes} that have had
+ * no active stream for a while. A call counts as an active stream from {@link #newCall} on, so a
+ * stripe is never closed under a call that has been handed out but not started yet.
+ */
+public class StripedChannel extends ManagedChannel {
+
+  private static final Logger logger = LoggerFactory.getLogger(StripedChannel.class);
+
+  private final Supplier<ManagedChannel> factory;
+
+  private final int minStripes;
+
+  private final int maxStripes;
+
+  private final int maxStreams;
+
+  private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+
+  private final AtomicLong grown = new AtomicLong();
+
+  private final AtomicLong shrunk = new AtomicLong();
+
+  private volatile boolean shutdown;
+
+  public StripedChannel(Supplier<ManagedChannel> factory, int minStripes, int maxStripes, int maxStreams) {
+    this.factory = factory;
+    this.minStripes = Math.max(1, minStripes);
+    this.maxStripes = Math.max(this.minStripes, maxStripes);
+    this.maxStreams = Math.max(1, maxStreams);
+    for (int i = 0; i < this.minStripes; i++) {
+      stripes.add(new Stripe(factory.get()));
+    }
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> methodDescriptor,
+                                                       CallOptions callOptions) {
+    Stripe stripe = select();
+    // Lost to shrinkIdle, the stripe is on its way out of the list.
+    while (!stripe.tryOpen()) {
+      stripe = select();
+    }
+    return new CountingCall<>(stripe, stripe.channel.newCall(methodDescriptor, callOptions));
+  }
+
+  @Override
+  public String authority() {
+    return stripes.get(0).channel.authority();
+  }
+
+  /**
+   * READY while any stripe is, otherwise the state of the first stripe.
+   */
+  @Override
+  public ConnectivityState getState(boolean requestConnection) {
+    if (shutdown) {
+      return ConnectivityState.SHUTDOWN;
+    }
+    ConnectivityState first = null;
+    for (Stripe stripe : stripes) {
+      ConnectivityState state = stripe.channel.getState(requestConnection);
+      if (state == ConnectivityState.READY) {
+        return state;
+      }
+      if (first == null) {
+        first = state;
+      }
+    }
+    return first;
+  }
+
+  @Override
+  public void notifyWhenStateChanged(ConnectivityState source, Runnable callback) {
+    // The first stripe is never shrunk away, it stands for the whole channel.
+    stripes.get(0).channel.notifyWhenStateChanged(source, callback);
+  }
+
+  @Override
+  public void resetConnectBackoff() {
+    stripes.forEach(stripe -> stripe.channel.resetConnectBackoff());
+  }
+
+  @Override
+  public void enterIdle() {
+    stripes.forEach(stripe -> stripe.channel.enterIdle());
+  }
+
+  @Override
+  public ManagedChannel shutdown() {
+    synchronized (this) {
+      shutdown = true;
+    }
+    stripes.forEach(stripe -> stripe.channel.shutdown());
+    return this;
+  }
+
+  @Override
+  public ManagedChannel shutdownNow() {
+    synchronized (this) {
+      shutdown = true;
+    }
+    stripes.forEach(stripe -> stripe.channel.shutdownNow());
+    return this;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown && stripes.stream().allMatch(stripe -> stripe.channel.isTerminated());
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Stripe stripe : stripes) {
+      if (!stripe.channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Closes stripes above the minimum that have been without active streams for the given time. A
+   * stripe is only closed while no call holds it, calls picking it meanwhile go to another stripe.
+   */
+  public void shrinkIdle(long idleNanos) {
+    long now = System.nanoTime();
+    List<Stripe> closed = new ArrayList<>();
+    synchronized (this) {
+      for (int i = stripes.size() - 1; i >= minStripes; i--) {
+        Stripe stripe = stripes.get(i);
+        if (now - stripe.lastActiveAt > idleNanos && stripe.tryClose()) {
+          stripes.remove(i);
+          closed.add(stripe);
+        } else {
+          // Keep the stripes contiguous, only the last ones go.
+          break;
+        }
+      }
+    }
+    closed.forEach(stripe -> stripe.channel.shutdown());
+    if (!closed.isEmpty()) {
+      shrunk.addAndGet(closed.size());
+      logger.info("Closed {} idle stripes of [{}], {} left", closed.size(), authority(), stripes.size());
+    }
+  }
+
+  public long getGrown() {
+    return grown.get();
+  }
+
+  public long getShrunk() {
+    return shrunk.get();
+  }
+
+  public List<ChannelPoolStats.StripeStats> stripeStats() {
+    List<Stripe> current = new ArrayList<>(stripes);
+    List<ChannelPoolStats.StripeStats> stats = new ArrayList<>(current.size());
+    for (int i = 0; i < current.size(); i++) {
+      Stripe stripe = current.get(i);
+      stats.add(ChannelPoolStats.StripeStats.builder()
+              .index(i)
+              .state(stripe.channel.getState(false).name())
+              .activeStreams(stripe.active.get())
+              .peakStreams(stripe.peak.get())
+              .utilization((double) stripe.active.get() / maxStreams)
+              .calls(stripe.calls.get())
+              .build());
+    }
+    return stats;
+  }
+
+  private Stripe select() {
+    Stripe best = least();
+    if (best.active.get() >= maxStreams && stripes.size() < maxStripes && !shutdown) {
+      synchronized (this) {
+        best = least();
+        if (best.active.get() >= maxStreams && stripes.size() < maxStripes && !shutdown) {
+          best = new Stripe(factory.get());
+          stripes.add(best);
+          grown.incrementAndGet();
+          logger.info("Added stripe {} to [{}], every stripe has {} active streams",
+                  stripes.size(), authority(), maxStreams);
+        }
+      }
+    }
+    return best;
+  }
+
+  private Stripe least() {
+    Stripe best = null;
+    for (Stripe stripe : stripes) {
+      if (best == null || stripe.active.get() < best.active.get()) {
+        best = stripe;
+      }
+    }
+    return best;
+  }
+
+  @Override
+  public String toString() {
+    return stripes.stream().map(stripe -> String.valueOf(stripe.active.get()))
+            .collect(Collectors.joining(",", authority() + "[", "]"));
+  }
+
+  private static class Stripe {
+
+    // Stream count of a closed stripe, no call can be counted on it any more.
+    private static final int CLOSED = -1;
+
+    private final ManagedChannel channel;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private volatile long lastActiveAt = System.nanoTime();
+
+    private Stripe(ManagedChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Counts one more stream, unless the stripe has been closed.
+     */
+    private boolean tryOpen() {
+      int streams;
+      do {
+        streams = active.get();
+        if (streams == CLOSED) {
+          return false;
+        }
+      } while (!active.compareAndSet(streams, streams + 1));
+      peak.accumulateAndGet(streams + 1, Math::max);
+      calls.incrementAndGet();
+      lastActiveAt = System.nanoTime();
+      return true;
+    }
+
+    /**
+     * Closes the stripe to new calls if it has no active stream.
+     */
+    private boolean tryClose() {
+      return active.compareAndSet(0, CLOSED);
+    }
+
+    private void closed() {
+      active.decrementAndGet();
+      lastActiveAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * Holds the active stream counted for the call when it was created until the call closes, or is
+   * cancelled before it starts.
+   */
+  private static class CountingCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+
+    private final Stripe stripe;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private CountingCall(Stripe stripe, ClientCall<ReqT, RespT> delegate) {
+      super(delegate);
+      this.stripe = stripe;
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      started.set(true);
+      try {
+        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+          @Override
+          public void onClose(Status status, Metadata trailers) {
+            release();
+            super.onClose(status, trailers);
+          }
+        }, headers);
+      } catch (RuntimeException e) {
+        release();
+        throw e;
+      }
+    }
+
+    @Override
+    public void cancel(String message, Throwable cause) {
+      if (!started.get()) {
+        // Never started, so no onClose will come.
+        release();
+      }
+      super.cancel(message, cause);
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        stripe.closed();
+      }
+    }
+  }
+}
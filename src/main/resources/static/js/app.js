@@ -1,7 +1,9 @@
 window.onload = function () {
+  // Render only the services named in the page's tags parameter, e.g. ?tags=a.Service,b.Service
+  const tags = new URLSearchParams(window.location.search).get("tags");
   // Begin Swagger UI call region
   const ui = SwaggerUIBundle({
-    url: "/swagger-ui/api-docs",
+    url: "/swagger-ui/api-docs" + (tags ? "?tags=" + encodeURIComponent(tags) : ""),
     dom_id: "#swagger-ui",
     deepLinking: true,
     presets: [SwaggerUIBundle.presets.apis, SwaggerUIStandalonePreset],
@@ -0,0 +1,246 @@
+package com.esquel.gateway.balancer;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.utils.ByteArrayMarshaller;
+import com.esquel.gateway.utils.ChannelFactory;
+import io.grpc.CallOptions;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.LoadBalancerRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.NameResolver.ConfigOrError;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Balances one channel over several local replicas, some slow or failing, and checks where the
+ * calls end up under each policy.
+ */
+class ReplicaLoadBalancerTests {
+
+	private static final MethodDescriptor<byte[], byte[]> ECHO = MethodDescriptor.<byte[], byte[]>newBuilder()
+			.setType(MethodDescriptor.MethodType.UNARY)
+			.setFullMethodName(MethodDescriptor.generateFullMethodName("replica.Service", "Echo"))
+			.setRequestMarshaller(ByteArrayMarshaller.INSTANCE)
+			.setResponseMarshaller(ByteArrayMarshaller.INSTANCE)
+			.build();
+
+	private final List<TestReplica> replicas = new ArrayList<>();
+
+	private final List<ReplicaLoadBalancer> balancers = new CopyOnWriteArrayList<>();
+
+	private final LoadBalancerProvider capturingProvider = new CapturingProvider();
+
+	private ManagedChannel channel;
+
+	@AfterEach
+	void stop() throws Exception {
+		LoadBalancerRegistry.getDefaultRegistry().deregister(capturingProvider);
+		if (channel != null) {
+			channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		}
+		for (TestReplica replica : replicas) {
+			replica.server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void roundRobinSpreadsCallsEvenly() throws Exception {
+		TestReplica a = replica(0, false);
+		TestReplica b = replica(0, false);
+		TestReplica c = replica(0, false);
+		connect(BalancerConfig.builder().policy(BalancingPolicy.ROUND_ROBIN).build());
+
+		for (int i = 0; i < 300; i++) {
+			call();
+		}
+		assertEquals(100, a.calls.get(), 5);
+		assertEquals(100, b.calls.get(), 5);
+		assertEquals(100, c.calls.get(), 5);
+	}
+
+	@Test
+	void p2cEwmaShunsSlowReplica() throws Exception {
+		replica(0, false);
+		replica(0, false);
+		TestReplica slow = replica(50, false);
+		connect(BalancerConfig.builder().policy(BalancingPolicy.P2C_EWMA).build());
+
+		for (int i = 0; i < 200; i++) {
+			call();
+		}
+		assertTrue(slow.calls.get() < 20, "slow replica took " + slow.calls.get() + " of 200 calls");
+	}
+
+	@Test
+	void ejectsFailingReplica() throws Exception {
+		TestReplica a = replica(0, false);
+		TestReplica b = replica(0, false);
+		TestReplica failing = replica(0, true);
+		connect(BalancerConfig.builder()
+				.policy(BalancingPolicy.ROUND_ROBIN)
+				.minimumRequests(10)
+				.failureRateThreshold(0.5)
+				.build());
+
+		int failures = 0;
+		for (int i = 0; i < 60; i++) {
+			try {
+				call();
+			} catch (StatusRuntimeException e) {
+				assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+				failures++;
+			}
+		}
+		assertEquals(10, failures, 1);
+
+		failing.calls.set(0);
+		for (int i = 0; i < 100; i++) {
+			call();
+		}
+		assertEquals(0, failing.calls.get());
+		assertEquals(a.calls.get(), b.calls.get(), 5);
+	}
+
+	@Test
+	void keepsReplicasThatOnlyMissCallerDeadlines() throws Exception {
+		replica(0, false);
+		replica(0, false);
+		TestReplica slow = replica(100, false);
+		connect(BalancerConfig.builder()
+				.policy(BalancingPolicy.ROUND_ROBIN)
+				.minimumRequests(10)
+				.failureRateThreshold(0.5)
+				.build());
+
+		int expired = 0;
+		for (int i = 0; i < 60; i++) {
+			try {
+				ClientCalls.blockingUnaryCall(channel, ECHO, CallOptions.DEFAULT.withDeadlineAfter(20, TimeUnit.MILLISECONDS)
+						.withOption(ReplicaLoadBalancerProvider.CALLER_DEADLINE, true), new byte[]{1});
+			} catch (StatusRuntimeException e) {
+				assertEquals(Status.Code.DEADLINE_EXCEEDED, e.getStatus().getCode());
+				expired++;
+			}
+		}
+		assertTrue(expired >= 10, "only " + expired + " calls expired");
+
+		slow.calls.set(0);
+		for (int i = 0; i < 30; i++) {
+			call();
+		}
+		assertEquals(10, slow.calls.get(), 2);
+	}
+
+	private void connect(BalancerConfig config) throws Exception {
+		List<Endpoint> addresses = replicas.stream()
+				.map(replica -> new Endpoint("localhost", replica.server.getPort()))
+				.collect(Collectors.toList());
+		// Outranks the registered policy, so the channel's balancer can be watched.
+		LoadBalancerRegistry.getDefaultRegistry().register(capturingProvider);
+		channel = ChannelFactory.createBalanced(new Endpoint("replica", 50051), addresses, config, 60, 20);
+		channel.getState(true);
+		// The channel is READY as soon as one replica is, wait for the picker to have them all.
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (readyReplicas() < replicas.size() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(replicas.size(), readyReplicas());
+	}
+
+	private int readyReplicas() {
+		return balancers.isEmpty() ? 0 : balancers.get(0).getReady().size();
+	}
+
+	private void call() {
+		ClientCalls.blockingUnaryCall(channel, ECHO, CallOptions.DEFAULT.withDeadlineAfter(5, TimeUnit.SECONDS), new byte[]{1});
+	}
+
+	private TestReplica replica(long delayMillis, boolean failing) throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		ServerServiceDefinition service = ServerServiceDefinition.builder("replica.Service")
+				.addMethod(ECHO, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+					calls.incrementAndGet();
+					if (delayMillis > 0) {
+						try {
+							Thread.sleep(delayMillis);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					if (failing) {
+						responseObserver.onError(Status.UNAVAILABLE.withDescription("failing replica").asRuntimeException());
+					} else {
+						responseObserver.onNext(request);
+						responseObserver.onCompleted();
+					}
+				}))
+				.build();
+		TestReplica replica = new TestReplica(ServerBuilder.forPort(0).addService(service).build().start(), calls);
+		replicas.add(replica);
+		return replica;
+	}
+
+	private class CapturingProvider extends LoadBalancerProvider {
+
+		private final ReplicaLoadBalancerProvider provider = new ReplicaLoadBalancerProvider();
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public int getPriority() {
+			return provider.getPriority() + 1;
+		}
+
+		@Override
+		public String getPolicyName() {
+			return provider.getPolicyName();
+		}
+
+		@Override
+		public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+			ReplicaLoadBalancer balancer = new ReplicaLoadBalancer(helper);
+			balancers.add(balancer);
+			return balancer;
+		}
+
+		@Override
+		public ConfigOrError parseLoadBalancingPolicyConfig(Map<String, ?> rawLoadBalancingPolicyConfig) {
+			return provider.parseLoadBalancingPolicyConfig(rawLoadBalancingPolicyConfig);
+		}
+	}
+
+	private static class TestReplica {
+
+		private final Server server;
+
+		private final AtomicInteger calls;
+
+		private TestReplica(Server server, AtomicInteger calls) {
+			this.server = server;
+			this.calls = calls;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.esquel.gateway.model;
+
+import com.alibaba.fastjson.JSONObject;
+import com.esquel.gateway.config.WebConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that a response rendered straight into the {code, message, result} envelope is exactly
+ * what the printer prints. The benchmark compares the bytes allocated per response against printing
+ * to a string, re-parsing it with fastjson and serialising the tree again.
+ */
+class CallResultsTests {
+
+	private static final int WARMUP = 200;
+
+	private static final int ITERATIONS = 500;
+
+	private final ObjectMapper mapper = new WebConfig().objectMapper();
+
+	private final JsonFormat.Printer printer = JsonFormat.printer().includingDefaultValueFields()
+			.omittingInsignificantWhitespace();
+
+	@Test
+	void rendersSameJsonAsReparse() throws Exception {
+		DynamicMessage message = largeMessage();
+		CallResults results = new CallResults(printer);
+		results.add(message);
+
+		String reparsed = mapper.writeValueAsString(Result.builder().code(200)
+				.result(JSONObject.parse(printer.print(message))).build());
+		String direct = mapper.writeValueAsString(Result.builder().code(200).result(results).build());
+
+		assertEquals(mapper.readTree(reparsed), mapper.readTree(direct));
+	}
+
+	@Test
+	void directOutputIsThePrintedMessage() throws Exception {
+		DynamicMessage message = largeMessage();
+		CallResults results = new CallResults(printer);
+		results.add(message);
+
+		String envelope = mapper.writeValueAsString(Result.builder().code(200).result("RESULT").build());
+		assertEquals(envelope.replace("\"RESULT\"", printer.print(message)),
+				mapper.writeValueAsString(Result.builder().code(200).result(results).build()));
+	}
+
+	@Test
+	@Tag("benchmark")
+	void benchmarkAllocationsPerResponse() throws Exception {
+		DynamicMessage message = largeMessage();
+		CallResults results = new CallResults(printer);
+		results.add(message);
+
+		long before = allocatedPerCall(() -> mapper.writeValue(OutputStream.nullOutputStream(),
+				Result.builder().code(200).result(JSONObject.parse(printer.print(message))).build()));
+		long after = allocatedPerCall(() -> mapper.writeValue(OutputStream.nullOutputStream(),
+				Result.builder().code(200).result(results).build()));
+
+		// Allocations depend on the JVM, they are reported rather than asserted.
+		System.err.println(String.format(":::payload = [%s] bytes, print+reparse = [%s] bytes/call, direct = [%s] bytes/call::::",
+				message.getSerializedSize(), before, after));
+	}
+
+	private static DynamicMessage largeMessage() throws Exception {
+		// descriptor.proto describing itself is a conveniently large, deeply nested message.
+		return DynamicMessage.parseFrom(DescriptorProtos.FileDescriptorProto.getDescriptor(),
+				DescriptorProtos.getDescriptor().toProto().toByteString());
+	}
+
+	private static long allocatedPerCall(Call call) throws Exception {
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP; i++) {
+			call.run();
+		}
+		long start = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < ITERATIONS; i++) {
+			call.run();
+		}
+		return (threadMXBean.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+	}
+
+	private interface Call {
+		void run() throws Exception;
+	}
+}
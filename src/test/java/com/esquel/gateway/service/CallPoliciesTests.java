@@ -0,0 +1,205 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.balancer.ReplicaLoadBalancerProvider;
+import com.esquel.gateway.model.CallPolicy;
+import com.esquel.gateway.model.CallPolicyStats;
+import com.esquel.gateway.model.InvocationPlan;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Resolves policies from configuration and request, and runs calls through attempts that fail,
+ * hang or succeed on demand.
+ */
+class CallPoliciesTests {
+
+	private CallPolicies callPolicies;
+
+	@AfterEach
+	void shutdown() {
+		if (callPolicies != null) {
+			callPolicies.shutdown();
+		}
+	}
+
+	@Test
+	void layersPoliciesAndOnlyRepeatsSafeUnaryCalls() {
+		callPolicies = new CallPolicies(30000, "policy.Service/*=deadline:5000;policy.Service/Create=hedges:1", "attempts:3", 0.1);
+
+		CallPolicy get = callPolicies.policy(plan("Get", DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS,
+				MethodDescriptor.MethodType.UNARY), null);
+		assertEquals(5000, get.deadlineMillisOrZero());
+		assertEquals(3, get.attempts());
+
+		InvocationPlan update = plan("Update", DescriptorProtos.MethodOptions.IdempotencyLevel.IDEMPOTENCY_UNKNOWN,
+				MethodDescriptor.MethodType.UNARY);
+		assertEquals(1, callPolicies.policy(update, CallPolicy.parse("attempts:5,hedges:2")).attempts());
+		assertEquals(0, callPolicies.policy(update, CallPolicy.parse("attempts:5,hedges:2")).hedgesOrZero());
+		assertEquals(200, callPolicies.policy(update, CallPolicy.parse("deadline:200")).deadlineMillisOrZero());
+
+		// Configured with hedges, so the operator vouches for repeating it.
+		CallPolicy create = callPolicies.policy(plan("Create", DescriptorProtos.MethodOptions.IdempotencyLevel.IDEMPOTENCY_UNKNOWN,
+				MethodDescriptor.MethodType.UNARY), CallPolicy.parse("attempts:2"));
+		assertEquals(2, create.attempts());
+		assertEquals(1, create.hedgesOrZero());
+
+		CallPolicy watch = callPolicies.policy(plan("Watch", DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS,
+				MethodDescriptor.MethodType.SERVER_STREAMING), null);
+		assertEquals(5000, watch.deadlineMillisOrZero());
+		assertEquals(1, watch.attempts());
+
+		assertNull(callPolicies.apply(CallPolicy.parse("deadline:0"), CallOptions.DEFAULT).getDeadline());
+		assertNotNull(callPolicies.apply(get, CallOptions.DEFAULT).getDeadline());
+		assertThrows(IllegalArgumentException.class, () -> CallPolicy.parse("deadline:soon"));
+		assertThrows(IllegalArgumentException.class, () -> CallPolicy.parse("retries:3"));
+	}
+
+	@Test
+	void requestsMayOnlyShortenTheConfiguredDeadline() {
+		callPolicies = new CallPolicies(30000, "policy.Service/*=deadline:5000", "attempts:3", 0.1);
+		InvocationPlan get = plan("Get", DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS,
+				MethodDescriptor.MethodType.UNARY);
+
+		CallPolicy shorter = callPolicies.policy(get, CallPolicy.parse("deadline:200"));
+		assertEquals(200, shorter.deadlineMillisOrZero());
+		assertTrue(shorter.isDeadlineRequested());
+		assertTrue(callPolicies.apply(shorter, CallOptions.DEFAULT).getOption(ReplicaLoadBalancerProvider.CALLER_DEADLINE));
+
+		for (String requested : new String[]{"deadline:60000", "deadline:0", "deadline:-1"}) {
+			CallPolicy policy = callPolicies.policy(get, CallPolicy.parse(requested));
+			assertEquals(5000, policy.deadlineMillisOrZero(), requested);
+			assertFalse(policy.isDeadlineRequested(), requested);
+			assertFalse(callPolicies.apply(policy, CallOptions.DEFAULT).getOption(ReplicaLoadBalancerProvider.CALLER_DEADLINE));
+		}
+
+		// Without a configured deadline, any the request asks for is shorter.
+		callPolicies.shutdown();
+		callPolicies = new CallPolicies(30000, "", "attempts:3", 0.1);
+		CallPolicy watch = callPolicies.policy(plan("Watch", DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS,
+				MethodDescriptor.MethodType.SERVER_STREAMING), CallPolicy.parse("deadline:60000"));
+		assertEquals(60000, watch.deadlineMillisOrZero());
+		assertTrue(watch.isDeadlineRequested());
+	}
+
+	@Test
+	void retriesUnavailableButNotOtherFailures() throws Exception {
+		callPolicies = new CallPolicies(30000, "", "attempts:3", 0.1);
+		InvocationPlan plan = plan("Get", DescriptorProtos.MethodOptions.IdempotencyLevel.IDEMPOTENT,
+				MethodDescriptor.MethodType.UNARY);
+		CallPolicy policy = callPolicies.policy(plan, null);
+
+		AtomicInteger attempts = new AtomicInteger();
+		String result = callPolicies.execute(plan, policy, CallOptions.DEFAULT, () -> attempts.incrementAndGet() < 3
+				? CompletableFuture.failedFuture(Status.UNAVAILABLE.asRuntimeException())
+				: CompletableFuture.completedFuture("ok")).get(5, TimeUnit.SECONDS);
+		assertEquals("ok", result);
+		assertEquals(3, attempts.get());
+
+		attempts.set(0);
+		ExecutionException e = assertThrows(ExecutionException.class, () -> callPolicies.execute(plan, policy,
+				CallOptions.DEFAULT, () -> {
+					attempts.incrementAndGet();
+					return CompletableFuture.<String>failedFuture(Status.INVALID_ARGUMENT.asRuntimeException());
+				}).get(5, TimeUnit.SECONDS));
+		assertEquals(Status.Code.INVALID_ARGUMENT, Status.fromThrowable(e).getCode());
+		assertEquals(1, attempts.get());
+		assertEquals(2, callPolicies.stats().getRetries());
+	}
+
+	@Test
+	void hedgesSlowCallsAndCancelsTheLoser() throws Exception {
+		callPolicies = new CallPolicies(30000, "", "hedges:1,hedge-delay:20", 0.1);
+		InvocationPlan plan = plan("Get", DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS,
+				MethodDescriptor.MethodType.UNARY);
+		CallPolicy policy = callPolicies.policy(plan, null);
+
+		AtomicInteger attempts = new AtomicInteger();
+		CompletableFuture<Boolean> firstCancelled = new CompletableFuture<>();
+		String result = callPolicies.execute(plan, policy, CallOptions.DEFAULT, () -> {
+			if (attempts.incrementAndGet() == 1) {
+				// Hangs until its context is cancelled, like a call to a stuck backend.
+				CompletableFuture<String> hanging = new CompletableFuture<>();
+				Context.current().addListener(context -> {
+					firstCancelled.complete(true);
+					hanging.completeExceptionally(Status.CANCELLED.asRuntimeException());
+				}, Runnable::run);
+				return hanging;
+			}
+			return CompletableFuture.completedFuture("hedged");
+		}).get(5, TimeUnit.SECONDS);
+
+		assertEquals("hedged", result);
+		assertEquals(2, attempts.get());
+		assertTrue(firstCancelled.get(5, TimeUnit.SECONDS));
+		CallPolicyStats stats = callPolicies.stats();
+		assertEquals(1, stats.getHedges());
+		assertEquals(1, stats.getHedgeWins());
+	}
+
+	@Test
+	void stopsRetryingOnceTheBudgetIsSpent() throws Exception {
+		callPolicies = new CallPolicies(30000, "", "attempts:2", 0);
+		InvocationPlan plan = plan("Get", DescriptorProtos.MethodOptions.IdempotencyLevel.IDEMPOTENT,
+				MethodDescriptor.MethodType.UNARY);
+		CallPolicy policy = callPolicies.policy(plan, null);
+
+		AtomicInteger attempts = new AtomicInteger();
+		for (int i = 0; i < 20; i++) {
+			CompletableFuture<String> call = callPolicies.execute(plan, policy, CallOptions.DEFAULT, () -> {
+				attempts.incrementAndGet();
+				return CompletableFuture.failedFuture(Status.UNAVAILABLE.asRuntimeException());
+			});
+			assertThrows(ExecutionException.class, () -> call.get(5, TimeUnit.SECONDS));
+		}
+		// Twenty first attempts, and retries only while the initial ten tokens lasted.
+		assertEquals(30, attempts.get());
+		assertEquals(10, callPolicies.stats().getBudgetExhausted());
+	}
+
+	private static InvocationPlan plan(String method, DescriptorProtos.MethodOptions.IdempotencyLevel level,
+									   MethodDescriptor.MethodType type) {
+		DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+				.setName("policy.proto")
+				.setPackage("policy")
+				.setSyntax("proto3")
+				.addMessageType(DescriptorProtos.DescriptorProto.newBuilder().setName("Empty"))
+				.addService(DescriptorProtos.ServiceDescriptorProto.newBuilder()
+						.setName("Service")
+						.addMethod(DescriptorProtos.MethodDescriptorProto.newBuilder()
+								.setName(method)
+								.setInputType(".policy.Empty")
+								.setOutputType(".policy.Empty")
+								.setOptions(DescriptorProtos.MethodOptions.newBuilder().setIdempotencyLevel(level))))
+				.build();
+		try {
+			Descriptors.MethodDescriptor descriptor = Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[0])
+					.findServiceByName("Service")
+					.findMethodByName(method);
+			return InvocationPlan.builder()
+					.fullMethodName("policy.Service/" + method)
+					.methodDescriptor(descriptor)
+					.methodType(type)
+					.build();
+		} catch (Descriptors.DescriptorValidationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
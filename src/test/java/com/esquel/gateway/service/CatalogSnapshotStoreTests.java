@@ -0,0 +1,82 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.store.CatalogSnapshot;
+import com.esquel.gateway.utils.TestReflectionServer;
+import io.grpc.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Saves a large catalog, reads it back and compares the time to a catalog over reflection with
+ * the time to a catalog from the saved file.
+ */
+class CatalogSnapshotStoreTests {
+
+	private static final int SERVICES = 150;
+
+	private static Server server;
+
+	private static GrpcChannelPool grpcChannelPool;
+
+	@BeforeAll
+	static void startServer() throws Exception {
+		server = TestReflectionServer.start("bench", SERVICES);
+		grpcChannelPool = new GrpcChannelPool(60, 20, 1800, "", "p2c_ewma", 0.5, 20, 30, 1, 8, 100, 60);
+	}
+
+	@AfterAll
+	static void stopServer() throws Exception {
+		grpcChannelPool.shutdown();
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void warmStartServesSavedCatalog(@TempDir Path directory) {
+		Endpoint endpoint = new Endpoint("localhost", server.getPort());
+		String file = directory.resolve("catalog.bin").toString();
+
+		long start = System.nanoTime();
+		GrpcReflectionService cold = new GrpcReflectionService(endpoint, grpcChannelPool,
+				new CatalogSnapshotStore(file), 86400, 0.8, "", false, 0);
+		CatalogSnapshot loaded = cold.getSnapshot();
+		long coldStart = System.nanoTime() - start;
+		cold.shutdown();
+
+		start = System.nanoTime();
+		GrpcReflectionService warm = new GrpcReflectionService(endpoint, grpcChannelPool,
+				new CatalogSnapshotStore(file), 86400, 0.8, "", false, 0);
+		CatalogSnapshot saved = warm.currentSnapshot();
+		long warmStart = System.nanoTime() - start;
+		warm.shutdown();
+
+		System.err.println(String.format(":::services = [%s], start over reflection = [%s] ms, start from file = [%s] ms::::",
+				SERVICES, TimeUnit.NANOSECONDS.toMillis(coldStart), TimeUnit.NANOSECONDS.toMillis(warmStart)));
+		assertTrue(saved.isLoaded());
+		assertEquals(loaded.getFileDescriptorSets(), saved.getFileDescriptorSets());
+		assertEquals(loaded.getServiceHashes(), saved.getServiceHashes());
+		assertEquals(SERVICES, saved.getDescriptorPool().getServices().size());
+	}
+
+	@Test
+	void ignoresCatalogOfAnotherEndpoint(@TempDir Path directory) {
+		String file = directory.resolve("catalog.bin").toString();
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", server.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(file), 86400, 0.8, "", false, 0);
+		grpcReflectionService.getSnapshot();
+		grpcReflectionService.shutdown();
+
+		Optional<CatalogSnapshot> other = new CatalogSnapshotStore(file).load(new Endpoint("localhost", server.getPort() + 1));
+		assertFalse(other.isPresent());
+	}
+}
@@ -0,0 +1,105 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.BatchCall;
+import com.esquel.gateway.model.CallResults;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.Result;
+import com.esquel.gateway.utils.TestReflectionServer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.grpc.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs batches against an echo backend and checks that every entry gets its own result, in request
+ * order, however the others fare.
+ */
+class GrpcBatchServiceTests {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static Server server;
+
+	private static GrpcChannelPool grpcChannelPool;
+
+	private static GrpcReflectionService grpcReflectionService;
+
+	private static GrpcRoutingService grpcRoutingService;
+
+	private static CallPolicies callPolicies;
+
+	private static GrpcProxyService grpcProxyService;
+
+	private static GrpcBatchService grpcBatchService;
+
+	@BeforeAll
+	static void start() throws Exception {
+		server = TestReflectionServer.start("batch", 2);
+		grpcChannelPool = new GrpcChannelPool(60, 20, 1800, "", "p2c_ewma", 0.5, 20, 30, 1, 8, 100, 60);
+		grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", server.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 1 << 20, 1800, "");
+		grpcReflectionService.loadGrpcServices();
+		callPolicies = new CallPolicies(30000, "", "attempts:3", 0.1);
+		grpcProxyService = new GrpcProxyService(grpcRoutingService, new RequestCoalescer(""),
+				new ResponseCache("", 30, false, "", 1 << 20), callPolicies, 4);
+		grpcBatchService = new GrpcBatchService(grpcProxyService, 16, 4);
+	}
+
+	@AfterAll
+	static void stop() throws Exception {
+		grpcProxyService.shutdown();
+		callPolicies.shutdown();
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+		grpcChannelPool.shutdown();
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void reportsEveryEntryInRequestOrder() throws Exception {
+		List<BatchCall> calls = List.of(
+				call("batch.Service0.Echo", "{\"id\":\"a\"}"),
+				call("batch.Service0.Missing", "{}"),
+				call("batch.Service1.Echo", "{\"nope\":1}"),
+				call("batch.Service1.Echo", "{\"id\":\"b\"}"));
+
+		// One call at a time, so every entry but the first is started by the one before it.
+		Result<Object> batch = grpcBatchService.callBatch(calls, 5000L, 1, null, null).get(10, TimeUnit.SECONDS);
+		List<Result<Object>> entries = (List<Result<Object>>) batch.getResult();
+		assertEquals(200, batch.getCode());
+		assertEquals(4, entries.size());
+		assertEquals(200, entries.get(0).getCode());
+		assertEquals(Collections.singletonList("{\"id\":\"a\"}"), ((CallResults) entries.get(0).getResult()).asList());
+		assertEquals(400, entries.get(1).getCode());
+		assertTrue(entries.get(1).getMessage().contains("Missing"), entries.get(1).getMessage());
+		assertEquals(400, entries.get(2).getCode());
+		assertEquals(200, entries.get(3).getCode());
+		assertEquals(Collections.singletonList("{\"id\":\"b\"}"), ((CallResults) entries.get(3).getResult()).asList());
+	}
+
+	@Test
+	void rejectsBatchesOverTheMaximumSize() {
+		List<BatchCall> calls = Collections.nCopies(5, call("batch.Service0.Echo", "{\"id\":\"a\"}"));
+		assertThrows(IllegalArgumentException.class, () -> grpcBatchService.callBatch(calls, null, null, null, null));
+	}
+
+	private static BatchCall call(String method, String payload) {
+		try {
+			return BatchCall.builder().method(method).payload(MAPPER.readTree(payload)).build();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.esquel.gateway.service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.utils.TestReflectionServer;
+import io.grpc.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Replays NDJSON bodies against an echo backend and checks the outcome reported for every line, that
+ * outcomes reach the client while the body is still being uploaded and that jobs over the limit are
+ * turned away.
+ */
+class GrpcBulkServiceTests {
+
+	private static Server server;
+
+	private static GrpcChannelPool grpcChannelPool;
+
+	private static GrpcReflectionService grpcReflectionService;
+
+	private static GrpcRoutingService grpcRoutingService;
+
+	private static CallPolicies callPolicies;
+
+	private static GrpcProxyService grpcProxyService;
+
+	private static GrpcBulkService grpcBulkService;
+
+	@BeforeAll
+	static void start() throws Exception {
+		server = TestReflectionServer.start("bulk", 1);
+		grpcChannelPool = new GrpcChannelPool(60, 20, 1800, "", "p2c_ewma", 0.5, 20, 30, 1, 8, 100, 60);
+		grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", server.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 1 << 20, 1800, "");
+		grpcReflectionService.loadGrpcServices();
+		callPolicies = new CallPolicies(30000, "", "attempts:3", 0.1);
+		grpcProxyService = new GrpcProxyService(grpcRoutingService, new RequestCoalescer(""),
+				new ResponseCache("", 30, false, "", 1 << 20), callPolicies, 4);
+		grpcBulkService = new GrpcBulkService(grpcProxyService, grpcRoutingService, callPolicies, 8, 64, 4);
+	}
+
+	@AfterAll
+	static void stop() throws Exception {
+		grpcBulkService.shutdown();
+		grpcProxyService.shutdown();
+		callPolicies.shutdown();
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+		grpcChannelPool.shutdown();
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void reportsOneOutcomePerLine() throws Exception {
+		CapturingEmitter emitter = new CapturingEmitter();
+		String body = String.join("\n", "{\"id\":\"a\"}", "", "not json", "{\"id\":\"b\"}", "{\"nope\":1}") + "\n";
+		grpcBulkService.callBulk("bulk.Service0.Echo", new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+				"{}", null, null, null, emitter);
+
+		assertTrue(emitter.completed.await(10, TimeUnit.SECONDS));
+		Map<Integer, JSONObject> outcomes = emitter.outcomes();
+		assertEquals(4, outcomes.size(), String.valueOf(outcomes));
+		assertEquals(200, outcomes.get(1).getIntValue("code"));
+		assertEquals("a", outcomes.get(1).getJSONObject("result").getString("id"));
+		assertEquals(400, outcomes.get(3).getIntValue("code"));
+		assertTrue(outcomes.get(3).getString("message").startsWith("Unable to parse json text"));
+		assertEquals("b", outcomes.get(4).getJSONObject("result").getString("id"));
+		assertEquals(400, outcomes.get(5).getIntValue("code"));
+	}
+
+	@Test
+	void sendsOutcomesWhileTheBodyIsStillComing() throws Exception {
+		CapturingEmitter emitter = new CapturingEmitter();
+		PipedOutputStream upload = new PipedOutputStream();
+		PipedInputStream body = new PipedInputStream(upload);
+		grpcBulkService.callBulk("bulk.Service0.Echo", body, "{}", null, null, null, emitter);
+
+		upload.write("{\"id\":\"a\"}\n".getBytes(StandardCharsets.UTF_8));
+		upload.flush();
+		// No further outcome comes in to push the first one out, the flush timer has to.
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (emitter.outcomes().isEmpty() && System.nanoTime() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, emitter.outcomes().size());
+		assertEquals(1, emitter.completed.getCount());
+
+		upload.close();
+		assertTrue(emitter.completed.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void turnsAwayJobsOverTheLimit() throws Exception {
+		GrpcBulkService single = new GrpcBulkService(grpcProxyService, grpcRoutingService, callPolicies, 8, 64, 1);
+		try {
+			CapturingEmitter running = new CapturingEmitter();
+			PipedOutputStream upload = new PipedOutputStream();
+			single.callBulk("bulk.Service0.Echo", new PipedInputStream(upload), "{}", null, null, null, running);
+
+			CapturingEmitter rejected = new CapturingEmitter();
+			single.callBulk("bulk.Service0.Echo", new ByteArrayInputStream("{\"id\":\"a\"}\n".getBytes(StandardCharsets.UTF_8)),
+					"{}", null, null, null, rejected);
+			assertTrue(rejected.completed.await(5, TimeUnit.SECONDS));
+			assertEquals(400, rejected.outcomes().get(0).getIntValue("code"));
+			assertEquals("Too many bulk jobs in progress, try again later", rejected.outcomes().get(0).getString("message"));
+
+			upload.close();
+			assertTrue(running.completed.await(10, TimeUnit.SECONDS));
+		} finally {
+			single.shutdown();
+		}
+	}
+
+	private static class CapturingEmitter extends ResponseBodyEmitter {
+
+		private final List<String> sent = new CopyOnWriteArrayList<>();
+
+		private final CountDownLatch completed = new CountDownLatch(1);
+
+		@Override
+		public void send(Object object, MediaType mediaType) {
+			sent.add(new String((byte[]) object, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void complete() {
+			completed.countDown();
+		}
+
+		private Map<Integer, JSONObject> outcomes() {
+			return sent.stream()
+					.flatMap(chunk -> Arrays.stream(chunk.split("\n")))
+					.filter(line -> !line.isEmpty())
+					.map(JSON::parseObject)
+					.collect(Collectors.toMap(outcome -> outcome.getInteger("line"), outcome -> outcome));
+		}
+	}
+}
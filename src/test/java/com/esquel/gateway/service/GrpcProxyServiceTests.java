@@ -0,0 +1,248 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.handler.CompositeStreamObserver;
+import com.esquel.gateway.handler.StreamingMessageWriter;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.utils.ByteArrayMarshaller;
+import com.esquel.gateway.utils.TestPlans;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.DynamicMessage;
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Uploads NDJSON bodies to a bidi streaming backend which only takes messages when it is told to,
+ * and checks that the body is read no faster than the backend takes it, that a bad line is
+ * reported as such and that cancelling a call cancels its rpc.
+ */
+class GrpcProxyServiceTests {
+
+	private static final int LINES = 500_000;
+
+	private final InvocationPlan plan = TestPlans.plan("ingest", "Upload",
+			DescriptorProtos.MethodOptions.IdempotencyLevel.IDEMPOTENCY_UNKNOWN, MethodDescriptor.MethodType.BIDI_STREAMING);
+
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	private final AtomicInteger received = new AtomicInteger();
+
+	private final CompletableFuture<ServerCall<byte[], byte[]>> serverCall = new CompletableFuture<>();
+
+	private Server server;
+
+	private ManagedChannel channel;
+
+	@BeforeEach
+	void start() throws Exception {
+		MethodDescriptor<byte[], byte[]> upload = MethodDescriptor.<byte[], byte[]>newBuilder()
+				.setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+				.setFullMethodName("ingest.Service/Upload")
+				.setRequestMarshaller(ByteArrayMarshaller.INSTANCE)
+				.setResponseMarshaller(ByteArrayMarshaller.INSTANCE)
+				.build();
+		ServerCallHandler<byte[], byte[]> handler = (call, headers) -> {
+			serverCall.complete(call);
+			call.request(1);
+			return new ServerCall.Listener<byte[]>() {
+				@Override
+				public void onMessage(byte[] message) {
+					received.incrementAndGet();
+					if (released.get()) {
+						call.request(1);
+					}
+				}
+
+				@Override
+				public void onHalfClose() {
+					// Answers with the number of requests it took.
+					call.sendHeaders(new Metadata());
+					call.sendMessage(TestPlans.request(plan, String.valueOf(received.get())).toByteArray());
+					call.close(Status.OK, new Metadata());
+				}
+			};
+		};
+		server = ServerBuilder.forPort(0)
+				.addService(ServerServiceDefinition.builder("ingest.Service").addMethod(upload, handler).build())
+				.build()
+				.start();
+		channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void readsTheBodyNoFasterThanTheBackendTakesIt() throws Exception {
+		Lines body = new Lines(LINES);
+		List<DynamicMessage> responses = new CopyOnWriteArrayList<>();
+		CompletableFuture<Void> done = CompletableFuture.runAsync(() -> {
+			try {
+				GrpcProxyService.ingest(plan, channel, CallOptions.DEFAULT.withDeadlineAfter(60, TimeUnit.SECONDS), body,
+						new Collector(responses)).get();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		// Wait until the upload stalls on the backend, which has only taken one message.
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		int served = -1;
+		while ((served <= 0 || served != body.served.get()) && System.nanoTime() < deadline) {
+			served = body.served.get();
+			Thread.sleep(200);
+		}
+		System.err.println(String.format(":::lines = [%s], read while stalled = [%s], taken = [%s]::::",
+				LINES, served, received.get()));
+		assertEquals(1, received.get());
+		assertTrue(served < LINES / 2, "read " + served + " of " + LINES + " lines while the backend took none");
+
+		released.set(true);
+		serverCall.get(5, TimeUnit.SECONDS).request(Integer.MAX_VALUE);
+		done.get(60, TimeUnit.SECONDS);
+		assertEquals(LINES, received.get());
+		assertEquals(1, responses.size());
+		assertEquals(String.valueOf(LINES), responses.get(0).getField(plan.getMethodDescriptor().getInputType().findFieldByName("id")));
+	}
+
+	@Test
+	void reportsBadLinesInsteadOfTheCancellation() throws Exception {
+		released.set(true);
+		List<String> sent = new CopyOnWriteArrayList<>();
+		ResponseBodyEmitter emitter = new ResponseBodyEmitter() {
+			@Override
+			public void send(Object object, MediaType mediaType) {
+				sent.add(new String((byte[]) object, StandardCharsets.UTF_8));
+			}
+
+			@Override
+			public void complete() {
+				// Nothing to complete without a servlet response.
+			}
+		};
+		StreamingMessageWriter<DynamicMessage> writer =
+				StreamingMessageWriter.newInstance(plan.getPrinter(), emitter, e -> new RuntimeException(e.getMessage()));
+		// Sees the reported failure and then the cancellation it causes.
+		CountDownLatch errors = new CountDownLatch(2);
+		StreamObserver<DynamicMessage> observer = CompositeStreamObserver.of(writer, new Collector(new CopyOnWriteArrayList<>()) {
+			@Override
+			public void onError(Throwable t) {
+				errors.countDown();
+			}
+		});
+		InputStream body = new ByteArrayInputStream("{\"id\":\"a\"}\nnot json\n".getBytes(StandardCharsets.UTF_8));
+
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> GrpcProxyService.ingest(plan, channel,
+				CallOptions.DEFAULT.withDeadlineAfter(5, TimeUnit.SECONDS), body, observer));
+		assertEquals("Unable to parse json text at line 2", e.getMessage());
+		assertTrue(errors.await(5, TimeUnit.SECONDS));
+		assertEquals(1, sent.size(), String.valueOf(sent));
+		assertTrue(sent.get(0).contains("Unable to parse json text at line 2"), sent.get(0));
+	}
+
+	@Test
+	void cancellingACallCancelsItsRpc() {
+		AtomicReference<ListenableFuture<Void>> rpc = new AtomicReference<>();
+		CompletableFuture<Void> call = GrpcProxyService.cancellable(() -> {
+			// The backend only takes the first request, so the rpc stays open.
+			rpc.set(GrpcProxyService.ingest(plan, channel, CallOptions.DEFAULT,
+					new ByteArrayInputStream("{\"id\":\"a\"}\n{\"id\":\"b\"}\n".getBytes(StandardCharsets.UTF_8)),
+					new Collector(new ArrayList<>())));
+			return new CompletableFuture<>();
+		});
+
+		call.cancel(false);
+		ExecutionException e = assertThrows(ExecutionException.class, () -> rpc.get().get(5, TimeUnit.SECONDS));
+		assertEquals(Status.Code.CANCELLED, Status.fromThrowable(e.getCause()).getCode());
+	}
+
+	private static class Collector implements StreamObserver<DynamicMessage> {
+
+		private final List<DynamicMessage> responses;
+
+		private Collector(List<DynamicMessage> responses) {
+			this.responses = responses;
+		}
+
+		@Override
+		public void onNext(DynamicMessage value) {
+			responses.add(value);
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			// Reported through the completion future.
+		}
+
+		@Override
+		public void onCompleted() {
+			// Reported through the completion future.
+		}
+	}
+
+	/**
+	 * An NDJSON body of numbered requests, produced as it is read.
+	 */
+	private static class Lines extends InputStream {
+
+		private final int lines;
+
+		private final AtomicInteger served = new AtomicInteger();
+
+		private byte[] line = new byte[0];
+
+		private int position;
+
+		private Lines(int lines) {
+			this.lines = lines;
+		}
+
+		@Override
+		public int read() {
+			if (position == line.length) {
+				if (served.get() == lines) {
+					return -1;
+				}
+				line = ("{\"id\":\"" + served.getAndIncrement() + "\"}\n").getBytes(StandardCharsets.UTF_8);
+				position = 0;
+			}
+			return line[position++];
+		}
+	}
+}
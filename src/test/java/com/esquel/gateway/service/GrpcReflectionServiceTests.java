@@ -0,0 +1,219 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.store.CatalogSnapshot;
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.esquel.gateway.utils.TestReflectionServer;
+import io.grpc.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Switches the catalog between two backends with different catalogs while request threads read it,
+ * and checks that every snapshot a reader sees is consistent in itself and that no plan of the old
+ * backend survives the switch. Also covers lazy mode, where services are resolved on first use.
+ */
+class GrpcReflectionServiceTests {
+
+	private static final int SMALL = 20;
+
+	private static final int LARGE = 30;
+
+	private static final int READERS = 8;
+
+	private static final int REGISTERS = 40;
+
+	private static Server small;
+
+	private static Server large;
+
+	private static GrpcChannelPool grpcChannelPool;
+
+	@BeforeAll
+	static void startServers() throws Exception {
+		small = TestReflectionServer.start("bench", SMALL);
+		large = TestReflectionServer.start("bench", LARGE);
+		grpcChannelPool = new GrpcChannelPool(60, 20, 1800, "", "p2c_ewma", 0.5, 20, 30, 1, 8, 100, 60);
+	}
+
+	@AfterAll
+	static void stopServers() throws Exception {
+		grpcChannelPool.shutdown();
+		small.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		large.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void readersNeverSeeTornCatalog() throws Exception {
+		Endpoint smallEndpoint = new Endpoint("localhost", small.getPort());
+		Endpoint largeEndpoint = new Endpoint("localhost", large.getPort());
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(smallEndpoint, grpcChannelPool,
+				new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		InvocationPlanCache invocationPlanCache = new InvocationPlanCache(grpcReflectionService);
+		grpcReflectionService.loadGrpcServices();
+
+		Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong reads = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(READERS);
+		List<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < READERS; i++) {
+			Thread reader = new Thread(() -> {
+				try {
+					while (running.get()) {
+						CatalogSnapshot snapshot = grpcReflectionService.getSnapshot();
+						int services = snapshot.getEndpoint().getPort() == small.getPort() ? SMALL : LARGE;
+						// The reflection service is part of the catalog but not of the exposed services.
+						assertEquals(services + 1, snapshot.getFileDescriptorSets().size());
+						assertEquals(services, snapshot.getDescriptorPool().getServices().size());
+						snapshot.getFileDescriptorSets().keySet().forEach(name ->
+								assertTrue(snapshot.getDescriptorPool().findService(name) != null, name));
+						InvocationPlan plan = invocationPlanCache.get(GrpcReflectionUtils.parseToMethodDefinition("bench.Service0.Echo"));
+						assertEquals("bench.Service0/Echo", plan.getFullMethodName());
+						reads.incrementAndGet();
+					}
+				} catch (Throwable t) {
+					errors.add(t);
+				} finally {
+					done.countDown();
+				}
+			});
+			reader.start();
+			readers.add(reader);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < REGISTERS; i++) {
+			grpcReflectionService.loadGrpcServicesByIpAndPort(i % 2 == 0 ? largeEndpoint : smallEndpoint);
+			grpcReflectionService.loadGrpcServices();
+		}
+		running.set(false);
+		done.await(10, TimeUnit.SECONDS);
+		grpcReflectionService.shutdown();
+
+		System.err.println(String.format(":::registers = [%s], reads = [%s], errors = [%s], elapsed = [%s] ms::::",
+				REGISTERS, reads.get(), errors.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		assertTrue(errors.isEmpty(), String.valueOf(errors));
+		assertTrue(reads.get() > 0);
+	}
+
+	@Test
+	void lazyModeResolvesServicesOnFirstCall() throws Exception {
+		Endpoint largeEndpoint = new Endpoint("localhost", large.getPort());
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(largeEndpoint, grpcChannelPool,
+				new CatalogSnapshotStore(""), 86400, 0.8, "", true, 0);
+		InvocationPlanCache invocationPlanCache = new InvocationPlanCache(grpcReflectionService);
+		grpcReflectionService.loadGrpcServices();
+
+		CatalogSnapshot listed = grpcReflectionService.getSnapshot();
+		assertEquals(LARGE + 1, listed.getServiceNames().size());
+		assertTrue(listed.getFileDescriptorSets().isEmpty());
+
+		Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> callers = new ArrayList<>();
+		for (int i = 0; i < READERS; i++) {
+			Thread caller = new Thread(() -> {
+				try {
+					start.await();
+					InvocationPlan plan = invocationPlanCache.get(GrpcReflectionUtils.parseToMethodDefinition("bench.Service7.Echo"));
+					assertEquals("bench.Service7/Echo", plan.getFullMethodName());
+				} catch (Throwable t) {
+					errors.add(t);
+				}
+			});
+			caller.start();
+			callers.add(caller);
+		}
+		start.countDown();
+		for (Thread caller : callers) {
+			caller.join(10_000);
+		}
+		assertTrue(errors.isEmpty(), String.valueOf(errors));
+
+		// Every caller waited on the same lookup, so the catalog moved exactly one version.
+		CatalogSnapshot resolved = grpcReflectionService.currentSnapshot();
+		assertEquals(listed.getVersion() + 1, resolved.getVersion());
+		assertEquals(1, resolved.getFileDescriptorSets().size());
+		assertTrue(resolved.isPending("bench.Service8"));
+		grpcReflectionService.shutdown();
+	}
+
+	@Test
+	void lazyModeResolvesManyServicesAtOnce() throws Exception {
+		Endpoint largeEndpoint = new Endpoint("localhost", large.getPort());
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(largeEndpoint, grpcChannelPool,
+				new CatalogSnapshotStore(""), 86400, 0.8, "", true, 0);
+		grpcReflectionService.loadGrpcServices();
+
+		// Every request goes out before the first answers come back in.
+		List<String> services = new ArrayList<>();
+		for (int i = 0; i < LARGE; i++) {
+			services.add("bench.Service" + i);
+		}
+		CatalogSnapshot resolved = grpcReflectionService.resolveServices(services);
+		for (String service : services) {
+			assertTrue(resolved.getFileDescriptorSets().containsKey(service), service + " was not resolved");
+			assertEquals(2, resolved.getFileDescriptorSets().get(service).getFileCount(), service);
+		}
+		assertEquals(LARGE, resolved.getDescriptorPool().getServices().size());
+		grpcReflectionService.shutdown();
+	}
+
+	@Test
+	void switchingEndpointsDropsPlansOfTheOldOne() throws Exception {
+		Server other = TestReflectionServer.start("other", 2);
+		try {
+			GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", small.getPort()),
+					grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+			InvocationPlanCache invocationPlanCache = new InvocationPlanCache(grpcReflectionService);
+			grpcReflectionService.loadGrpcServices();
+			invocationPlanCache.get(GrpcReflectionUtils.parseToMethodDefinition("bench.Service0.Echo"));
+
+			grpcReflectionService.loadGrpcServicesByIpAndPort(new Endpoint("localhost", other.getPort()));
+			CatalogSnapshot snapshot = grpcReflectionService.getSnapshot();
+			assertTrue(snapshot.getChange().isEndpointChanged());
+			assertTrue(snapshot.getChange().getRemoved().contains("bench.Service0"));
+			assertThrows(IllegalArgumentException.class,
+					() -> invocationPlanCache.get(GrpcReflectionUtils.parseToMethodDefinition("bench.Service0.Echo")));
+			assertEquals("other.Service0/Echo",
+					invocationPlanCache.get(GrpcReflectionUtils.parseToMethodDefinition("other.Service0.Echo")).getFullMethodName());
+			grpcReflectionService.shutdown();
+		} finally {
+			other.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void lazyModePrefetchesRemainingServices() throws Exception {
+		Endpoint smallEndpoint = new Endpoint("localhost", small.getPort());
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(smallEndpoint, grpcChannelPool,
+				new CatalogSnapshotStore(""), 86400, 0.8, "", true, 4);
+		grpcReflectionService.loadGrpcServices();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		CatalogSnapshot snapshot = grpcReflectionService.currentSnapshot();
+		while (snapshot.getFileDescriptorSets().size() < SMALL + 1 && System.nanoTime() < deadline) {
+			Thread.sleep(20);
+			snapshot = grpcReflectionService.currentSnapshot();
+		}
+		assertEquals(SMALL + 1, snapshot.getFileDescriptorSets().size());
+		assertEquals(SMALL, snapshot.getDescriptorPool().getServices().size());
+		grpcReflectionService.shutdown();
+	}
+}
@@ -0,0 +1,166 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.model.RoutingStats;
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.esquel.gateway.utils.TestReflectionServer;
+import io.grpc.CallOptions;
+import io.grpc.Server;
+import io.grpc.stub.ClientCalls;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fronts two backends with different services from one gateway and checks that every call reaches
+ * the backend serving its service, or the endpoint it targets.
+ */
+class GrpcRoutingServiceTests {
+
+	private static Server alpha;
+
+	private static Server beta;
+
+	private static GrpcChannelPool grpcChannelPool;
+
+	@BeforeAll
+	static void startServers() throws Exception {
+		alpha = TestReflectionServer.start("alpha", 3);
+		beta = TestReflectionServer.start("beta", 5);
+		grpcChannelPool = new GrpcChannelPool(60, 20, 1800, "", "p2c_ewma", 0.5, 20, 30, 1, 8, 100, 60);
+	}
+
+	@AfterAll
+	static void stopServers() throws Exception {
+		grpcChannelPool.shutdown();
+		alpha.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		beta.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void routesEachServiceToItsBackend() {
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", alpha.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		GrpcRoutingService grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 1 << 20, 1800, "");
+		grpcReflectionService.loadGrpcServices();
+		grpcRoutingService.register(new Endpoint("localhost", beta.getPort()));
+
+		RoutingStats stats = grpcRoutingService.stats();
+		assertEquals(2, stats.getBackends().size());
+		// Both expose reflection, which is routed to the first backend only.
+		assertEquals(3 + 5 + 1, stats.getRoutes());
+		assertEquals(4, stats.getBackends().get(0).getRouted());
+		assertEquals(5, stats.getBackends().get(1).getRouted());
+
+		assertEquals(beta.getPort(), grpcRoutingService.route("beta.Service4").getCatalog().getEndpoint().getPort());
+		assertEquals(alpha.getPort(), grpcRoutingService.route("alpha.Service0").getCatalog().getEndpoint().getPort());
+		for (String service : new String[]{"alpha.Service2", "beta.Service3"}) {
+			echo(grpcRoutingService, grpcRoutingService.route(service), service);
+		}
+
+		assertEquals(true, grpcRoutingService.unregister(new Endpoint("localhost", beta.getPort())));
+		assertSame(grpcRoutingService.route("alpha.Service0"), grpcRoutingService.route("beta.Service4"));
+		assertEquals(4, grpcRoutingService.stats().getRoutes());
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+	}
+
+	@Test
+	void targetsEndpointsPerRequest() {
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", alpha.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		GrpcRoutingService grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 1 << 20, 1800, "localhost");
+		grpcReflectionService.loadGrpcServices();
+
+		Endpoint betaEndpoint = new Endpoint("localhost", beta.getPort());
+		GrpcRoutingService.Backend target = grpcRoutingService.route(betaEndpoint, "beta.Service1");
+		echo(grpcRoutingService, target, "beta.Service1");
+		// Shared by later requests, and invisible to requests that don't target it.
+		assertSame(target, grpcRoutingService.target(betaEndpoint));
+		assertSame(grpcRoutingService.route("alpha.Service0"), grpcRoutingService.route("beta.Service1"));
+		RoutingStats stats = grpcRoutingService.stats();
+		assertEquals(1, stats.getBackends().size());
+		assertEquals(1, stats.getTargets().size());
+		assertEquals(1, stats.getTargetLoads());
+		assertTrue(stats.getTargetBytes() > 0);
+
+		// Targeting a registered backend uses it as it is.
+		assertSame(grpcRoutingService.route("alpha.Service0"), grpcRoutingService.target(new Endpoint("localhost", alpha.getPort())));
+		assertThrows(IllegalArgumentException.class, () -> grpcRoutingService.target(new Endpoint("127.0.0.1", beta.getPort())));
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+	}
+
+	@Test
+	void deniesUnregisteredTargetsByDefault() {
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", alpha.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		GrpcRoutingService grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 1 << 20, 1800, "");
+		grpcReflectionService.loadGrpcServices();
+
+		assertSame(grpcRoutingService.route("alpha.Service0"), grpcRoutingService.target(new Endpoint("localhost", alpha.getPort())));
+		assertThrows(IllegalArgumentException.class, () -> grpcRoutingService.target(new Endpoint("localhost", beta.getPort())));
+		assertEquals(0, grpcRoutingService.stats().getTargetLoads());
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+	}
+
+	@Test
+	void weighsEveryTargetWithAFixedOverhead() {
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", alpha.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		// Room for one target, however small its catalog.
+		GrpcRoutingService grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 3 * GrpcRoutingService.TARGET_OVERHEAD_BYTES / 2, 1800, "localhost,127.0.0.1");
+
+		grpcRoutingService.target(new Endpoint("localhost", beta.getPort()));
+		RoutingStats stats = grpcRoutingService.stats();
+		assertEquals(1, stats.getTargets().size());
+		assertTrue(stats.getTargetBytes() > GrpcRoutingService.TARGET_OVERHEAD_BYTES);
+		assertTrue(stats.getTargets().get(0).getBytes() < GrpcRoutingService.TARGET_OVERHEAD_BYTES);
+
+		grpcRoutingService.target(new Endpoint("127.0.0.1", beta.getPort()));
+		stats = grpcRoutingService.stats();
+		assertEquals(1, stats.getTargets().size());
+		assertEquals(1, stats.getTargetEvictions());
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+	}
+
+	@Test
+	void evictedTargetsKeepServingTheirCallers() {
+		GrpcReflectionService grpcReflectionService = new GrpcReflectionService(new Endpoint("localhost", alpha.getPort()),
+				grpcChannelPool, new CatalogSnapshotStore(""), 86400, 0.8, "", false, 0);
+		// Too small for any catalog, so every target is dropped as soon as it is loaded.
+		GrpcRoutingService grpcRoutingService = new GrpcRoutingService(grpcReflectionService, grpcChannelPool,
+				new InvocationPlanCache(grpcReflectionService), 1, 1800, "*");
+
+		GrpcRoutingService.Backend target = grpcRoutingService.target(new Endpoint("localhost", beta.getPort()));
+		RoutingStats stats = grpcRoutingService.stats();
+		assertEquals(0, stats.getTargets().size());
+		assertEquals(1, stats.getTargetEvictions());
+		echo(grpcRoutingService, target, "beta.Service0");
+		grpcRoutingService.shutdown();
+		grpcReflectionService.shutdown();
+	}
+
+	private static void echo(GrpcRoutingService grpcRoutingService, GrpcRoutingService.Backend backend, String service) {
+		InvocationPlan plan = backend.getInvocationPlanCache().get(GrpcReflectionUtils.parseToMethodDefinition(service + ".Echo"));
+		byte[] request = new byte[]{10, 2, 'i', 'd'};
+		byte[] response = ClientCalls.blockingUnaryCall(grpcRoutingService.channel(backend), plan.getRawMethodDescriptor(),
+				CallOptions.DEFAULT.withDeadlineAfter(5, TimeUnit.SECONDS), request);
+		assertArrayEquals(request, response);
+	}
+}
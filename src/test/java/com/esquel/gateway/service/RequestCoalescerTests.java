@@ -0,0 +1,123 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.CallResults;
+import com.esquel.gateway.model.CoalescingStats;
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.utils.TestPlans;
+import com.google.protobuf.DescriptorProtos;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Fires identical calls from several threads while the leader's rpc is held open, and checks who
+ * shares it and who does not.
+ */
+class RequestCoalescerTests {
+
+	private static final Endpoint ALPHA = new Endpoint("alpha", 50051);
+
+	private static final Endpoint BETA = new Endpoint("beta", 50051);
+
+	private final InvocationPlan plan = TestPlans.plan("coalesce", "Get",
+			DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS, MethodDescriptor.MethodType.UNARY);
+
+	private final RequestCoalescer requestCoalescer = new RequestCoalescer("coalesce.Service/Get");
+
+	private final ExecutorService callers = Executors.newFixedThreadPool(8);
+
+	private final AtomicInteger rpcs = new AtomicInteger();
+
+	private final CompletableFuture<CallResults> backend = new CompletableFuture<>();
+
+	@AfterEach
+	void stop() {
+		callers.shutdownNow();
+	}
+
+	@Test
+	void sharesOneRpcBetweenConcurrentIdenticalCalls() throws Exception {
+		List<CompletableFuture<CallResults>> results = callConcurrently(8, ALPHA, "a", Map.of("tenant", "x"));
+		assertEquals(1, rpcs.get());
+		results.forEach(result -> assertFalse(result.isDone()));
+
+		CallResults leader = new CallResults(plan.getPrinter());
+		backend.complete(leader);
+		for (CompletableFuture<CallResults> result : results) {
+			assertSame(leader, result.get(5, TimeUnit.SECONDS));
+		}
+		CoalescingStats stats = requestCoalescer.stats();
+		assertEquals(8, stats.getCalls());
+		assertEquals(1, stats.getBackendCalls());
+		assertEquals(0, stats.getInFlight());
+	}
+
+	@Test
+	void everyCallerGetsTheLeadersError() throws Exception {
+		List<CompletableFuture<CallResults>> results = callConcurrently(8, ALPHA, "a", Map.of());
+		StatusRuntimeException failure = Status.UNAVAILABLE.asRuntimeException();
+		backend.completeExceptionally(failure);
+		for (CompletableFuture<CallResults> result : results) {
+			ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+			assertSame(failure, e.getCause());
+		}
+		assertEquals(1, rpcs.get());
+
+		// The failed rpc is gone, the next call starts its own.
+		call(ALPHA, "a", Map.of());
+		assertEquals(2, rpcs.get());
+	}
+
+	@Test
+	void keepsDifferentEndpointsHeadersAndRequestsApart() throws Exception {
+		callConcurrently(4, ALPHA, "a", Map.of("tenant", "x"));
+		callConcurrently(4, ALPHA, "a", Map.of("tenant", "y"));
+		callConcurrently(4, BETA, "a", Map.of("tenant", "x"));
+		callConcurrently(4, ALPHA, "b", Map.of("tenant", "x"));
+		assertEquals(4, rpcs.get());
+		assertEquals(4, requestCoalescer.stats().getInFlight());
+		backend.complete(new CallResults(plan.getPrinter()));
+		assertEquals(0, requestCoalescer.stats().getInFlight());
+	}
+
+	private List<CompletableFuture<CallResults>> callConcurrently(int count, Endpoint endpoint, String id,
+																  Map<String, Object> headers) throws Exception {
+		List<Callable<CompletableFuture<CallResults>>> calls = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			calls.add(() -> call(endpoint, id, headers));
+		}
+		List<CompletableFuture<CallResults>> results = new ArrayList<>();
+		for (Future<CompletableFuture<CallResults>> future : callers.invokeAll(calls)) {
+			results.add(future.get());
+		}
+		return results;
+	}
+
+	private CompletableFuture<CallResults> call(Endpoint endpoint, String id, Map<String, Object> headers) {
+		return requestCoalescer.execute(endpoint, plan, TestPlans.request(plan, id), headers, () -> {
+			rpcs.incrementAndGet();
+			// The first rpc is held open by the test, later ones answer at once.
+			return rpcs.get() == 1 || !backend.isDone() ? backend : CompletableFuture.completedFuture(new CallResults(plan.getPrinter()));
+		});
+	}
+}
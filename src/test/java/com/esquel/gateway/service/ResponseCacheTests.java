@@ -0,0 +1,87 @@
+package com.esquel.gateway.service;
+
+import com.esquel.gateway.model.Endpoint;
+import com.esquel.gateway.model.InvocationPlan;
+import com.esquel.gateway.model.ResponseCacheStats;
+import com.esquel.gateway.utils.GrpcReflectionUtils;
+import com.esquel.gateway.utils.TestPlans;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import io.grpc.MethodDescriptor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks what goes into a cache key, that entries expire and that the size bound holds.
+ */
+class ResponseCacheTests {
+
+	private static final Endpoint ENDPOINT = new Endpoint("localhost", 50051);
+
+	private final InvocationPlan plan = TestPlans.plan("cache", "Get",
+			DescriptorProtos.MethodOptions.IdempotencyLevel.NO_SIDE_EFFECTS, MethodDescriptor.MethodType.UNARY);
+
+	private final ByteString request = GrpcReflectionUtils.toCanonicalBytes(TestPlans.request(plan, "a"));
+
+	@Test
+	void keysOnAllForwardedMetadataByDefault() {
+		ResponseCache responseCache = new ResponseCache("cache.Service/Get=60", 30, false, "", 1 << 20);
+		ResponseCache.CacheKey alice = responseCache.key(ENDPOINT, plan, request, Map.of("authorization", "alice"));
+		responseCache.put(alice, new byte[]{1}, 60_000);
+
+		assertArrayEquals(new byte[]{1}, responseCache.get(responseCache.key(ENDPOINT, plan, request,
+				Map.of("authorization", "alice"))));
+		assertNull(responseCache.get(responseCache.key(ENDPOINT, plan, request, Map.of("authorization", "bob"))));
+		assertNull(responseCache.get(responseCache.key(ENDPOINT, plan, request, Map.of())));
+		assertNull(responseCache.get(responseCache.key(new Endpoint("localhost", 50052), plan, request,
+				Map.of("authorization", "alice"))));
+		assertNull(responseCache.get(responseCache.key(ENDPOINT, plan,
+				GrpcReflectionUtils.toCanonicalBytes(TestPlans.request(plan, "b")), Map.of("authorization", "alice"))));
+	}
+
+	@Test
+	void narrowsTheKeyOnlyToConfiguredHeaders() {
+		ResponseCache responseCache = new ResponseCache("cache.Service/Get=60", 30, false, "tenant", 1 << 20);
+		assertEquals(responseCache.key(ENDPOINT, plan, request, Map.of("tenant", "t1", "x-request-id", "1")),
+				responseCache.key(ENDPOINT, plan, request, Map.of("tenant", "t1", "x-request-id", "2")));
+		assertNotEquals(responseCache.key(ENDPOINT, plan, request, Map.of("tenant", "t1")),
+				responseCache.key(ENDPOINT, plan, request, Map.of("tenant", "t2")));
+	}
+
+	@Test
+	void expiresEntriesAfterTheirTtl() throws Exception {
+		ResponseCache responseCache = new ResponseCache("cache.Service/Get=1", 1, false, "", 1 << 20);
+		assertEquals(1000, responseCache.ttlMillis(plan));
+		ResponseCache.CacheKey shortLived = responseCache.key(ENDPOINT, plan, request, Map.of("n", "1"));
+		ResponseCache.CacheKey unread = responseCache.key(ENDPOINT, plan, request, Map.of("n", "2"));
+		responseCache.put(shortLived, new byte[]{1}, 50);
+		responseCache.put(unread, new byte[]{2}, 1000);
+
+		Thread.sleep(100);
+		assertNull(responseCache.get(shortLived));
+		assertEquals(1, responseCache.stats().getEntries());
+		// Never read again, yet dropped once the longest TTL has passed.
+		Thread.sleep(1000);
+		assertEquals(0, responseCache.stats().getEntries());
+	}
+
+	@Test
+	void staysWithinMaxBytes() {
+		ResponseCache responseCache = new ResponseCache("cache.Service/Get=60", 30, false, "", 4096);
+		for (int i = 0; i < 100; i++) {
+			responseCache.put(responseCache.key(ENDPOINT, plan, request, Map.of("n", String.valueOf(i))),
+					new byte[200], 60_000);
+		}
+		ResponseCacheStats stats = responseCache.stats();
+		assertTrue(stats.getBytes() <= 4096, "cache holds " + stats.getBytes() + " bytes");
+		assertTrue(stats.getEvictions() > 0);
+		assertTrue(stats.getEntries() > 0);
+	}
+}
@@ -0,0 +1,76 @@
+package com.esquel.gateway.store;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DescriptorSetDirectorySourceTests {
+
+	private static final DescriptorProtos.FileDescriptorProto COMMON = DescriptorProtos.FileDescriptorProto.newBuilder()
+			.setName("bench/common.proto")
+			.setPackage("bench")
+			.setSyntax("proto3")
+			.addMessageType(DescriptorProtos.DescriptorProto.newBuilder().setName("Common"))
+			.build();
+
+	@Test
+	void readsServicesWithTheirImports(@TempDir Path directory) throws Exception {
+		write(directory.resolve("a.pb"), service("A"));
+		write(directory.resolve("b.desc"), service("B"));
+		Files.write(directory.resolve("notes.txt"), new byte[]{1, 2, 3});
+
+		ImmutableMap<String, DescriptorProtos.FileDescriptorSet> catalog =
+				new DescriptorSetDirectorySource(directory).load(Collections.emptyMap());
+
+		assertEquals(2, catalog.size());
+		assertEquals(2, catalog.get("bench.A").getFileCount());
+		assertEquals(2, catalog.get("bench.B").getFileCount());
+	}
+
+	@Test
+	void reportsChangedFiles(@TempDir Path directory) throws Exception {
+		write(directory.resolve("a.pb"), service("A"));
+		DescriptorSetDirectorySource source = new DescriptorSetDirectorySource(directory);
+		CountDownLatch changed = new CountDownLatch(1);
+		try (Closeable ignored = source.watch(changed::countDown)) {
+			write(directory.resolve("b.pb"), service("B"));
+			assertTrue(changed.await(30, TimeUnit.SECONDS));
+		}
+		assertEquals(2, source.load(Collections.emptyMap()).size());
+	}
+
+	private static DescriptorProtos.FileDescriptorProto service(String name) {
+		return DescriptorProtos.FileDescriptorProto.newBuilder()
+				.setName("bench/" + name.toLowerCase() + ".proto")
+				.setPackage("bench")
+				.setSyntax("proto3")
+				.addDependency(COMMON.getName())
+				.addService(DescriptorProtos.ServiceDescriptorProto.newBuilder()
+						.setName(name)
+						.addMethod(DescriptorProtos.MethodDescriptorProto.newBuilder()
+								.setName("Echo")
+								.setInputType(".bench.Common")
+								.setOutputType(".bench.Common")))
+				.build();
+	}
+
+	private static void write(Path path, DescriptorProtos.FileDescriptorProto file) throws Exception {
+		// Like protoc --include_imports, every set carries the files it imports.
+		Files.write(path, DescriptorProtos.FileDescriptorSet.newBuilder()
+				.addFile(COMMON)
+				.addFile(file)
+				.build()
+				.toByteArray());
+	}
+}
@@ -0,0 +1,92 @@
+package com.esquel.gateway.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Loads a large catalog, where every service sits in its own file and imports one shared file,
+ * from a reflection server on localhost. It compares one stream per service against the
+ * pipelined single stream.
+ */
+class GrpcReflectionUtilsTests {
+
+	private static final int SERVICES = 150;
+
+	private static Server server;
+
+	private static ManagedChannel channel;
+
+	@BeforeAll
+	static void startServer() throws Exception {
+		server = TestReflectionServer.start("bench", SERVICES);
+		channel = ChannelFactory.create("localhost", server.getPort());
+	}
+
+	@AfterAll
+	static void stopServer() throws Exception {
+		channel.shutdownNow();
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void loadsEveryServiceWithItsDependencies() throws Exception {
+		ImmutableMap<String, DescriptorProtos.FileDescriptorSet> catalog =
+				GrpcReflectionUtils.loadCatalog(channel).get(30, TimeUnit.SECONDS);
+
+		// The reflection service lists itself too.
+		assertEquals(SERVICES + 1, catalog.size());
+		for (int i = 0; i < SERVICES; i++) {
+			DescriptorProtos.FileDescriptorSet set = catalog.get("bench.Service" + i);
+			assertNotNull(set);
+			assertEquals(2, set.getFileCount());
+			ImmutableList<Descriptors.FileDescriptor> files = GrpcReflectionUtils.ListFileDescriptor(set);
+			assertNotNull(GrpcReflectionUtils.findService("bench", "Service" + i, files).findMethodByName("Echo"));
+		}
+	}
+
+	@Test
+	void pipelinedLoadMatchesStreamPerService() throws Exception {
+		// Warm up both paths, the first rpc on the channel pays for the connection.
+		long serial = Long.MAX_VALUE;
+		long pipelined = Long.MAX_VALUE;
+		Map<String, Set<DescriptorProtos.FileDescriptorProto>> serialCatalog = new HashMap<>();
+		Map<String, Set<DescriptorProtos.FileDescriptorProto>> pipelinedCatalog = new HashMap<>();
+		for (int round = 0; round < 3; round++) {
+			serialCatalog.clear();
+			long start = System.nanoTime();
+			List<String> services = GrpcReflectionUtils.listAllServices(channel).get();
+			for (String service : services) {
+				serialCatalog.put(service, ImmutableSet.copyOf(GrpcReflectionUtils.lookupService(channel, service).get().getFileList()));
+			}
+			serial = Math.min(serial, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			ImmutableMap<String, DescriptorProtos.FileDescriptorSet> catalog = GrpcReflectionUtils.loadCatalog(channel).get();
+			pipelined = Math.min(pipelined, System.nanoTime() - start);
+			pipelinedCatalog.clear();
+			catalog.forEach((service, set) -> pipelinedCatalog.put(service, ImmutableSet.copyOf(set.getFileList())));
+		}
+
+		// Timings depend on the machine, they are reported rather than asserted.
+		System.err.println(String.format(":::services = [%s], stream per service = [%s] ms, pipelined = [%s] ms::::",
+				SERVICES, TimeUnit.NANOSECONDS.toMillis(serial), TimeUnit.NANOSECONDS.toMillis(pipelined)));
+		assertEquals(serialCatalog, pipelinedCatalog);
+	}
+}
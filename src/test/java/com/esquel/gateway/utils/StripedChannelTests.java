@@ -0,0 +1,134 @@
+package com.esquel.gateway.utils;
+
+import com.esquel.gateway.model.ChannelPoolStats;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Holds calls open on a local server and checks that the striped channel opens connections as the
+ * streams pile up, and closes them again once idle but never under a call handed out on them.
+ */
+class StripedChannelTests {
+
+	private static final MethodDescriptor<byte[], byte[]> HOLD = MethodDescriptor.<byte[], byte[]>newBuilder()
+			.setType(MethodDescriptor.MethodType.UNARY)
+			.setFullMethodName(MethodDescriptor.generateFullMethodName("striped.Service", "Hold"))
+			.setRequestMarshaller(ByteArrayMarshaller.INSTANCE)
+			.setResponseMarshaller(ByteArrayMarshaller.INSTANCE)
+			.build();
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final AtomicInteger held = new AtomicInteger();
+
+	private Server server;
+
+	@BeforeEach
+	void startServer() throws Exception {
+		server = ServerBuilder.forPort(0)
+				.addService(ServerServiceDefinition.builder("striped.Service")
+						.addMethod(HOLD, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+							held.incrementAndGet();
+							try {
+								release.await(10, TimeUnit.SECONDS);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+							responseObserver.onNext(request);
+							responseObserver.onCompleted();
+						}))
+						.build())
+				.build()
+				.start();
+	}
+
+	@AfterEach
+	void stopServer() throws Exception {
+		release.countDown();
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void growsWhileStreamsPileUpAndShrinksWhenIdle() throws Exception {
+		StripedChannel channel = new StripedChannel(
+				() -> ChannelFactory.createPooled("localhost", server.getPort(), 60, 20), 1, 3, 2);
+
+		List<ListenableFuture<byte[]>> calls = new ArrayList<>();
+		for (int i = 0; i < 7; i++) {
+			calls.add(ClientCalls.futureUnaryCall(channel.newCall(HOLD, CallOptions.DEFAULT), new byte[]{(byte) i}));
+		}
+		List<ChannelPoolStats.StripeStats> stripes = channel.stripeStats();
+		assertEquals(3, stripes.size());
+		assertEquals(2, channel.getGrown());
+		// Six fill the three stripes, the seventh goes to the first one with the fewest streams.
+		assertEquals(List.of(3, 2, 2), stripes.stream().map(ChannelPoolStats.StripeStats::getActiveStreams)
+				.collect(Collectors.toList()));
+		assertEquals(1.5, stripes.get(0).getUtilization());
+
+		release.countDown();
+		for (int i = 0; i < calls.size(); i++) {
+			assertArrayEquals(new byte[]{(byte) i}, calls.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(7, held.get());
+
+		channel.shrinkIdle(TimeUnit.MINUTES.toNanos(1));
+		assertEquals(3, channel.stripeStats().size());
+		channel.shrinkIdle(0);
+		stripes = channel.stripeStats();
+		assertEquals(1, stripes.size());
+		assertEquals(2, channel.getShrunk());
+		assertEquals(0, stripes.get(0).getActiveStreams());
+		assertEquals(3, stripes.get(0).getPeakStreams());
+
+		channel.shutdown();
+		assertTrue(channel.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void keepsStripesOfCallsNotStartedYet() throws Exception {
+		StripedChannel channel = new StripedChannel(
+				() -> ChannelFactory.createPooled("localhost", server.getPort(), 60, 20), 1, 2, 1);
+
+		ListenableFuture<byte[]> first = ClientCalls.futureUnaryCall(channel.newCall(HOLD, CallOptions.DEFAULT), new byte[]{1});
+		// Handed out on a new stripe, which must survive until the call has run.
+		ClientCall<byte[], byte[]> second = channel.newCall(HOLD, CallOptions.DEFAULT);
+		channel.shrinkIdle(0);
+		assertEquals(2, channel.stripeStats().size());
+
+		ListenableFuture<byte[]> started = ClientCalls.futureUnaryCall(second, new byte[]{2});
+		release.countDown();
+		assertArrayEquals(new byte[]{1}, first.get(5, TimeUnit.SECONDS));
+		assertArrayEquals(new byte[]{2}, started.get(5, TimeUnit.SECONDS));
+
+		// A call cancelled before it starts gives its stream back.
+		channel.newCall(HOLD, CallOptions.DEFAULT).cancel("not needed", null);
+		assertEquals(List.of(0, 0), channel.stripeStats().stream().map(ChannelPoolStats.StripeStats::getActiveStreams)
+				.collect(Collectors.toList()));
+		channel.shrinkIdle(0);
+		assertEquals(1, channel.stripeStats().size());
+
+		channel.shutdown();
+		assertTrue(channel.awaitTermination(5, TimeUnit.SECONDS));
+	}
+}
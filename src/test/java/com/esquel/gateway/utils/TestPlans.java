@@ -0,0 +1,69 @@
+package com.esquel.gateway.utils;
+
+import com.esquel.gateway.model.InvocationPlan;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.util.JsonFormat;
+import io.grpc.MethodDescriptor;
+
+/**
+ * Builds invocation plans for a {@code package.Service/method} taking and returning a
+ * {@code Request} message with one string field {@code id}, without a backend.
+ */
+public final class TestPlans {
+
+	private TestPlans() {
+	}
+
+	public static InvocationPlan plan(String packageName, String method,
+									  DescriptorProtos.MethodOptions.IdempotencyLevel level,
+									  MethodDescriptor.MethodType type) {
+		DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+				.setName(packageName + "/plan.proto")
+				.setPackage(packageName)
+				.setSyntax("proto3")
+				.addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+						.setName("Request")
+						.addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+								.setName("id")
+								.setNumber(1)
+								.setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)))
+				.addService(DescriptorProtos.ServiceDescriptorProto.newBuilder()
+						.setName("Service")
+						.addMethod(DescriptorProtos.MethodDescriptorProto.newBuilder()
+								.setName(method)
+								.setInputType("." + packageName + ".Request")
+								.setOutputType("." + packageName + ".Request")
+								.setOptions(DescriptorProtos.MethodOptions.newBuilder().setIdempotencyLevel(level))))
+				.build();
+		try {
+			Descriptors.MethodDescriptor descriptor = Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[0])
+					.findServiceByName("Service")
+					.findMethodByName(method);
+			return InvocationPlan.builder()
+					.fullMethodName(packageName + ".Service/" + method)
+					.methodDescriptor(descriptor)
+					.methodType(type)
+					.grpcMethodDescriptor(MethodDescriptor.<DynamicMessage, DynamicMessage>newBuilder()
+							.setType(type)
+							.setFullMethodName(packageName + ".Service/" + method)
+							.setRequestMarshaller(new DynamicMessageMarshaller(descriptor.getInputType()))
+							.setResponseMarshaller(new DynamicMessageMarshaller(descriptor.getOutputType()))
+							.build())
+					.parser(JsonFormat.parser())
+					.printer(JsonFormat.printer())
+					.build();
+		} catch (Descriptors.DescriptorValidationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A request message of the plan's method with the given id.
+	 */
+	public static DynamicMessage request(InvocationPlan plan, String id) {
+		Descriptors.Descriptor type = plan.getMethodDescriptor().getInputType();
+		return DynamicMessage.newBuilder(type).setField(type.findFieldByName("id"), id).build();
+	}
+}
@@ -0,0 +1,76 @@
+package com.esquel.gateway.utils;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.protobuf.ProtoFileDescriptorSupplier;
+import io.grpc.protobuf.services.ProtoReflectionService;
+import io.grpc.stub.ServerCalls;
+
+/**
+ * Starts a grpc server on a free local port that exposes reflection and {@code services} echo
+ * services, {@code package.Service0} and up, each in its own file importing one shared file.
+ */
+public final class TestReflectionServer {
+
+	private TestReflectionServer() {
+	}
+
+	public static Server start(String packageName, int services) throws Exception {
+		Descriptors.FileDescriptor common = Descriptors.FileDescriptor.buildFrom(
+				DescriptorProtos.FileDescriptorProto.newBuilder()
+						.setName(packageName + "/common.proto")
+						.setPackage(packageName)
+						.setSyntax("proto3")
+						.addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+								.setName("Common")
+								.addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+										.setName("id")
+										.setNumber(1)
+										.setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)))
+						.build(),
+				new Descriptors.FileDescriptor[0]);
+
+		ServerBuilder<?> builder = ServerBuilder.forPort(0).addService(ProtoReflectionService.newInstance());
+		for (int i = 0; i < services; i++) {
+			builder.addService(echoService(Descriptors.FileDescriptor.buildFrom(
+					DescriptorProtos.FileDescriptorProto.newBuilder()
+							.setName(packageName + "/service_" + i + ".proto")
+							.setPackage(packageName)
+							.setSyntax("proto3")
+							.addDependency(common.getName())
+							.addService(DescriptorProtos.ServiceDescriptorProto.newBuilder()
+									.setName("Service" + i)
+									.addMethod(DescriptorProtos.MethodDescriptorProto.newBuilder()
+											.setName("Echo")
+											.setInputType("." + packageName + ".Common")
+											.setOutputType("." + packageName + ".Common")))
+							.build(),
+					new Descriptors.FileDescriptor[]{common}).getServices().get(0)));
+		}
+		return builder.build().start();
+	}
+
+	private static ServerServiceDefinition echoService(Descriptors.ServiceDescriptor service) {
+		MethodDescriptor<byte[], byte[]> method = MethodDescriptor.<byte[], byte[]>newBuilder()
+				.setType(MethodDescriptor.MethodType.UNARY)
+				.setFullMethodName(MethodDescriptor.generateFullMethodName(service.getFullName(), "Echo"))
+				.setRequestMarshaller(ByteArrayMarshaller.INSTANCE)
+				.setResponseMarshaller(ByteArrayMarshaller.INSTANCE)
+				.build();
+		ProtoFileDescriptorSupplier schema = service::getFile;
+		return ServerServiceDefinition.builder(ServiceDescriptor.newBuilder(service.getFullName())
+						.setSchemaDescriptor(schema)
+						.addMethod(method)
+						.build())
+				.addMethod(method, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+					responseObserver.onNext(request);
+					responseObserver.onCompleted();
+				}))
+				.build();
+	}
+}